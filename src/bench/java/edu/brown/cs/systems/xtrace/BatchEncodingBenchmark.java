@@ -0,0 +1,101 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReportBatch;
+
+/**
+ * JMH benchmarks of encoding a batch of reports for the wire, as a plain
+ * XTraceReportBatch and with ReportBatchCodec. Besides the time to encode a
+ * batch, each benchmark reports the wire bytes per report as the bytesPerReport
+ * counter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchEncodingBenchmark {
+
+  @State(Scope.Thread)
+  public static class Batch {
+
+    @Param({ "10", "100" })
+    public int reports;
+
+    /** Reports with short labels, from a few threads and agents */
+    List<XTraceReport3> batch;
+    final ReportBatchCodec codec = new ReportBatchCodec();
+
+    @Setup
+    public void setup() {
+      Random random = new Random(0);
+      long taskID = random.nextLong();
+      long eventID = random.nextLong();
+      batch = new ArrayList<XTraceReport3>();
+      for (int i = 0; i < reports; i++) {
+        XTraceReport3.Builder report = Reporter.createReport("op " + i, "size", i * 13);
+        report.setThreadName("IPC Server handler " + (i % 4) + " on 8020");
+        report.setAgent("org.apache.hadoop.hdfs.server.namenode.NameNode" + (i % 3));
+        report.setTaskID(taskID);
+        report.addParentEventID(eventID);
+        eventID = random.nextLong();
+        report.setEventID(eventID);
+        batch.add(report.build());
+      }
+    }
+  }
+
+  /** Wire bytes per report, averaged over each iteration */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Size {
+    long bytes;
+    long reports;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+      reports = 0;
+    }
+
+    public double bytesPerReport() {
+      return reports == 0 ? 0 : (double) bytes / reports;
+    }
+  }
+
+  @Benchmark
+  public byte[] plain(Batch batch, Size size) {
+    byte[] bytes = XTraceReportBatch.newBuilder().addAllReports(batch.batch).build().toByteArray();
+    size.bytes += bytes.length;
+    size.reports += batch.reports;
+    return bytes;
+  }
+
+  @Benchmark
+  public byte[] compressed(Batch batch, Size size) {
+    byte[] bytes = batch.codec.encode(batch.batch).toByteArray();
+    size.bytes += bytes.length;
+    size.reports += batch.reports;
+    return bytes;
+  }
+
+}
@@ -0,0 +1,97 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of context propagation into many short-lived threads, for
+ * each context storage backend on platform and virtual threads. Each operation
+ * starts one thread per task; the task runs with the parent's context, adds an
+ * event to it and reads it back. Virtual threads and scoped storage are looked
+ * up reflectively, and fail in setup on JVMs without them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextStorageBenchmark {
+
+  static final int TASKS = 1000;
+
+  @State(Scope.Benchmark)
+  public static class Threads {
+
+    @Param({ "thread-local", "inheritable", "scoped" })
+    public String storage;
+
+    @Param({ "platform", "virtual" })
+    public String threads;
+
+    Trace trace;
+    ThreadFactory factory;
+    Context parent;
+
+    @Setup
+    public void setup() throws Exception {
+      if ("scoped".equals(storage) && !ContextStorage.Scoped.SUPPORTED)
+        throw new UnsupportedOperationException("ScopedValue is not available in this JVM");
+      trace = new Trace(ContextStorage.create(storage));
+      if ("virtual".equals(threads)) {
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+      } else {
+        factory = new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            return new Thread(r);
+          }
+        };
+      }
+      parent = new Context();
+      parent.setTaskID(1);
+      parent.addParentEventID(2);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(TASKS)
+  public void propagate(final Threads state) throws Exception {
+    final CountDownLatch done = new CountDownLatch(TASKS);
+    final Callable<Context> body = new Callable<Context>() {
+      public Context call() {
+        state.trace.modify().clearParentEventID().addParentEventID(3);
+        return state.trace.observe();
+      }
+    };
+    for (int i = 0; i < TASKS; i++) {
+      state.factory.newThread(new Runnable() {
+        public void run() {
+          try {
+            state.trace.call(state.parent, body);
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    done.await();
+  }
+
+}
@@ -0,0 +1,78 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.brown.cs.systems.xtrace.extensions.XTraceExecutorService;
+
+/**
+ * JMH benchmarks of the per-task overhead of the context-propagating executor
+ * wrapper. Tasks run on the submitting thread, so that only the cost of
+ * capturing, setting and restoring the context is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropagationBenchmark {
+
+  @State(Scope.Thread)
+  public static class Executors {
+
+    /** Whether there is a current context when tasks are submitted */
+    @Param({ "false", "true" })
+    public boolean active;
+
+    final Executor direct = new Executor() {
+      public void execute(Runnable task) {
+        task.run();
+      }
+    };
+    final Executor wrapped = XTraceExecutorService.wrap(direct);
+
+    long count;
+    final Runnable task = new Runnable() {
+      public void run() {
+        count++;
+      }
+    };
+
+    @Setup
+    public void setup() {
+      if (active)
+        XTrace.setTask(1, true);
+    }
+
+    @TearDown
+    public void teardown() {
+      XTrace.stop();
+    }
+  }
+
+  @Benchmark
+  public long direct(Executors executors) {
+    executors.direct.execute(executors.task);
+    return executors.count;
+  }
+
+  @Benchmark
+  public long wrapped(Executors executors) {
+    executors.wrapped.execute(executors.task);
+    return executors.count;
+  }
+
+}
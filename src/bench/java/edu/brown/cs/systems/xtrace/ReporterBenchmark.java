@@ -0,0 +1,147 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3.Builder;
+
+/**
+ * JMH benchmarks of the reporting path: Reporter.createReport,
+ * Reporter.sendReport and PubSubReporter.doSend. The reporters are shared by
+ * all benchmark threads so that contention on shared state shows up when run
+ * with more than one thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReporterBenchmark {
+
+  /** A reporter that discards reports instead of sending them */
+  static final class DiscardingReporter extends Reporter {
+    volatile Builder last;
+
+    DiscardingReporter(Trace trace) {
+      super(trace);
+    }
+
+    @Override
+    protected void doSend(Builder report) {
+      last = report;
+    }
+
+    @Override
+    protected void close() {
+    }
+  }
+
+  /**
+   * A pubsub reporter whose worker thread drains the outgoing queue instead of
+   * publishing, so that the enqueue cost can be measured without a server
+   */
+  static final class DrainingPubSubReporter extends PubSubReporter {
+
+    DrainingPubSubReporter(Trace trace, boolean deferred) {
+      super(trace, "localhost", 0);
+      this.deferred = deferred;
+    }
+
+    @Override
+    public void run() {
+      running = true;
+      while (alive && !Thread.currentThread().isInterrupted()) {
+        try {
+          take();
+        } catch (InterruptedException e) {
+          alive = false;
+        }
+      }
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Reporters {
+    final Trace trace = new Trace();
+    DiscardingReporter discarding;
+    DrainingPubSubReporter pubsub;
+    DrainingPubSubReporter deferred;
+
+    @Setup
+    public void setup() {
+      discarding = new DiscardingReporter(trace);
+      pubsub = new DrainingPubSubReporter(trace, false);
+      deferred = new DrainingPubSubReporter(trace, true);
+    }
+
+    @TearDown
+    public void teardown() {
+      pubsub.close();
+      deferred.close();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Propagated {
+
+    /** Whether the propagated metadata tracks causality (has parent IDs) */
+    @Param({ "false", "true" })
+    public boolean causality;
+
+    @Setup
+    public void setup(Reporters reporters) {
+      reporters.trace.set(TraceImplTest.randomTaskIDAndTenantAndParents(causality ? 1 : 0));
+    }
+  }
+
+  @Benchmark
+  public Builder createReport() {
+    return Reporter.createReport();
+  }
+
+  @Benchmark
+  public Builder createReportWithFields() {
+    return Reporter.createReport("benchmark report", "key1", "value1", "key2", 2);
+  }
+
+  @Benchmark
+  public void sendReport(Reporters reporters, Propagated md, Blackhole bh) {
+    reporters.discarding.sendReport("benchmark", Reporter.createReport("benchmark report"), true);
+    bh.consume(reporters.discarding.last);
+  }
+
+  @Benchmark
+  public void report(Reporters reporters, Propagated md, Blackhole bh) {
+    reporters.discarding.report("benchmark", "benchmark report", "key1", "value1");
+    bh.consume(reporters.discarding.last);
+  }
+
+  @Benchmark
+  public void pubsubDoSend(Reporters reporters) {
+    reporters.pubsub.doSend(Reporter.createReport("benchmark report"));
+  }
+
+  @Benchmark
+  public void pubsubReport(Reporters reporters, Propagated md) {
+    reporters.pubsub.report("benchmark", "benchmark report", "key1", "value1");
+  }
+
+  @Benchmark
+  public void pubsubReportDeferred(Reporters reporters, Propagated md) {
+    reporters.deferred.report("benchmark", "benchmark report", "key1", "value1");
+  }
+
+}
@@ -0,0 +1,84 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.brown.cs.systems.xtrace.Reporter.IDGenerator;
+import edu.brown.cs.systems.xtrace.ReporterBenchmark.DiscardingReporter;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3.Builder;
+
+/**
+ * Measures how the throughput of Reporter.report with causality enabled
+ * scales with the number of reporting threads, for the shared java.util.Random
+ * that X-Trace used to generate event IDs with and for the default
+ * ThreadLocalIDGenerator. Every thread reports against its own metadata, but
+ * all threads share one ID generator.
+ *
+ * Use ThreadSweep to measure 1 to 64 threads in one go, eg.
+ * mvn -Pbench test-compile exec:exec -Dbench.main=edu.brown.cs.systems.xtrace.ThreadSweep -Dbench.include=ReporterScalingBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReporterScalingBenchmark {
+
+  /** The generator X-Trace used before ThreadLocalIDGenerator */
+  static final class SharedRandomIDGenerator implements IDGenerator {
+    private final Random random = new Random();
+
+    public long nextID() {
+      return random.nextLong();
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Generator {
+
+    @Param({ "shared-random", "thread-local" })
+    public String generator;
+
+    IDGenerator ids;
+
+    @Setup
+    public void setup() {
+      if ("shared-random".equals(generator))
+        ids = new SharedRandomIDGenerator();
+      else
+        ids = new Reporter.ThreadLocalIDGenerator();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class ThreadReporter {
+    final Trace trace = new Trace();
+    DiscardingReporter reporter;
+
+    @Setup
+    public void setup(Generator generator) {
+      reporter = new DiscardingReporter(trace);
+      reporter.setIDGenerator(generator.ids);
+      trace.set(TraceImplTest.randomTaskIDAndTenantAndParents(1));
+    }
+  }
+
+  @Benchmark
+  public Builder report(ThreadReporter state) {
+    state.reporter.report("benchmark", "benchmark report", "key1", "value1");
+    return state.reporter.last;
+  }
+
+}
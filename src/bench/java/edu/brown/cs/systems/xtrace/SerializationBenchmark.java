@@ -0,0 +1,114 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * JMH benchmarks of metadata serialization and deserialization: XTrace.bytes,
+ * XTrace.base64, XTrace.base16, XTrace.writeTo, the bounded variants of bytes
+ * and writeTo, and the corresponding Context.parse and Context.readFrom
+ * methods.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+  @State(Scope.Thread)
+  public static class Propagated {
+
+    @Param({ "1", "4" })
+    public int parents;
+
+    byte[] bytes;
+    String base64;
+    String base16;
+    ByteBuffer direct;
+
+    /** Thread-scoped state is set up by the thread that uses it */
+    @Setup
+    public void setup() {
+      bytes = TraceImplTest.randomTaskIDAndTenantAndParents(parents);
+      base64 = BaseEncoding.base64().encode(bytes);
+      base16 = BaseEncoding.base16().encode(bytes);
+      direct = ByteBuffer.allocateDirect(bytes.length);
+      direct.put(bytes);
+      XTrace.set(bytes);
+    }
+
+    @TearDown
+    public void teardown() {
+      XTrace.stop();
+    }
+  }
+
+  @Benchmark
+  public byte[] bytes(Propagated md) {
+    return XTrace.bytes();
+  }
+
+  @Benchmark
+  public String base64(Propagated md) {
+    return XTrace.base64();
+  }
+
+  @Benchmark
+  public String base16(Propagated md) {
+    return XTrace.base16();
+  }
+
+  @Benchmark
+  public byte[] bytesBounded(Propagated md) {
+    return XTrace.bytesBounded();
+  }
+
+  @Benchmark
+  public int writeToDirect(Propagated md) {
+    md.direct.clear();
+    return XTrace.writeTo(md.direct);
+  }
+
+  @Benchmark
+  public int writeBoundedToDirect(Propagated md) {
+    md.direct.clear();
+    return XTrace.writeBoundedTo(md.direct);
+  }
+
+  @Benchmark
+  public Context readFromDirect(Propagated md) {
+    return Context.readFrom(md.direct, 0, md.bytes.length);
+  }
+
+  @Benchmark
+  public Context parseBytes(Propagated md) {
+    return Context.parse(md.bytes);
+  }
+
+  @Benchmark
+  public Context parseBase64(Propagated md) {
+    return Context.parse(md.base64);
+  }
+
+  @Benchmark
+  public Context parseBase16(Propagated md) {
+    return Context.parseBase16(md.base16);
+  }
+
+}
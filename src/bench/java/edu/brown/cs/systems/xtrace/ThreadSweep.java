@@ -0,0 +1,44 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line once for each of 1, 2, 4,
+ * ..., 64 threads, then prints a summary of how each benchmark scales. Accepts
+ * the usual JMH command line options; any thread count given there is
+ * ignored.
+ */
+public class ThreadSweep {
+
+  static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cmdline = new CommandLineOptions(args);
+    List<String> summary = new ArrayList<String>();
+    for (int threads : THREADS) {
+      OptionsBuilder options = new OptionsBuilder();
+      options.parent(cmdline).threads(threads);
+      for (RunResult result : new Runner(options.build()).run()) {
+        BenchmarkParams params = result.getParams();
+        StringBuilder name = new StringBuilder(params.getBenchmark());
+        for (String key : params.getParamsKeys())
+          name.append(' ').append(key).append('=').append(params.getParam(key));
+        Result<?> score = result.getPrimaryResult();
+        summary.add(String.format("%8d  %-80s %14.3f %s", threads, name, score.getScore(), score.getScoreUnit()));
+      }
+    }
+    System.out.println();
+    System.out.println(String.format("%8s  %-80s %14s", "threads", "benchmark", "score"));
+    for (String line : summary)
+      System.out.println(line);
+  }
+
+}
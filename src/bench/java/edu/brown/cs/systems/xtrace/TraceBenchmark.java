@@ -0,0 +1,95 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of metadata propagation: Trace.set, Trace.join and
+ * Trace.modify. Each benchmark thread propagates its own metadata through a
+ * shared Trace, as an instrumented application would.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class SharedTrace {
+    final Trace trace = new Trace();
+  }
+
+  @State(Scope.Thread)
+  public static class Contexts {
+
+    @Param({ "1", "4" })
+    public int parents;
+
+    byte[] bytes;
+    Context context;
+    Context other;
+
+    @Setup
+    public void setup() {
+      bytes = TraceImplTest.randomTaskIDAndTenantAndParents(parents);
+      context = Context.parse(bytes);
+      other = Context.parse(TraceImplTest.randomTaskIDAndTenantAndParents(parents));
+    }
+  }
+
+  @Benchmark
+  public Context setContext(SharedTrace shared, Contexts contexts) {
+    shared.trace.set(contexts.context);
+    return shared.trace.get();
+  }
+
+  @Benchmark
+  public Context setBytes(SharedTrace shared, Contexts contexts) {
+    shared.trace.set(contexts.bytes);
+    return shared.trace.get();
+  }
+
+  @Benchmark
+  public Context join(SharedTrace shared, Contexts contexts) {
+    shared.trace.set(contexts.context);
+    shared.trace.join(contexts.other);
+    return shared.trace.observe();
+  }
+
+  @Benchmark
+  public Context joinBytes(SharedTrace shared, Contexts contexts) {
+    shared.trace.set(contexts.context);
+    shared.trace.join(contexts.bytes);
+    return shared.trace.observe();
+  }
+
+  /** Modifying a context that was never handed out, so it is modified in place */
+  @Benchmark
+  public Context modifyUnobserved(SharedTrace shared, Contexts contexts) {
+    shared.trace.set(contexts.bytes);
+    shared.trace.modify().setTenantClass(7);
+    return shared.trace.observe();
+  }
+
+  /** Modifying a context that was previously handed out via get(), forcing a copy */
+  @Benchmark
+  public Context modifyObserved(SharedTrace shared, Contexts contexts) {
+    shared.trace.set(contexts.context);
+    shared.trace.get();
+    shared.trace.modify().setTenantClass(7);
+    return shared.trace.observe();
+  }
+
+}
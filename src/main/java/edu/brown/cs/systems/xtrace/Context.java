@@ -1,10 +1,14 @@
 package edu.brown.cs.systems.xtrace;
 
-import com.google.common.io.BaseEncoding;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
 
-import edu.brown.cs.systems.xtrace.Metadata.XTraceMetadata;
-import edu.brown.cs.systems.xtrace.Metadata.XTraceMetadata.Builder;
-import edu.brown.cs.systems.xtrace.Metadata.XTraceMetadataOrBuilder;
+import com.google.common.io.BaseEncoding;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 /**
  * The Context class holds information about an X-Trace task, prior events in an
@@ -16,6 +20,12 @@ import edu.brown.cs.systems.xtrace.Metadata.XTraceMetadataOrBuilder;
  * 
  * Modification of the data contained in a Context is possible via a few
  * privileged API methods, but is otherwise extremely restricted
+ *
+ * The fields of the XTraceMetadata protobuf are held as primitive fields, and
+ * the protobuf wire format is only produced when the context is serialized.
+ * Contexts that are copied by the Manager share their parent ID array until
+ * one of them modifies it. The parent IDs are kept as a set: joins only add IDs
+ * that are not already present.
  * 
  * @author Jonathan Mace
  * 
@@ -32,7 +42,15 @@ public class Context {
   static class Manager {
 
     /** The actual Context that is active for this thread */
-    private ThreadLocal<Context> context = new ThreadLocal<Context>();
+    private final ContextStorage context;
+
+    Manager() {
+      this(ContextStorage.create(XTraceSettings.CONTEXT_STORAGE));
+    }
+
+    Manager(ContextStorage storage) {
+      this.context = storage;
+    }
 
     /** Returns true if a context is currently active for this thread */
     public boolean exists() {
@@ -68,6 +86,15 @@ public class Context {
       context.set(Context.parseBase16(base16_encoded_bytes));
     }
 
+    /**
+     * Sets the thread's current context to one parsed from a range of the
+     * buffer provided. If the bytes are null or invalid, the context will be
+     * cleared
+     */
+    public void set(ByteBuffer buf, int offset, int length) {
+      context.set(Context.readFrom(buf, offset, length));
+    }
+
     /** Returns the thread's context or null if none is set */
     public Context get() {
       Context ctx = context.get();
@@ -77,22 +104,30 @@ public class Context {
     }
 
     /**
-     * Returns the builder for the thread's context such that it can be modified
-     * If there is not currently a context, a new one will be created
+     * Returns the thread's context such that it can be modified. If there is
+     * not currently a context, a new one will be created. If the context was
+     * previously handed out by get(), it is copied before being returned
      */
-    public XTraceMetadata.Builder modify() {
+    public Context modify() {
       Context ctx = context.get();
       if (ctx == null)
-        context.set(ctx = new Context(XTraceMetadata.newBuilder()));
+        context.set(ctx = new Context());
       else if (!ctx.modifiable)
-        context.set(ctx = new Context(ctx.builder.clone()));
-      return ctx.builder;
+        context.set(ctx = new Context(ctx));
+      return ctx;
+    }
+
+    /**
+     * Calls the task with ctx as the thread's context, restoring the previous
+     * context afterwards. With scoped storage, the task runs in a new scope
+     */
+    public <V> V call(Context ctx, Callable<V> task) throws Exception {
+      return context.call(ctx, task);
     }
 
     /** Returns a readonly view on the thread's context or null if none is set */
-    public XTraceMetadataOrBuilder observe() {
-      Context ctx = context.get();
-      return ctx == null ? null : ctx.observe();
+    public Context observe() {
+      return context.get();
     }
 
     /**
@@ -121,14 +156,66 @@ public class Context {
       Context ctx = context.get();
       return ctx == null ? null : ctx.base64();
     }
+
+    /**
+     * Returns the number of bytes writeTo will write for this context, or 0 if
+     * no valid context
+     */
+    public int maxEncodedSize() {
+      Context ctx = context.get();
+      return ctx == null ? 0 : ctx.maxEncodedSize();
+    }
+
+    /**
+     * Writes the byte representation of this context into the buffer, returning
+     * the number of bytes written, or 0 if no valid context
+     */
+    public int writeTo(ByteBuffer buf) {
+      Context ctx = context.get();
+      return ctx == null ? 0 : ctx.writeTo(buf);
+    }
+
+    /**
+     * Returns the byte representation of this context with at most one parent
+     * event ID, or null if no valid context
+     */
+    public byte[] bytesBounded() {
+      Context ctx = context.get();
+      return ctx == null ? null : ctx.bytesBounded();
+    }
+
+    /**
+     * Writes the byte representation of this context with at most one parent
+     * event ID into the buffer, returning the number of bytes written, or 0 if
+     * no valid context
+     */
+    public int writeBoundedTo(ByteBuffer buf) {
+      Context ctx = context.get();
+      return ctx == null ? 0 : ctx.writeBoundedTo(buf);
+    }
   }
 
   /**
    * @return the serialized byte representation of this X-Trace context. Can be
-   *         deserialized with the method XTrace.parse
+   *         deserialized with the method XTrace.parse. The returned array is a
+   *         copy that the caller may modify; use writeTo to avoid the copy
    */
   public byte[] bytes() {
-    return builder.build().toByteArray();
+    return serializedBytes().clone();
+  }
+
+  /**
+   * Returns the cached serialized form of this context, computing it on first
+   * use. The array is shared, so it must not be modified or handed out
+   */
+  byte[] serializedBytes() {
+    byte[] bytes = serialized;
+    if (bytes == null) {
+      bytes = new byte[serializedSize()];
+      encode(ByteBuffer.wrap(bytes));
+      serialized = bytes;
+    }
+    return bytes;
   }
 
   /**
@@ -136,7 +223,10 @@ public class Context {
    *         string
    */
   public String base16() {
-    return BaseEncoding.base16().encode(bytes());
+    String base16 = serializedBase16;
+    if (base16 == null)
+      serializedBase16 = base16 = BaseEncoding.base16().encode(serializedBytes());
+    return base16;
   }
 
   /**
@@ -144,28 +234,502 @@ public class Context {
    *         string
    */
   public String base64() {
-    return BaseEncoding.base64().encode(bytes());
+    String base64 = serializedBase64;
+    if (base64 == null)
+      serializedBase64 = base64 = BaseEncoding.base64().encode(serializedBytes());
+    return base64;
+  }
+
+  /**
+   * @return the number of bytes that writeTo will write for this context, for
+   *         preallocating buffers
+   */
+  public int maxEncodedSize() {
+    byte[] bytes = serialized;
+    return bytes == null ? serializedSize() : bytes.length;
+  }
+
+  /**
+   * Writes the serialized byte representation of this context into the
+   * provided heap or direct buffer, starting at the buffer's current position
+   * and advancing it. No intermediate array is allocated.
+   *
+   * @param buf
+   *          the buffer to write to
+   * @return the number of bytes written
+   * @throws BufferOverflowException
+   *           if the buffer has fewer than maxEncodedSize() bytes remaining, in
+   *           which case nothing is written
+   */
+  public int writeTo(ByteBuffer buf) {
+    byte[] bytes = serialized;
+    if (bytes != null) {
+      buf.put(bytes);
+      return bytes.length;
+    }
+    int size = serializedSize();
+    if (buf.remaining() < size)
+      throw new BufferOverflowException();
+    encode(buf);
+    return size;
+  }
+
+  /**
+   * @return the serialized byte representation of this context, with only the
+   *         first of its parent event IDs. Like bytes(), the returned array is
+   *         always a copy; use writeBoundedTo to avoid the copy
+   */
+  public byte[] bytesBounded() {
+    if (parentCount <= 1)
+      return bytes();
+    byte[] bytes = new byte[serializedSize(1)];
+    encode(ByteBuffer.wrap(bytes), 1);
+    return bytes;
+  }
+
+  /**
+   * Writes the serialized byte representation of this context, with only the
+   * first of its parent event IDs, into the provided heap or direct buffer,
+   * starting at the buffer's current position and advancing it
+   *
+   * @param buf
+   *          the buffer to write to
+   * @return the number of bytes written, at most maxEncodedSize()
+   * @throws BufferOverflowException
+   *           if the buffer has too few bytes remaining, in which case nothing
+   *           is written
+   */
+  public int writeBoundedTo(ByteBuffer buf) {
+    if (parentCount <= 1)
+      return writeTo(buf);
+    int size = serializedSize(1);
+    if (buf.remaining() < size)
+      throw new BufferOverflowException();
+    encode(buf, 1);
+    return size;
+  }
+
+  /** Discards the cached serialized forms of this context, as it is being modified */
+  private void invalidateSerialized() {
+    serialized = null;
+    serializedBase16 = null;
+    serializedBase64 = null;
   }
 
   /** Returns a readonly view on the context */
-  XTraceMetadataOrBuilder observe() {
-    return builder;
+  Context observe() {
+    return this;
   }
 
-  /** Used by the manager to keep track of accesses to the Context */
-  private volatile boolean modifiable = true;
+  boolean hasTaskID() {
+    return hasTaskID;
+  }
+
+  long getTaskID() {
+    return taskID;
+  }
+
+  boolean hasTenantClass() {
+    return hasTenantClass;
+  }
+
+  int getTenantClass() {
+    return tenantClass;
+  }
+
+  /** Returns false if the task was not chosen to be reported, true otherwise */
+  boolean isSampled() {
+    return sampled;
+  }
+
+  int getParentEventIDCount() {
+    return parentCount;
+  }
+
+  long getParentEventID(int index) {
+    if (index >= parentCount)
+      throw new IndexOutOfBoundsException("Parent index " + index + " out of bounds for " + parentCount + " parents");
+    return parents[index];
+  }
+
+  /** Returns a copy of the parent event IDs of this context */
+  List<Long> getParentEventIDList() {
+    List<Long> parentIDs = new ArrayList<Long>(parentCount);
+    for (int i = 0; i < parentCount; i++)
+      parentIDs.add(parents[i]);
+    return parentIDs;
+  }
+
+  /**
+   * Returns those parent event IDs of the other context that are not parent
+   * event IDs of this context, without duplicates, or an empty array if there
+   * are none. Runs in time linear in the number of parents of both contexts
+   */
+  long[] parentEventIDsNotIn(Context other) {
+    int n = parentCount, m = other.parentCount;
+    if (m == 0)
+      return NO_PARENTS;
+    long[] toAdd = new long[m];
+    int numToAdd = 0;
+    if ((long) n * m <= SCAN_THRESHOLD) {
+      // Few enough parents that a scan is cheaper than hashing
+      provided: for (int i = 0; i < m; i++) {
+        long parent = other.parents[i];
+        for (int j = 0; j < n; j++)
+          if (parents[j] == parent)
+            continue provided;
+        for (int j = 0; j < numToAdd; j++)
+          if (toAdd[j] == parent)
+            continue provided;
+        toAdd[numToAdd++] = parent;
+      }
+    } else {
+      ParentSet seen = new ParentSet(n + m);
+      for (int j = 0; j < n; j++)
+        seen.add(parents[j]);
+      for (int i = 0; i < m; i++)
+        if (seen.add(other.parents[i]))
+          toAdd[numToAdd++] = other.parents[i];
+    }
+    return numToAdd == m ? toAdd : numToAdd == 0 ? NO_PARENTS : Arrays.copyOf(toAdd, numToAdd);
+  }
+
+  /** An open-addressing set of longs, sized for a known number of elements */
+  private static final class ParentSet {
+    private final long[] slots;
+    private final int shift;
+    private boolean containsZero = false;
+
+    ParentSet(int expected) {
+      int bits = 64 - Long.numberOfLeadingZeros(Math.max(1, 2 * expected - 1));
+      slots = new long[1 << bits];
+      shift = 64 - bits;
+    }
+
+    /** Returns true if the value was not already in the set */
+    boolean add(long value) {
+      // 0 marks an empty slot, so it is tracked separately
+      if (value == 0) {
+        boolean added = !containsZero;
+        containsZero = true;
+        return added;
+      }
+      int mask = slots.length - 1;
+      for (int i = (int) ((value * 0x9E3779B97F4A7C15L) >>> shift);; i = (i + 1) & mask) {
+        if (slots[i] == value)
+          return false;
+        if (slots[i] == 0) {
+          slots[i] = value;
+          return true;
+        }
+      }
+    }
+  }
 
-  /** The actual protobuf containing the context */
-  private final Builder builder;
+  /*
+   * The following methods modify the context in place, so they should only be
+   * called on a context returned by Manager.modify(). Each discards the cached
+   * serialized forms
+   */
+
+  Context setTaskID(long taskID) {
+    invalidateSerialized();
+    this.taskID = taskID;
+    this.hasTaskID = true;
+    return this;
+  }
+
+  Context setTenantClass(int tenantClass) {
+    invalidateSerialized();
+    this.tenantClass = tenantClass;
+    this.hasTenantClass = true;
+    return this;
+  }
+
+  Context setSampled(boolean sampled) {
+    invalidateSerialized();
+    this.sampled = sampled;
+    this.hasSampled = true;
+    return this;
+  }
+
+  Context clearParentEventID() {
+    invalidateSerialized();
+    if (parentsShared) {
+      parents = NO_PARENTS;
+      parentsShared = false;
+    }
+    parentCount = 0;
+    return this;
+  }
+
+  Context addParentEventID(long parentEventID) {
+    invalidateSerialized();
+    ensureParentCapacity(parentCount + 1);
+    parents[parentCount++] = parentEventID;
+    return this;
+  }
+
+  Context addParentEventIDs(long[] parentEventIDs) {
+    invalidateSerialized();
+    ensureParentCapacity(parentCount + parentEventIDs.length);
+    System.arraycopy(parentEventIDs, 0, parents, parentCount, parentEventIDs.length);
+    parentCount += parentEventIDs.length;
+    return this;
+  }
 
-  /** Create a new Context backed by the provided builder */
-  private Context(Builder builder) {
-    this.builder = builder;
+  /** Makes the parents array unshared, with room for at least the given number of parents */
+  private void ensureParentCapacity(int required) {
+    if (parentsShared || required > parents.length) {
+      int capacity = required > parents.length ? Math.max(required, 2 * parentCount) : parents.length;
+      parents = Arrays.copyOf(parents, capacity);
+      parentsShared = false;
+    }
   }
 
+  /** Field tags of the XTraceMetadata protobuf, as they appear on the wire */
+  private static final int TASKID_TAG = (1 << 3) | 1;
+  private static final int PARENTEVENTID_TAG = (2 << 3) | 1;
+  private static final int PARENTEVENTID_PACKED_TAG = (2 << 3) | 2;
+  private static final int TENANTCLASS_TAG = (3 << 3) | 0;
+  private static final int SAMPLED_TAG = (4 << 3) | 0;
+
+  private static final long[] NO_PARENTS = new long[0];
+
+  /** Joins of up to this many pairs of parents are deduplicated by scanning */
+  private static final int SCAN_THRESHOLD = 64;
+
+  /** Used by the manager to keep track of accesses to the Context */
+  volatile boolean modifiable = true;
+
+  private boolean hasTaskID = false;
+  private long taskID = 0;
+  private boolean hasTenantClass = false;
+  private int tenantClass = 0;
+  private boolean hasSampled = false;
+  private boolean sampled = true;
+
+  /** Parent event IDs; only the first parentCount entries are valid */
+  private long[] parents = NO_PARENTS;
+  private int parentCount = 0;
+
+  /** True if the parents array might also be referenced by another Context */
+  private boolean parentsShared = false;
+
+  /** Raw bytes of any fields not known to this version, re-emitted on serialization */
+  private byte[] unknownFields = null;
+
+  /**
+   * Serialized forms of this context, computed on first use and discarded
+   * whenever the context is modified
+   */
+  private volatile byte[] serialized = null;
+  private volatile String serializedBase16 = null;
+  private volatile String serializedBase64 = null;
+
   /** Create a new empty Context */
   public Context() {
-    this(XTraceMetadata.newBuilder());
+  }
+
+  /** Create a modifiable copy of the provided context */
+  private Context(Context other) {
+    this.hasTaskID = other.hasTaskID;
+    this.taskID = other.taskID;
+    this.hasTenantClass = other.hasTenantClass;
+    this.tenantClass = other.tenantClass;
+    this.hasSampled = other.hasSampled;
+    this.sampled = other.sampled;
+    this.parents = other.parents;
+    this.parentCount = other.parentCount;
+    this.parentsShared = true;
+    this.unknownFields = other.unknownFields;
+  }
+
+  /** Returns the number of bytes in the serialized representation of this context */
+  int serializedSize() {
+    return serializedSize(parentCount);
+  }
+
+  /** Returns the serialized size of this context with at most maxParents parents */
+  private int serializedSize(int maxParents) {
+    int size = 0;
+    if (hasTaskID)
+      size += 9;
+    size += 9 * Math.min(parentCount, maxParents);
+    if (hasTenantClass)
+      size += 1 + varintSize(tenantClass);
+    if (hasSampled)
+      size += 2;
+    if (unknownFields != null)
+      size += unknownFields.length;
+    return size;
+  }
+
+  /**
+   * Writes the protobuf wire format of this context at the buffer's current
+   * position. Fields are written in field number order, as protobuf does.
+   */
+  private void encode(ByteBuffer dest) {
+    encode(dest, parentCount);
+  }
+
+  /** Writes the wire format of this context with only its first maxParents parents */
+  private void encode(ByteBuffer dest, int maxParents) {
+    if (hasTaskID) {
+      dest.put((byte) TASKID_TAG);
+      putFixed64(dest, taskID);
+    }
+    for (int i = 0, n = Math.min(parentCount, maxParents); i < n; i++) {
+      dest.put((byte) PARENTEVENTID_TAG);
+      putFixed64(dest, parents[i]);
+    }
+    if (hasTenantClass) {
+      dest.put((byte) TENANTCLASS_TAG);
+      putVarint(dest, tenantClass);
+    }
+    if (hasSampled) {
+      dest.put((byte) SAMPLED_TAG);
+      dest.put((byte) (sampled ? 1 : 0));
+    }
+    if (unknownFields != null)
+      dest.put(unknownFields);
+  }
+
+  /** Writes a little-endian long regardless of the byte order of the buffer */
+  private static void putFixed64(ByteBuffer dest, long value) {
+    for (int i = 0; i < 8; i++)
+      dest.put((byte) (value >>> (8 * i)));
+  }
+
+  private static void putVarint(ByteBuffer dest, long value) {
+    while ((value & ~0x7FL) != 0) {
+      dest.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    dest.put((byte) value);
+  }
+
+  private static int varintSize(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  /**
+   * Reads the protobuf wire format of an XTraceMetadata directly out of a
+   * buffer, without copying it and without changing the buffer's position
+   */
+  private static final class Reader {
+    private final ByteBuffer buf;
+    private final int limit;
+    private int pos;
+
+    private Reader(ByteBuffer buf, int offset, int length) {
+      this.buf = buf;
+      this.pos = offset;
+      this.limit = offset + length;
+    }
+
+    private boolean hasRemaining() {
+      return pos < limit;
+    }
+
+    private byte readByte() throws InvalidProtocolBufferException {
+      if (pos >= limit)
+        throw new InvalidProtocolBufferException("XTraceMetadata truncated");
+      return buf.get(pos++);
+    }
+
+    private long readVarint() throws InvalidProtocolBufferException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0)
+          return value;
+      }
+      throw new InvalidProtocolBufferException("XTraceMetadata malformed varint");
+    }
+
+    private long readFixed64() throws InvalidProtocolBufferException {
+      skip(8);
+      long value = 0;
+      for (int i = 0; i < 8; i++)
+        value |= (buf.get(pos - 8 + i) & 0xFFL) << (8 * i);
+      return value;
+    }
+
+    private void skip(long length) throws InvalidProtocolBufferException {
+      if (length < 0 || length > limit - pos)
+        throw new InvalidProtocolBufferException("XTraceMetadata truncated");
+      pos += (int) length;
+    }
+
+    private void skipField(int tag) throws InvalidProtocolBufferException {
+      switch (tag & 0x7) {
+      case 0: readVarint(); return;
+      case 1: skip(8); return;
+      case 2: skip(readVarint()); return;
+      case 5: skip(4); return;
+      default: throw new InvalidProtocolBufferException("XTraceMetadata unsupported wire type " + (tag & 0x7));
+      }
+    }
+
+    /** Returns a copy of the bytes between start and the current position */
+    private byte[] copy(int start) {
+      byte[] copy = new byte[pos - start];
+      for (int i = 0; i < copy.length; i++)
+        copy[i] = buf.get(start + i);
+      return copy;
+    }
+  }
+
+  /** Parses the XTraceMetadata wire format found in the provided range of the buffer */
+  private static Context read(ByteBuffer buf, int offset, int length) throws InvalidProtocolBufferException {
+    Context ctx = new Context();
+    Reader in = new Reader(buf, offset, length);
+    while (in.hasRemaining()) {
+      int start = in.pos;
+      int tag = (int) in.readVarint();
+      switch (tag) {
+      case TASKID_TAG:
+        ctx.setTaskID(in.readFixed64());
+        break;
+      case PARENTEVENTID_TAG:
+        ctx.addParentEventID(in.readFixed64());
+        break;
+      case PARENTEVENTID_PACKED_TAG:
+        long packedLength = in.readVarint();
+        if (packedLength < 0 || packedLength % 8 != 0 || packedLength > in.limit - in.pos)
+          throw new InvalidProtocolBufferException("XTraceMetadata malformed packed parent IDs");
+        int end = in.pos + (int) packedLength;
+        while (in.pos < end)
+          ctx.addParentEventID(in.readFixed64());
+        break;
+      case TENANTCLASS_TAG:
+        ctx.setTenantClass((int) in.readVarint());
+        break;
+      case SAMPLED_TAG:
+        ctx.setSampled(in.readVarint() != 0);
+        break;
+      default:
+        if (tag == 0)
+          throw new InvalidProtocolBufferException("XTraceMetadata invalid tag");
+        in.skipField(tag);
+        byte[] unknown = in.copy(start);
+        if (ctx.unknownFields == null) {
+          ctx.unknownFields = unknown;
+        } else {
+          byte[] merged = Arrays.copyOf(ctx.unknownFields, ctx.unknownFields.length + unknown.length);
+          System.arraycopy(unknown, 0, merged, ctx.unknownFields.length, unknown.length);
+          ctx.unknownFields = merged;
+        }
+      }
+    }
+    return ctx;
   }
 
   /**
@@ -182,7 +746,33 @@ public class Context {
     if (bytes == null)
       return null;
     try {
-      return new Context(XTraceMetadata.newBuilder().mergeFrom(bytes));
+      return read(ByteBuffer.wrap(bytes), 0, bytes.length);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Parse the protocol buffers bytes found in a range of the provided heap or
+   * direct buffer, reading them in place. The buffer's position, limit and
+   * contents are not changed.
+   *
+   * @param buf
+   *          a buffer containing the serialized metadata, may be null
+   * @param offset
+   *          the index in the buffer of the first byte of the metadata
+   * @param length
+   *          the number of bytes of metadata
+   * @return a new context, or null if the buffer was null, the range was
+   *         invalid or the bytes could not be deserialized
+   */
+  public static Context readFrom(ByteBuffer buf, int offset, int length) {
+    if (buf == null)
+      return null;
+    try {
+      if (offset < 0 || length < 0 || offset > buf.limit() || length > buf.limit() - offset)
+        return null;
+      return read(buf, offset, length);
     } catch (Exception e) {
       return null;
     }
@@ -200,7 +790,10 @@ public class Context {
     if (string == null)
       return null;
     try {
-      return parse(BaseEncoding.base64().decode(string));
+      Context ctx = parse(BaseEncoding.base64().decode(string));
+      if (ctx != null)
+        ctx.serializedBase64 = string;
+      return ctx;
     } catch (Exception e) {
       return null;
     }
@@ -218,10 +811,13 @@ public class Context {
     if (string == null)
       return null;
     try {
-      return parse(BaseEncoding.base16().decode(string));
+      Context ctx = parse(BaseEncoding.base16().decode(string));
+      if (ctx != null)
+        ctx.serializedBase16 = string;
+      return ctx;
     } catch (Exception e) {
       return null;
     }
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,264 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Where a Context.Manager keeps each thread's current context. Selected with
+ * xtrace.client.context-storage:
+ *
+ * thread-local keeps the context in a ThreadLocal. New threads start without a
+ * context.
+ *
+ * inheritable keeps the context in an InheritableThreadLocal, so threads,
+ * including virtual threads, start with the context of the thread that created
+ * them. This leaks into thread pools: a pooled thread inherits the context of
+ * whichever thread happened to create it and keeps it between tasks, so a task
+ * submitted without a context may run in an unrelated one. XTraceExecutorService
+ * gives each task submitted with a context that context, but applications that
+ * create pool threads lazily from traced threads should prefer thread-local or
+ * scoped storage.
+ *
+ * scoped keeps the context in a holder bound to a ScopedValue by XTrace.call or
+ * XTrace.run, so the many short-lived virtual threads of a structured task do
+ * not each add an entry to a thread-local map, and child tasks forked within
+ * the scope see the context it was bound with. A child that sets its own
+ * context keeps it in the scope's holder, which is discarded with the scope.
+ * Outside a scope, the context is kept in a ThreadLocal. ScopedValue is looked
+ * up reflectively; if the running JVM does not have it, thread-local storage is
+ * used instead.
+ */
+abstract class ContextStorage {
+  private static final Logger LOG = Logger.getLogger(ContextStorage.class);
+
+  /** Returns the current thread's context, or null if there is none */
+  abstract Context get();
+
+  /** Sets the current thread's context */
+  abstract void set(Context ctx);
+
+  /**
+   * Calls the task with ctx as the current context, restoring the previous
+   * context afterwards. The caller keeps its reference to ctx, so the task
+   * copies it before modifying it
+   */
+  <V> V call(Context ctx, Callable<V> task) throws Exception {
+    if (ctx != null)
+      ctx.modifiable = false;
+    Context previous = get();
+    set(ctx);
+    try {
+      return task.call();
+    } finally {
+      set(previous);
+    }
+  }
+
+  /** Returns the storage with the configured name, falling back to thread-local storage */
+  static ContextStorage create(String name) {
+    if ("thread-local".equals(name))
+      return new Local();
+    else if ("inheritable".equals(name))
+      return new Inheritable();
+    else if ("scoped".equals(name)) {
+      if (Scoped.SUPPORTED)
+        return new Scoped();
+      LOG.warn("ScopedValue is not available in this JVM, using thread-local X-Trace context storage");
+      return new Local();
+    }
+    LOG.warn("Unknown X-Trace context storage " + name + ", using thread-local");
+    return new Local();
+  }
+
+  static final class Local extends ContextStorage {
+    private final ThreadLocal<Context> context = new ThreadLocal<Context>();
+
+    Context get() {
+      return context.get();
+    }
+
+    void set(Context ctx) {
+      context.set(ctx);
+    }
+  }
+
+  static final class Inheritable extends ContextStorage {
+    private final ThreadLocal<Context> context = new InheritableThreadLocal<Context>() {
+      /** Runs in the parent thread; the child must copy the context before modifying it */
+      @Override
+      protected Context childValue(Context parent) {
+        if (parent != null)
+          parent.modifiable = false;
+        return parent;
+      }
+    };
+
+    Context get() {
+      return context.get();
+    }
+
+    void set(Context ctx) {
+      context.set(ctx);
+    }
+  }
+
+  static final class Scoped extends ContextStorage {
+
+    /**
+     * The operations of a ScopedValue that the storage uses. Threads forked
+     * within run, eg. by a StructuredTaskScope, see the bound value too
+     */
+    interface Binding {
+      /** Returns the value bound for the current thread, or null if none is */
+      Object get();
+
+      /** Runs the task with value bound */
+      void run(Object value, Runnable task) throws Throwable;
+    }
+
+    /**
+     * The context of one scope. Only the thread that bound the scope changes
+     * context; threads that inherit the binding see the context the scope was
+     * bound with until they set their own, which is kept in forks so that it
+     * lives and dies with the scope
+     */
+    private static final class Holder {
+      final Thread owner;
+      final Context inherited;
+      volatile Context context;
+      volatile ConcurrentHashMap<Thread, Context> forks = null;
+
+      Holder(Thread owner, Context context) {
+        this.owner = owner;
+        this.inherited = context;
+        this.context = context;
+      }
+
+      synchronized ConcurrentHashMap<Thread, Context> forks() {
+        if (forks == null)
+          forks = new ConcurrentHashMap<Thread, Context>();
+        return forks;
+      }
+    }
+
+    /** Stands in for a null context set by a forked thread, as the map has no nulls */
+    private static final Context CLEARED = new Context();
+
+    /** Binds holders to a java.lang.ScopedValue, found reflectively */
+    private static final class ScopedValueBinding implements Binding {
+      private static final MethodHandle IS_BOUND;
+      private static final MethodHandle GET;
+      private static final MethodHandle WHERE;
+      private static final MethodHandle RUN;
+
+      static {
+        MethodHandle isBound = null, get = null, where = null, run = null;
+        try {
+          Class<?> scopedValue = Class.forName("java.lang.ScopedValue");
+          Class<?> carrier = Class.forName("java.lang.ScopedValue$Carrier");
+          Object key = scopedValue.getMethod("newInstance").invoke(null);
+          MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+          isBound = lookup.findVirtual(scopedValue, "isBound", MethodType.methodType(boolean.class)).bindTo(key);
+          get = lookup.findVirtual(scopedValue, "get", MethodType.methodType(Object.class)).bindTo(key);
+          where = MethodHandles.insertArguments(
+              lookup.findStatic(scopedValue, "where", MethodType.methodType(carrier, scopedValue, Object.class)), 0, key);
+          run = lookup.findVirtual(carrier, "run", MethodType.methodType(void.class, Runnable.class));
+        } catch (Throwable t) {
+          isBound = null;
+        }
+        IS_BOUND = isBound;
+        GET = get;
+        WHERE = where;
+        RUN = run;
+      }
+
+      public Object get() {
+        try {
+          return (boolean) IS_BOUND.invokeExact() ? (Object) GET.invokeExact() : null;
+        } catch (Throwable t) {
+          throw new IllegalStateException(t);
+        }
+      }
+
+      public void run(Object value, Runnable task) throws Throwable {
+        RUN.invoke(WHERE.invoke(value), task);
+      }
+    }
+
+    static final boolean SUPPORTED = ScopedValueBinding.IS_BOUND != null;
+
+    private final Binding binding;
+
+    /** Contexts of threads outside any scope */
+    private final ThreadLocal<Context> unscoped = new ThreadLocal<Context>();
+
+    Scoped() {
+      this(new ScopedValueBinding());
+    }
+
+    Scoped(Binding binding) {
+      this.binding = binding;
+    }
+
+    Context get() {
+      Holder scope = (Holder) binding.get();
+      if (scope == null)
+        return unscoped.get();
+      Thread current = Thread.currentThread();
+      if (scope.owner == current)
+        return scope.context;
+      ConcurrentHashMap<Thread, Context> forks = scope.forks;
+      Context mine = forks == null ? null : forks.get(current);
+      return mine == null ? scope.inherited : mine == CLEARED ? null : mine;
+    }
+
+    void set(Context ctx) {
+      Holder scope = (Holder) binding.get();
+      Thread current = Thread.currentThread();
+      if (scope == null)
+        unscoped.set(ctx);
+      else if (scope.owner == current)
+        scope.context = ctx;
+      else
+        scope.forks().put(current, ctx == null ? CLEARED : ctx);
+    }
+
+    /** Binds a new scope for the task, whose context starts as ctx */
+    @Override
+    <V> V call(Context ctx, final Callable<V> task) throws Exception {
+      if (ctx != null)
+        ctx.modifiable = false;
+      final Object[] result = new Object[1];
+      final Exception[] thrown = new Exception[1];
+      Runnable body = new Runnable() {
+        public void run() {
+          try {
+            result[0] = task.call();
+          } catch (Exception e) {
+            thrown[0] = e;
+          }
+        }
+      };
+      try {
+        binding.run(new Holder(Thread.currentThread(), ctx), body);
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Error e) {
+        throw e;
+      } catch (Throwable t) {
+        throw new IllegalStateException(t);
+      }
+      if (thrown[0] != null)
+        throw thrown[0];
+      @SuppressWarnings("unchecked")
+      V value = (V) result[0];
+      return value;
+    }
+  }
+
+}
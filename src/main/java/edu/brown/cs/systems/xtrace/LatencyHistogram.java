@@ -0,0 +1,60 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds with power-of-two buckets. Bucket b
+ * counts latencies in [2^(b-1), 2^b), so percentiles are accurate to within a
+ * factor of two, which is enough to tell microseconds from milliseconds.
+ */
+final class LatencyHistogram {
+
+  private final AtomicLongArray buckets = new AtomicLongArray(64);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long nanos) {
+    if (nanos < 0)
+      nanos = 0;
+    buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+    count.incrementAndGet();
+    total.addAndGet(nanos);
+    long current;
+    while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos))
+      continue;
+  }
+
+  public long count() {
+    return count.get();
+  }
+
+  public long mean() {
+    long n = count.get();
+    return n == 0 ? 0 : total.get() / n;
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  /**
+   * Returns an upper bound on the latency below which the fraction p of
+   * recorded latencies fall, or 0 if nothing has been recorded
+   */
+  public long percentile(double p) {
+    long n = count.get();
+    if (n == 0)
+      return 0;
+    long rank = (long) Math.ceil(p * n);
+    long seen = 0;
+    for (int b = 0; b < 64; b++) {
+      seen += buckets.get(b);
+      if (seen >= rank)
+        return Math.min(b == 0 ? 0 : (1L << b) - 1, max.get());
+    }
+    return max.get();
+  }
+
+}
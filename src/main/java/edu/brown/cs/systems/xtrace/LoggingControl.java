@@ -0,0 +1,260 @@
+package edu.brown.cs.systems.xtrace;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * Decides which agents may log, and lets the decision be changed at runtime
+ * through JMX or an override file, without restarting the process.
+ *
+ * Every agent has a Switch: a volatile flag that the agent's loggers check
+ * before doing anything else, so a disabled logger costs a single volatile
+ * read. The flags are recomputed whenever the settings change.
+ *
+ * The override file, xtrace.client.reporting.override-file, contains any of the
+ * keys on, logging-default, logging-enabled and logging-disabled, with the same
+ * meaning as under xtrace.client.reporting; omitted keys take their values from
+ * the X-Trace configuration. The file's directory is watched for changes, and
+ * creating, changing or deleting the file replaces the current settings,
+ * including changes made through JMX.
+ */
+public class LoggingControl implements LoggingControlMBean {
+  private static final Logger LOG = Logger.getLogger(LoggingControl.class);
+
+  /** The flag checked by an agent's loggers */
+  static final class Switch {
+    final String agent;
+    volatile boolean enabled;
+
+    private Switch(String agent) {
+      this.agent = agent;
+    }
+  }
+
+  /** An immutable snapshot of the settings */
+  private static final class State {
+    final boolean on;
+    final boolean loggingDefault;
+    final Set<String> enabled;
+    final Set<String> disabled;
+
+    State(boolean on, boolean loggingDefault, Set<String> enabled, Set<String> disabled) {
+      this.on = on;
+      this.loggingDefault = loggingDefault;
+      this.enabled = Collections.unmodifiableSet(new HashSet<String>(enabled));
+      this.disabled = Collections.unmodifiableSet(new HashSet<String>(disabled));
+    }
+
+    boolean canLog(String agent) {
+      if (!on)
+        return false;
+      else if (agent == null)
+        return loggingDefault;
+      else if (loggingDefault)
+        return !disabled.contains(agent);
+      else
+        return enabled.contains(agent);
+    }
+  }
+
+  static final LoggingControl INSTANCE = create();
+
+  private final ConcurrentMap<String, Switch> switches = new ConcurrentHashMap<String, Switch>();
+  private final Switch defaultSwitch = new Switch(null);
+  private final File overrideFile;
+  private volatile State state;
+
+  LoggingControl(File overrideFile) {
+    this.overrideFile = overrideFile;
+    update(configured(ConfigFactory.empty()));
+    if (overrideFile != null)
+      reload();
+  }
+
+  private static LoggingControl create() {
+    String path = XTraceSettings.REPORTING_OVERRIDE_FILE;
+    LoggingControl control = new LoggingControl(path.isEmpty() ? null : new File(path));
+    control.register();
+    if (control.overrideFile != null)
+      control.watch();
+    return control;
+  }
+
+  /** Registers this object with the platform MBean server */
+  private void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+          new ObjectName("edu.brown.cs.systems.xtrace:type=LoggingControl"));
+    } catch (Exception e) {
+      LOG.warn("Unable to register X-Trace logging control with JMX", e);
+    }
+  }
+
+  /**
+   * Starts a daemon thread that reloads the override file whenever it is
+   * created, changed or deleted. The thread stops when the returned watch
+   * service is closed
+   *
+   * @return the watch service, or null if the file's directory cannot be watched
+   */
+  WatchService watch() {
+    final Path file = overrideFile.getAbsoluteFile().toPath();
+    final WatchService watcher;
+    try {
+      watcher = file.getFileSystem().newWatchService();
+      file.getParent().register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+    } catch (IOException e) {
+      LOG.warn("Unable to watch " + file.getParent() + "; changes to " + file + " will be ignored", e);
+      return null;
+    }
+    Thread thread = new Thread("X-Trace logging control") {
+      @Override
+      public void run() {
+        while (true) {
+          WatchKey key;
+          try {
+            key = watcher.take();
+          } catch (InterruptedException e) {
+            return;
+          } catch (ClosedWatchServiceException e) {
+            return;
+          }
+          boolean changed = false;
+          for (WatchEvent<?> event : key.pollEvents())
+            if (event.kind() == OVERFLOW || file.getFileName().equals(event.context()))
+              changed = true;
+          if (changed)
+            reload();
+          if (!key.reset()) {
+            LOG.warn("Stopped watching " + file.getParent() + " as it is no longer accessible");
+            return;
+          }
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+    return watcher;
+  }
+
+  /** Returns settings from the override config, falling back to the X-Trace configuration */
+  private static State configured(Config override) {
+    boolean on = override.hasPath("on") ? override.getBoolean("on") : XTraceSettings.REPORTING_ON;
+    boolean loggingDefault = override.hasPath("logging-default") ? override.getBoolean("logging-default")
+        : XTraceSettings.REPORTING_ENABLED_DEFAULT;
+    Set<String> enabled = override.hasPath("logging-enabled") ? new HashSet<String>(override.getStringList("logging-enabled"))
+        : XTraceSettings.REPORTING_ENABLED;
+    Set<String> disabled = override.hasPath("logging-disabled") ? new HashSet<String>(
+        override.getStringList("logging-disabled")) : XTraceSettings.REPORTING_DISABLED;
+    return new State(on, loggingDefault, enabled, disabled);
+  }
+
+  /** Installs new settings and recomputes every switch */
+  private synchronized void update(State newState) {
+    state = newState;
+    defaultSwitch.enabled = newState.canLog(null);
+    for (Switch s : switches.values())
+      s.enabled = newState.canLog(s.agent);
+  }
+
+  /** Returns the switch for the agent, or for the default logger if agent is null */
+  Switch forAgent(String agent) {
+    if (agent == null)
+      return defaultSwitch;
+    Switch s = switches.get(agent);
+    if (s != null)
+      return s;
+    synchronized (this) {
+      s = switches.get(agent);
+      if (s == null) {
+        s = new Switch(agent);
+        s.enabled = state.canLog(agent);
+        switches.put(agent, s);
+      }
+      return s;
+    }
+  }
+
+  public boolean canLog(String agent) {
+    return state.canLog(agent);
+  }
+
+  public boolean isReportingOn() {
+    return state.on;
+  }
+
+  public synchronized void setReportingOn(boolean on) {
+    State current = state;
+    update(new State(on, current.loggingDefault, current.enabled, current.disabled));
+  }
+
+  public boolean isLoggingDefault() {
+    return state.loggingDefault;
+  }
+
+  public synchronized void setLoggingDefault(boolean enabled) {
+    State current = state;
+    update(new State(current.on, enabled, current.enabled, current.disabled));
+  }
+
+  public String[] getEnabledAgents() {
+    return state.enabled.toArray(new String[0]);
+  }
+
+  public String[] getDisabledAgents() {
+    return state.disabled.toArray(new String[0]);
+  }
+
+  public synchronized void enableAgent(String agent) {
+    State current = state;
+    Set<String> enabled = new HashSet<String>(current.enabled);
+    Set<String> disabled = new HashSet<String>(current.disabled);
+    enabled.add(agent);
+    disabled.remove(agent);
+    update(new State(current.on, current.loggingDefault, enabled, disabled));
+  }
+
+  public synchronized void disableAgent(String agent) {
+    State current = state;
+    Set<String> enabled = new HashSet<String>(current.enabled);
+    Set<String> disabled = new HashSet<String>(current.disabled);
+    enabled.remove(agent);
+    disabled.add(agent);
+    update(new State(current.on, current.loggingDefault, enabled, disabled));
+  }
+
+  public synchronized void reload() {
+    if (overrideFile == null)
+      return;
+    try {
+      Config override = overrideFile.exists() ? ConfigFactory.parseFile(overrideFile) : ConfigFactory.empty();
+      update(configured(override));
+    } catch (Exception e) {
+      LOG.warn("Unable to read X-Trace logging overrides from " + overrideFile, e);
+    }
+  }
+
+}
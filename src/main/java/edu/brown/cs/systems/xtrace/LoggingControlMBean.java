@@ -0,0 +1,35 @@
+package edu.brown.cs.systems.xtrace;
+
+/**
+ * JMX interface for turning X-Trace logging on and off at runtime, registered
+ * as edu.brown.cs.systems.xtrace:type=LoggingControl
+ */
+public interface LoggingControlMBean {
+
+  /** Is XTrace globally enabled */
+  public boolean isReportingOn();
+
+  public void setReportingOn(boolean on);
+
+  /** Is logging enabled for agents that are not explicitly enabled or disabled */
+  public boolean isLoggingDefault();
+
+  public void setLoggingDefault(boolean enabled);
+
+  public String[] getEnabledAgents();
+
+  public String[] getDisabledAgents();
+
+  /** Enables logging for the agent, overriding the default */
+  public void enableAgent(String agent);
+
+  /** Disables logging for the agent, overriding the default */
+  public void disableAgent(String agent);
+
+  /** Returns true if the agent's loggers currently send reports */
+  public boolean canLog(String agent);
+
+  /** Re-reads the override file, if one is configured */
+  public void reload();
+
+}
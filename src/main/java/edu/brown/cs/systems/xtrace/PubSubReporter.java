@@ -1,11 +1,17 @@
 package edu.brown.cs.systems.xtrace;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.Message;
 
 import edu.brown.cs.systems.pubsub.Publisher;
 import edu.brown.cs.systems.pubsub.Settings;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
 import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3.Builder;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReportBatch;
+import edu.brown.cs.systems.xtrace.RingBuffer.OverflowPolicy;
 
 /**
  * The default implementation of X-Trace Logger using the
@@ -17,17 +23,91 @@ import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3.Builder;
 class PubSubReporter extends Reporter implements Runnable {
 
   /**
-   * Queue for outgoing reports. For now, allow unbounded growth - the ZMQ
-   * handling thread will never block on the socket (ZMQ handles that with the
-   * HWM setting) so the only way this queue can grow large is if the handler
-   * thread is descheduled for large amounts of time
+   * A slot in the outgoing buffer. Holds either a report built by the caller,
+   * or in deferred mode, the raw arguments of a report call, which the worker
+   * thread turns into a report
+   */
+  static final class PendingReport {
+    Builder builder;
+    String agent;
+    String label;
+    Object[] fields;
+    String[] tags;
+    Thread thread;
+    long timestamp;
+    long hrt;
+    long taskID;
+    boolean hasTenantClass;
+    int tenantClass;
+    long[] parents;
+    int parentCount;
+    long eventID;
+
+    /** When the report was queued, for reports whose queueing latency is sampled */
+    long enqueued;
+
+    /** Copies the fields of the metadata, which may be modified once the call returns */
+    void capture(Context metadata) {
+      taskID = metadata.getTaskID();
+      hasTenantClass = metadata.hasTenantClass();
+      tenantClass = metadata.getTenantClass();
+      parentCount = metadata.getParentEventIDCount();
+      if (parentCount > 0 && (parents == null || parents.length < parentCount))
+        parents = new long[Math.max(4, parentCount)];
+      for (int i = 0; i < parentCount; i++)
+        parents[i] = metadata.getParentEventID(i);
+    }
+
+    void clear() {
+      builder = null;
+      agent = null;
+      label = null;
+      fields = null;
+      tags = null;
+      thread = null;
+    }
+  }
+
+  /**
+   * Buffer for outgoing reports. The ZMQ handling thread will never block on
+   * the socket (ZMQ handles that with the HWM setting), but if it is
+   * descheduled or reports arrive faster than it can publish them, the buffer
+   * fills and the configured overflow policy decides which reports are dropped
    */
-  protected final BlockingQueue<Builder> outgoing = new LinkedBlockingQueue<Builder>();
+  protected final RingBuffer<PendingReport> outgoing = new RingBuffer<PendingReport>(
+      XTraceSettings.REPORTING_QUEUE_CAPACITY, OverflowPolicy.parse(XTraceSettings.REPORTING_QUEUE_OVERFLOW_POLICY),
+      XTraceSettings.REPORTING_QUEUE_BLOCK_TIMEOUT, TimeUnit.MILLISECONDS, new RingBuffer.Factory<PendingReport>() {
+        public PendingReport create() {
+          return new PendingReport();
+        }
+
+        public void reset(PendingReport pending) {
+          pending.clear();
+        }
+      });
+
+  /** Reports that could not be built by the worker thread, eg. because toString threw */
+  protected final AtomicLong failed = new AtomicLong();
+
+  /** If true, reports are built on the worker thread instead of the caller's */
+  protected boolean deferred = XTraceSettings.REPORTING_DEFERRED;
+
+  /** Limits on the batches of reports published by the worker thread */
+  protected int batchMaxReports = XTraceSettings.REPORTING_BATCH_MAX_REPORTS;
+  protected final int batchMaxBytes = XTraceSettings.REPORTING_BATCH_MAX_BYTES;
+  protected final long batchLingerNanos = TimeUnit.MILLISECONDS.toNanos(XTraceSettings.REPORTING_BATCH_LINGER);
+
+  /** Compresses batches, or null if batches are published uncompressed */
+  protected final ReportBatchCodec codec = XTraceSettings.REPORTING_BATCH_COMPRESS ? new ReportBatchCodec() : null;
+
   protected volatile boolean running = false;
   protected volatile boolean alive = true;
   protected final Thread worker;
-  private String hostname = null;
-  private int port = 0;
+  protected String hostname = null;
+  protected int port = 0;
+
+  /** The publisher used by the worker thread, once it has started */
+  protected volatile Publisher publisher = null;
 
   /**
    * Creates a new log implementation, using the default pubsub server hostname
@@ -52,11 +132,21 @@ class PubSubReporter extends Reporter implements Runnable {
    *          the port of the pubsub server to publish to
    */
   public PubSubReporter(Trace trace, String hostname, int port) {
+    this(trace, hostname, port, true);
+  }
+
+  /**
+   * Creates a new log implementation whose worker thread is only started now
+   * if start is true. Subclasses that need to finish initializing before the
+   * worker runs must start it themselves
+   */
+  protected PubSubReporter(Trace trace, String hostname, int port, boolean start) {
     super(trace);
     this.hostname = hostname;
     this.port = port;
     worker = new Thread(this);
-    worker.start();
+    if (start)
+      worker.start();
   }
 
   /** Shuts down this logger and stops sending messages */
@@ -70,10 +160,155 @@ class PubSubReporter extends Reporter implements Runnable {
     return alive;
   }
 
+  @Override
+  public void report(String agent, String label, Object... fields) {
+    if (deferred)
+      defer(agent, label, fields, null);
+    else
+      super.report(agent, label, fields);
+  }
+
+  @Override
+  public void reportTagged(String agent, String label, String... tags) {
+    if (deferred)
+      defer(agent, label, null, tags);
+    else
+      super.reportTagged(agent, label, tags);
+  }
+
+  /**
+   * Captures the arguments of a report call, the time, thread and a snapshot
+   * of the current metadata, leaving the worker thread to build the report
+   */
+  private void defer(String agent, String label, Object[] fields, String[] tags) {
+    if (!alive || !valid())
+      return;
+    metrics.created.increment();
+
+    long timestamp = System.currentTimeMillis();
+    long hrt = System.nanoTime();
+    long position = outgoing.claim();
+    if (position < 0)
+      return;
+
+    PendingReport pending = outgoing.get(position);
+    pending.agent = agent;
+    pending.label = label;
+    pending.fields = fields;
+    pending.tags = tags;
+    pending.thread = Thread.currentThread();
+    pending.timestamp = timestamp;
+    pending.hrt = hrt;
+    pending.capture(xtrace.observe());
+    if (pending.parentCount > 0)
+      pending.eventID = advanceCausality();
+    if (ReporterMetrics.sampleLatency(position))
+      pending.enqueued = System.nanoTime();
+    outgoing.publish(position);
+    metrics.queued.increment();
+  }
+
   @Override
   protected void doSend(Builder report) {
-    if (alive)
-      outgoing.add(report);
+    trySend(report);
+  }
+
+  /** Queues the report, returning false if the queue's overflow policy discarded it */
+  @Override
+  protected boolean trySend(Builder report) {
+    if (!alive)
+      return false;
+    long position = outgoing.claim();
+    if (position < 0)
+      return false;
+    PendingReport pending = outgoing.get(position);
+    pending.builder = report;
+    if (ReporterMetrics.sampleLatency(position))
+      pending.enqueued = System.nanoTime();
+    outgoing.publish(position);
+    metrics.queued.increment();
+    return true;
+  }
+
+  @Override
+  public long getDroppedReports() {
+    return outgoing.dropped() + failed.get();
+  }
+
+  @Override
+  public int getQueueDepth() {
+    return outgoing.size();
+  }
+
+  /** Removes and builds the oldest report, or returns null if there is none */
+  Builder poll() {
+    long position;
+    while ((position = outgoing.acquire()) >= 0) {
+      Builder report = build(position);
+      if (report != null)
+        return report;
+    }
+    return null;
+  }
+
+  /** Removes and builds the oldest report, waiting up to the specified time for one */
+  Builder poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    long position;
+    while ((position = outgoing.acquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) >= 0) {
+      Builder report = build(position);
+      if (report != null)
+        return report;
+    }
+    return null;
+  }
+
+  /** Removes and builds the oldest report, waiting for one if there is none */
+  Builder take() throws InterruptedException {
+    Builder report;
+    while ((report = poll(1, TimeUnit.SECONDS)) == null)
+      continue;
+    return report;
+  }
+
+  /**
+   * Builds the report in an acquired slot and releases the slot
+   *
+   * @return the report, or null if it could not be built
+   */
+  private Builder build(long position) {
+    PendingReport pending = outgoing.get(position);
+    if (ReporterMetrics.sampleLatency(position))
+      metrics.queueLatency.record(System.nanoTime() - pending.enqueued);
+    try {
+      if (pending.builder != null)
+        return pending.builder;
+
+      Builder builder = createReport(pending.thread, pending.timestamp, pending.hrt);
+      builder.setLabel(pending.label);
+      if (pending.fields != null)
+        addFields(builder, pending.fields);
+      if (pending.tags != null)
+        builder.addAllTags(Arrays.asList(pending.tags));
+      builder.setAgent(pending.agent);
+      if (decorator != null)
+        decorator.decorate(builder);
+      builder.setTaskID(pending.taskID);
+      if (pending.hasTenantClass)
+        builder.setTenantClass(pending.tenantClass);
+      if (pending.parentCount > 0) {
+        for (int i = 0; i < pending.parentCount; i++)
+          builder.addParentEventID(pending.parents[i]);
+        builder.setEventID(pending.eventID);
+      }
+      return builder;
+    } catch (RuntimeException e) {
+      failed.incrementAndGet();
+      return null;
+    } finally {
+      pending.clear();
+      outgoing.release(position);
+    }
   }
 
   @Override
@@ -84,20 +319,88 @@ class PubSubReporter extends Reporter implements Runnable {
     if (port==0)
       port = Settings.CLIENT_PUBLISH_PORT;
     Publisher publisher = new Publisher(hostname, port);
+    this.publisher = publisher;
     try {
       running = true;
       while (alive && !Thread.currentThread().isInterrupted()) {
-        publisher.publish(XTraceSettings.PUBSUB_TOPIC, outgoing.take().build());
+        publish(publisher, nextBatch(take(), batchLingerNanos));
       }
     } catch (Exception e) {
       alive = false;
     }
 
     // Clear the queue
-    while (!outgoing.isEmpty())
-      publisher.publish(XTraceSettings.PUBSUB_TOPIC, outgoing.poll().build());
+    Builder remaining;
+    while ((remaining = poll()) != null)
+      publish(publisher, nextBatch(remaining, 0));
 
     // Close the publisher
+    closePublisher(publisher);
+  }
+
+  /**
+   * Builds a batch from the first report plus any further reports that arrive
+   * within lingerNanos, closing the batch once it reaches the configured number
+   * of reports or bytes
+   */
+  XTraceReportBatch.Builder nextBatch(Builder first, long lingerNanos) {
+    XTraceReportBatch.Builder batch = XTraceReportBatch.newBuilder();
+    XTraceReport3 report = first.build();
+    batch.addReports(report);
+    int bytes = report.getSerializedSize();
+    long deadline = System.nanoTime() + lingerNanos;
+    try {
+      while (batch.getReportsCount() < batchMaxReports && bytes < batchMaxBytes) {
+        Builder next = poll();
+        if (next == null) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0 || (next = poll(remaining, TimeUnit.NANOSECONDS)) == null)
+            break;
+        }
+        report = next.build();
+        batch.addReports(report);
+        bytes += report.getSerializedSize();
+      }
+    } catch (InterruptedException e) {
+      // Publish what we have; the worker loop sees the interrupt
+      Thread.currentThread().interrupt();
+    }
+    return batch;
+  }
+
+  /**
+   * Publishes a lone report as-is, so that batching costs nothing at low load,
+   * and larger batches compressed unless compression is disabled
+   */
+  protected void publish(Publisher publisher, XTraceReportBatch.Builder batch) {
+    publish(publisher, batch.build());
+  }
+
+  /**
+   * Publishes a built batch. Building a batch of built reports serializes
+   * nothing, so subclasses can keep the batch without encoding it again
+   */
+  protected final void publish(Publisher publisher, XTraceReportBatch batch) {
+    Message message;
+    String topic;
+    if (batch.getReportsCount() == 1) {
+      message = batch.getReports(0);
+      topic = XTraceSettings.PUBSUB_TOPIC;
+    } else if (codec != null) {
+      message = codec.encode(batch.getReportsList());
+      topic = XTraceSettings.PUBSUB_COMPRESSED_BATCH_TOPIC;
+    } else {
+      message = batch;
+      topic = XTraceSettings.PUBSUB_BATCH_TOPIC;
+    }
+    publisher.publish(topic, message);
+    metrics.published.add(batch.getReportsCount());
+    metrics.messages.increment();
+    metrics.bytes.add(message.getSerializedSize());
+  }
+
+  /** Called by the worker thread once it has published everything */
+  protected void closePublisher(Publisher publisher) {
     publisher.close();
   }
 
@@ -0,0 +1,165 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceCompressedBatch;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceDictionaryBatch;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+
+/**
+ * Encodes batches of reports compactly for the wire. Every report repeats the
+ * host, process name, thread name and agent, which dominate the size of reports
+ * with short labels, so these are replaced by references into a dictionary of
+ * the strings used in the batch, and the result is compressed with DEFLATE.
+ *
+ * The dictionary is per batch rather than per connection, because pubsub
+ * subscribers can join at any time and receive no earlier messages. A codec
+ * reuses its compression buffers, so each thread that encodes or decodes should
+ * have its own, or share one and accept the synchronization. Buffers grown for
+ * an unusually large batch are released afterwards.
+ */
+public final class ReportBatchCodec {
+
+  /** Reject batches claiming to be larger than protobuf's default message size limit */
+  private static final int MAX_SIZE = 64 << 20;
+
+  /** Initial size of the buffer, and the largest size kept between batches */
+  private static final int INITIAL_BUFFER = 4096;
+  static final int MAX_RETAINED_BUFFER = 1 << 20;
+
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private final Inflater inflater = new Inflater();
+  private byte[] buffer = new byte[INITIAL_BUFFER];
+
+  /** Dictionary-encodes and compresses the reports */
+  public synchronized XTraceCompressedBatch encode(List<XTraceReport3> reports) {
+    byte[] encoded = dictionaryEncode(reports).toByteArray();
+
+    deflater.reset();
+    deflater.setInput(encoded);
+    deflater.finish();
+    int length = 0;
+    while (!deflater.finished()) {
+      if (length == buffer.length)
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      length += deflater.deflate(buffer, length, buffer.length - length);
+    }
+
+    XTraceCompressedBatch.Builder batch = XTraceCompressedBatch.newBuilder();
+    batch.setSize(encoded.length);
+    batch.setDeflated(ByteString.copyFrom(buffer, 0, length));
+    shrink();
+    return batch.build();
+  }
+
+  /** Decompresses and decodes the reports in a batch produced by encode */
+  public synchronized List<XTraceReport3> decode(XTraceCompressedBatch batch) throws InvalidProtocolBufferException {
+    int size = batch.getSize();
+    if (size < 0 || size > MAX_SIZE)
+      throw new InvalidProtocolBufferException("Invalid compressed batch size " + size);
+    if (buffer.length < size)
+      buffer = new byte[size];
+
+    inflater.reset();
+    inflater.setInput(batch.getDeflated().toByteArray());
+    ByteString decoded;
+    try {
+      int length = 0;
+      while (length < size && !inflater.finished()) {
+        int n = inflater.inflate(buffer, length, size - length);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+          break;
+        length += n;
+      }
+      if (length != size)
+        throw new InvalidProtocolBufferException("Compressed batch truncated: expected " + size + " bytes, got " + length);
+      decoded = ByteString.copyFrom(buffer, 0, size);
+    } catch (DataFormatException e) {
+      throw new InvalidProtocolBufferException("Corrupt compressed batch: " + e.getMessage());
+    } finally {
+      shrink();
+    }
+
+    return dictionaryDecode(XTraceDictionaryBatch.parseFrom(decoded));
+  }
+
+  /** Releases the buffer if a large batch grew it beyond the size that is kept */
+  private void shrink() {
+    if (buffer.length > MAX_RETAINED_BUFFER)
+      buffer = new byte[INITIAL_BUFFER];
+  }
+
+  /** Returns the size of the buffer kept between batches */
+  synchronized int bufferSize() {
+    return buffer.length;
+  }
+
+  /** Replaces the host, process name, thread name and agent of each report with dictionary references */
+  static XTraceDictionaryBatch dictionaryEncode(List<XTraceReport3> reports) {
+    XTraceDictionaryBatch.Builder batch = XTraceDictionaryBatch.newBuilder();
+    Map<String, Integer> dictionary = new HashMap<String, Integer>();
+    for (XTraceReport3 report : reports) {
+      XTraceReport3.Builder stripped = report.toBuilder();
+      batch.addRefs(report.hasHost() ? ref(batch, dictionary, report.getHost()) : 0);
+      batch.addRefs(report.hasProcessName() ? ref(batch, dictionary, report.getProcessName()) : 0);
+      batch.addRefs(report.hasThreadName() ? ref(batch, dictionary, report.getThreadName()) : 0);
+      batch.addRefs(report.hasAgent() ? ref(batch, dictionary, report.getAgent()) : 0);
+      stripped.clearHost().clearProcessName().clearThreadName().clearAgent();
+      batch.addReports(stripped);
+    }
+    return batch.build();
+  }
+
+  /** Restores the dictionary-encoded fields of each report */
+  static List<XTraceReport3> dictionaryDecode(XTraceDictionaryBatch batch) throws InvalidProtocolBufferException {
+    if (batch.getRefsCount() != 4 * batch.getReportsCount())
+      throw new InvalidProtocolBufferException("Expected 4 references per report, got " + batch.getRefsCount() + " for "
+          + batch.getReportsCount() + " reports");
+    List<XTraceReport3> reports = new ArrayList<XTraceReport3>(batch.getReportsCount());
+    int r = 0;
+    for (XTraceReport3 stripped : batch.getReportsList()) {
+      XTraceReport3.Builder report = stripped.toBuilder();
+      int host = batch.getRefs(r++);
+      int processName = batch.getRefs(r++);
+      int threadName = batch.getRefs(r++);
+      int agent = batch.getRefs(r++);
+      if (host != 0)
+        report.setHost(lookup(batch, host));
+      if (processName != 0)
+        report.setProcessName(lookup(batch, processName));
+      if (threadName != 0)
+        report.setThreadName(lookup(batch, threadName));
+      if (agent != 0)
+        report.setAgent(lookup(batch, agent));
+      reports.add(report.build());
+    }
+    return reports;
+  }
+
+  private static int ref(XTraceDictionaryBatch.Builder batch, Map<String, Integer> dictionary, String value) {
+    Integer ref = dictionary.get(value);
+    if (ref == null) {
+      batch.addDictionary(value);
+      ref = batch.getDictionaryCount();
+      dictionary.put(value, ref);
+    }
+    return ref;
+  }
+
+  private static String lookup(XTraceDictionaryBatch batch, int ref) throws InvalidProtocolBufferException {
+    if (ref < 0 || ref > batch.getDictionaryCount())
+      throw new InvalidProtocolBufferException("Dictionary reference " + ref + " out of range");
+    return batch.getDictionary(ref - 1);
+  }
+
+}
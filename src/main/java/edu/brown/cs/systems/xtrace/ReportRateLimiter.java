@@ -0,0 +1,116 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate at which an agent may send reports, so that one chatty agent
+ * cannot saturate the reporter and the server. Limits are configured per agent
+ * under xtrace.client.reporting.rate-limit, and there is one limiter per agent
+ * name, shared by all of that agent's loggers.
+ *
+ * The limiter is a token bucket implemented as a generic cell rate algorithm: a
+ * single atomic long holds the time at which the bucket will next be full, and
+ * each accepted report pushes that time back by one report's worth of
+ * nanoseconds with a CAS. There is no lock and no refill thread.
+ */
+public final class ReportRateLimiter {
+
+  private static final ConcurrentMap<String, ReportRateLimiter> limiters = new ConcurrentHashMap<String, ReportRateLimiter>();
+
+  private final String agent;
+  private final double ratePerSecond;
+  private final long intervalNanos;
+  private final long toleranceNanos;
+
+  /** The time at which the bucket will be full again, in System.nanoTime */
+  private final AtomicLong theoreticalArrival;
+
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong suppressed = new AtomicLong();
+
+  /**
+   * @param agent
+   *          the agent being limited
+   * @param ratePerSecond
+   *          the sustained number of reports per second the agent may send
+   * @param burst
+   *          how much time's worth of reports the agent may send at once
+   * @param unit
+   *          the unit of burst
+   */
+  ReportRateLimiter(String agent, double ratePerSecond, long burst, TimeUnit unit) {
+    this.agent = agent;
+    this.ratePerSecond = ratePerSecond;
+    this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+    this.toleranceNanos = Math.max(intervalNanos, unit.toNanos(burst));
+    this.theoreticalArrival = new AtomicLong(System.nanoTime());
+  }
+
+  /**
+   * Returns the limiter for the agent, creating it if necessary, or null if no
+   * limit is configured for the agent
+   */
+  static ReportRateLimiter forAgent(String agent) {
+    ReportRateLimiter limiter = limiters.get(agent);
+    if (limiter != null)
+      return limiter;
+
+    Double rate = XTraceSettings.RATE_LIMIT_AGENTS.get(agent);
+    double ratePerSecond = rate == null ? XTraceSettings.RATE_LIMIT_DEFAULT : rate;
+    if (ratePerSecond <= 0)
+      return null;
+
+    limiter = new ReportRateLimiter(agent, ratePerSecond, XTraceSettings.RATE_LIMIT_BURST, TimeUnit.MILLISECONDS);
+    ReportRateLimiter existing = limiters.putIfAbsent(agent, limiter);
+    return existing == null ? limiter : existing;
+  }
+
+  /** Returns the limiters created so far, one per rate-limited agent */
+  public static Collection<ReportRateLimiter> all() {
+    return Collections.unmodifiableCollection(limiters.values());
+  }
+
+  /** Takes a token for one report, returning false if the report should be suppressed */
+  public boolean tryAcquire() {
+    return tryAcquire(System.nanoTime());
+  }
+
+  boolean tryAcquire(long now) {
+    while (true) {
+      long tat = theoreticalArrival.get();
+      long next = (tat - now > 0 ? tat : now) + intervalNanos;
+      if (next - now > toleranceNanos) {
+        suppressed.incrementAndGet();
+        return false;
+      }
+      if (theoreticalArrival.compareAndSet(tat, next)) {
+        accepted.incrementAndGet();
+        return true;
+      }
+    }
+  }
+
+  public String getAgent() {
+    return agent;
+  }
+
+  public double getRatePerSecond() {
+    return ratePerSecond;
+  }
+
+  /** Returns the number of reports this limiter has let through */
+  public long getAccepted() {
+    return accepted.get();
+  }
+
+  /** Returns the number of reports this limiter has suppressed */
+  public long getSuppressed() {
+    return suppressed.get();
+  }
+
+}
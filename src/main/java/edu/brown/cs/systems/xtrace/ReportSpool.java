@@ -0,0 +1,302 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * A FIFO of serialized report batches kept in memory-mapped segment files on
+ * local disk, used to hold on to reports while the X-Trace server is
+ * unreachable.
+ *
+ * Each segment file starts with the offset of its first unread record, followed
+ * by records of the form [int length][int reports][bytes]. A length of zero
+ * marks the end of the written records, so a spool left behind by a previous
+ * process is recovered when it is reopened. When the spool reaches its size
+ * cap, the oldest segment is discarded to make room, and the reports it held
+ * are counted as dropped. Segments are unmapped as they are deleted, so that
+ * their disk space is freed straight away rather than when they are garbage
+ * collected.
+ *
+ * A spool directory may only be used by one process at a time.
+ */
+class ReportSpool {
+
+  private static final String SUFFIX = ".spool";
+  private static final int HEADER = 4;
+  private static final int RECORD_HEADER = 8;
+
+  /** A memory-mapped segment file */
+  private static final class Segment {
+    final long id;
+    final File file;
+    final MappedByteBuffer buf;
+    int writeOffset;
+
+    Segment(long id, File file, int size) throws IOException {
+      this.id = id;
+      this.file = file;
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        this.buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } finally {
+        raf.close();
+      }
+      if (buf.getInt(0) < HEADER)
+        buf.putInt(0, HEADER);
+      writeOffset = scan(readOffset());
+    }
+
+    int readOffset() {
+      return buf.getInt(0);
+    }
+
+    /** Returns the offset after the last complete record following offset */
+    int scan(int offset) {
+      while (offset + RECORD_HEADER <= buf.capacity()) {
+        int length = buf.getInt(offset);
+        if (length <= 0 || length > buf.capacity() - offset - RECORD_HEADER)
+          break;
+        offset += RECORD_HEADER + length;
+      }
+      return offset;
+    }
+
+    /**
+     * Unmaps and deletes the segment file. The segment must not be used
+     * afterwards
+     */
+    void delete() {
+      unmap(buf);
+      file.delete();
+    }
+
+    /** Returns the number of reports in the unread records of this segment */
+    long unreadReports() {
+      long reports = 0;
+      for (int offset = readOffset(); offset < writeOffset; offset += RECORD_HEADER + buf.getInt(offset))
+        reports += buf.getInt(offset + 4);
+      return reports;
+    }
+  }
+
+  private final File dir;
+  private final int segmentSize;
+  private final int maxSegments;
+  private final RandomAccessFile lockFile;
+  private final FileLock lock;
+  private final LinkedList<Segment> segments = new LinkedList<Segment>();
+  private long nextSegment = 0;
+  private long dropped = 0;
+
+  /**
+   * Opens the spool in the directory, recovering any records left in it
+   *
+   * @param dir
+   *          the spool directory, created if necessary
+   * @param segmentSize
+   *          the size in bytes of each segment file
+   * @param maxSize
+   *          the maximum number of bytes of segment files
+   * @throws IOException
+   *           if the spool cannot be opened or another process is using it
+   */
+  public ReportSpool(File dir, int segmentSize, long maxSize) throws IOException {
+    if (segmentSize <= HEADER + RECORD_HEADER)
+      throw new IllegalArgumentException("Spool segment size too small: " + segmentSize);
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxSize / segmentSize));
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Unable to create spool directory " + dir);
+
+    lockFile = new RandomAccessFile(new File(dir, "lock"), "rw");
+    FileLock acquired;
+    try {
+      acquired = lockFile.getChannel().tryLock();
+    } catch (OverlappingFileLockException e) {
+      // Already held by this process
+      acquired = null;
+    }
+    lock = acquired;
+    if (lock == null) {
+      lockFile.close();
+      throw new IOException("Spool directory " + dir + " is in use by another process");
+    }
+
+    boolean recovered = false;
+    try {
+      recover();
+      recovered = true;
+    } finally {
+      if (!recovered)
+        release();
+    }
+  }
+
+  /** Reopens the segments left in the spool directory */
+  private void recover() throws IOException {
+    String[] names = dir.list(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    if (names == null)
+      throw new IOException("Unable to list spool directory " + dir);
+    Arrays.sort(names);
+    for (String name : names) {
+      File file = new File(dir, name);
+      try {
+        Segment segment = new Segment(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), file,
+            (int) Math.max(file.length(), segmentSize));
+        nextSegment = segment.id + 1;
+        if (segment.readOffset() < segment.writeOffset)
+          segments.add(segment);
+        else
+          segment.delete();
+      } catch (NumberFormatException e) {
+        // Not one of ours
+      }
+    }
+  }
+
+  /** Unmaps the recovered segments and releases the spool directory, after recovery failed */
+  private void release() {
+    for (Segment segment : segments)
+      unmap(segment.buf);
+    segments.clear();
+    try {
+      lock.release();
+    } catch (IOException e) {
+    }
+    try {
+      lockFile.close();
+    } catch (IOException e) {
+    }
+  }
+
+  /**
+   * Unmaps a buffer now, rather than when it is garbage collected. The buffer
+   * must not be used afterwards. There is no public API for this, so it is done
+   * reflectively, through Unsafe.invokeCleaner on Java 9 and later and through
+   * the buffer's cleaner on Java 8. If neither works, the buffer is left to be
+   * garbage collected
+   */
+  static void unmap(MappedByteBuffer buf) {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner.invoke(theUnsafe.get(null), buf);
+      return;
+    } catch (Exception e) {
+      // Not Java 9 or later
+    }
+    try {
+      Method getCleaner = buf.getClass().getMethod("cleaner");
+      getCleaner.setAccessible(true);
+      Object cleaner = getCleaner.invoke(buf);
+      if (cleaner != null)
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+    } catch (Exception e) {
+      // Left to the garbage collector
+    }
+  }
+
+  /**
+   * Appends a record to the spool, discarding the oldest segment if the spool
+   * is full
+   *
+   * @param record
+   *          the serialized batch
+   * @param reports
+   *          the number of reports in the batch
+   * @return false if the record is too large for a segment and was dropped
+   */
+  public synchronized boolean append(byte[] record, int reports) throws IOException {
+    if (record.length > segmentSize - HEADER - RECORD_HEADER) {
+      dropped += reports;
+      return false;
+    }
+    Segment tail = segments.peekLast();
+    if (tail == null || tail.writeOffset + RECORD_HEADER + record.length > tail.buf.capacity()) {
+      if (segments.size() >= maxSegments) {
+        Segment oldest = segments.removeFirst();
+        dropped += oldest.unreadReports();
+        oldest.delete();
+      }
+      long id = nextSegment++;
+      tail = new Segment(id, new File(dir, String.format("%020d%s", id, SUFFIX)), segmentSize);
+      segments.add(tail);
+    }
+
+    // Write the length last, so that a partially written record is not recovered
+    int offset = tail.writeOffset;
+    ByteBuffer dest = tail.buf.duplicate();
+    dest.position(offset + RECORD_HEADER);
+    dest.put(record);
+    tail.buf.putInt(offset + 4, reports);
+    tail.buf.putInt(offset, record.length);
+    tail.writeOffset = offset + RECORD_HEADER + record.length;
+    return true;
+  }
+
+  /** Returns the oldest record without removing it, or null if the spool is empty */
+  public synchronized byte[] peek() {
+    Segment head = segments.peekFirst();
+    if (head == null)
+      return null;
+    int offset = head.readOffset();
+    byte[] record = new byte[head.buf.getInt(offset)];
+    ByteBuffer src = head.buf.duplicate();
+    src.position(offset + RECORD_HEADER);
+    src.get(record);
+    return record;
+  }
+
+  /** Removes the oldest record, deleting its segment if nothing is left in it */
+  public synchronized void remove() {
+    Segment head = segments.peekFirst();
+    if (head == null)
+      return;
+    int offset = head.readOffset();
+    head.buf.putInt(0, offset + RECORD_HEADER + head.buf.getInt(offset));
+    if (head.readOffset() >= head.writeOffset) {
+      segments.removeFirst();
+      head.delete();
+    }
+  }
+
+  public synchronized boolean isEmpty() {
+    return segments.isEmpty();
+  }
+
+  /** Returns the number of reports discarded because the spool was full */
+  public synchronized long dropped() {
+    return dropped;
+  }
+
+  /** Flushes the segments to disk and releases the spool directory */
+  public synchronized void close() {
+    for (Segment segment : segments)
+      segment.buf.force();
+    try {
+      lock.release();
+      lockFile.close();
+    } catch (IOException e) {
+      // Released when the process exits anyway
+    }
+  }
+
+}
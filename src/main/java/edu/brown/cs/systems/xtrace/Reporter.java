@@ -6,8 +6,8 @@ import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
-import edu.brown.cs.systems.xtrace.Metadata.XTraceMetadataOrBuilder;
 import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
 import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3.Builder;
 
@@ -37,9 +37,61 @@ public abstract class Reporter {
     public Builder decorate(Builder builder);
   }
 
+  /**
+   * @deprecated X-Trace no longer draws its IDs from this shared Random, whose
+   *             seed is contended by concurrent threads. It is kept for
+   *             subclasses that use it; new code should use an IDGenerator
+   */
+  @Deprecated
   protected static final Random random = new Random(31 * (17 * Utils.getHost().hashCode() + Utils.getProcessID()) * System.currentTimeMillis());
 
+  /**
+   * Generates the random IDs used for X-Trace task IDs and event IDs. Register
+   * a generator using the setIDGenerator method. Implementations must be thread
+   * safe, and should avoid contention between threads since an ID is generated
+   * for every report that tracks causality
+   */
+  public static interface IDGenerator {
+    public long nextID();
+  }
+
+  /**
+   * The default IDGenerator. Each thread draws IDs from its own SplitMix64
+   * sequence, so generating an ID never contends with other threads. The
+   * sequences are seeded from the host name, process ID and start time of this
+   * process and from the thread, so that different threads and different
+   * processes start from unrelated positions of the 2^64 sequence
+   */
+  public static class ThreadLocalIDGenerator implements IDGenerator {
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    /** Seeds for new threads, starting from the identity of this process */
+    private static final AtomicLong seeds = new AtomicLong(mix64(31 * (17 * Utils.getHost().hashCode() + Utils.getProcessID()))
+        ^ mix64(System.currentTimeMillis()) ^ System.nanoTime());
+
+    private final ThreadLocal<long[]> state = new ThreadLocal<long[]>() {
+      @Override
+      protected long[] initialValue() {
+        return new long[] { mix64(seeds.addAndGet(GOLDEN_GAMMA)) ^ mix64(Thread.currentThread().getId()) };
+      }
+    };
+
+    public long nextID() {
+      long[] seed = state.get();
+      return mix64(seed[0] += GOLDEN_GAMMA);
+    }
+
+    /** The SplitMix64 / MurmurHash3 finalizer */
+    static long mix64(long z) {
+      z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+      z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+      return z ^ (z >>> 33);
+    }
+  }
+
   protected final Trace xtrace;
+  protected final ReporterMetrics metrics = new ReporterMetrics(this);
   protected static final String host = Utils.getHost();
   protected static final int procid = Utils.getProcessID();
 
@@ -53,6 +105,20 @@ public abstract class Reporter {
     this.decorator = decorator;
   }
 
+  protected IDGenerator idgenerator = new ThreadLocalIDGenerator();
+
+  public void setIDGenerator(IDGenerator idgenerator) {
+    this.idgenerator = idgenerator;
+  }
+
+  /**
+   * @return a new random ID for a task or event, from this reporter's ID
+   *         generator
+   */
+  long nextID() {
+    return idgenerator.nextID();
+  }
+
   /**
    * Creates a new report builder. X-Trace metadata fields are only ever added
    * at report send time, by the sendReport method
@@ -61,14 +127,22 @@ public abstract class Reporter {
    *         timestamp, host, processid etc. filled in.
    */
   public static Builder createReport() {
+    return createReport(Thread.currentThread(), System.currentTimeMillis(), System.nanoTime());
+  }
+
+  /**
+   * Creates a new report builder for an event that happened on the specified
+   * thread at the specified time
+   */
+  static Builder createReport(Thread thread, long timestamp, long hrt) {
     Builder builder = XTraceReport3.newBuilder();
     builder.setHost(host);
     builder.setProcessID(procid);
     builder.setProcessName(Utils.getProcessName());
-    builder.setThreadID((int) Thread.currentThread().getId());
-    builder.setThreadName(Thread.currentThread().getName());
-    builder.setTimestamp(System.currentTimeMillis());
-    builder.setHRT(System.nanoTime());
+    builder.setThreadID((int) thread.getId());
+    builder.setThreadName(thread.getName());
+    builder.setTimestamp(timestamp);
+    builder.setHRT(hrt);
     return builder;
   }
 
@@ -82,6 +156,15 @@ public abstract class Reporter {
   public static Builder createReport(String label, Object... fields) {
     Builder builder = createReport();
     builder.setLabel(label);
+    addFields(builder, fields);
+    return builder;
+  }
+
+  /**
+   * Adds user-defined key-value fields to a report, calling toString on each
+   * key and value
+   */
+  static void addFields(Builder builder, Object... fields) {
     for (int i = 0; i < fields.length - 1; i += 2) {
       // Key cannot be null, but value can
       if (fields[i] != null) {
@@ -89,15 +172,15 @@ public abstract class Reporter {
         builder.addValue(fields[i + 1] == null ? "null" : fields[i + 1].toString());
       }
     }
-    return builder;
   }
 
   /**
-   * @return true if we're currently able to send reports
+   * @return true if we're currently able to send reports, ie. there is a
+   *         current task and it was sampled
    */
   public boolean valid() {
-    XTraceMetadataOrBuilder metadata = xtrace.observe();
-    return metadata != null && metadata.hasTaskID();
+    Context metadata = xtrace.observe();
+    return metadata != null && metadata.hasTaskID() && metadata.isSampled();
   }
 
   /**
@@ -169,36 +252,81 @@ public abstract class Reporter {
    * fields to the report. Here is where we add the XTrace metadata if desired
    */
   protected void sendReport(String agent, Builder builder, boolean includeXTrace) {
-    // Set the agent
-    builder.setAgent(agent);
-
-    // Apply the user-defined decorator
-    if (decorator != null)
-      decorator.decorate(builder);
+    prepare(agent, builder);
 
     // Add XTrace metadata if desired
     if (includeXTrace) {
-      XTraceMetadataOrBuilder metadata = xtrace.observe();
+      Context metadata = xtrace.observe();
       if (metadata != null) {
-        builder.setTaskID(metadata.getTaskID());
-
-        // Record the tenant class if necessary
-        if (metadata.hasTenantClass())
-          builder.setTenantClass(metadata.getTenantClass());
+        setXTraceFields(builder, metadata);
 
         // Record causality if necessary
-        if (metadata.getParentEventIDCount() != 0) {
-          builder.addAllParentEventID(metadata.getParentEventIDList());
-          long neweventid = random.nextLong();
-          builder.setEventID(neweventid);
-          xtrace.modify().clearParentEventID().addParentEventID(neweventid);
-        }
+        if (metadata.getParentEventIDCount() != 0)
+          builder.setEventID(advanceCausality());
       }
     }
 
     doSend(builder);
   }
 
+  /** Counts the report, and sets its agent and applies the decorator */
+  private void prepare(String agent, Builder builder) {
+    metrics.created.increment();
+
+    // Set the agent
+    builder.setAgent(agent);
+
+    // Apply the user-defined decorator
+    if (decorator != null)
+      decorator.decorate(builder);
+  }
+
+  /**
+   * Sends a report whose parents are those of the current metadata, and makes
+   * its event ID the sole parent only if the report was accepted, so that the
+   * parents are never replaced by an event that was not reported. The caller
+   * checks that the metadata is valid
+   *
+   * @return true if the report was accepted and the parents replaced
+   */
+  boolean sendJoinReport(String agent, Builder builder) {
+    prepare(agent, builder);
+    setXTraceFields(builder, xtrace.observe());
+    long eventID = idgenerator.nextID();
+    builder.setEventID(eventID);
+    if (!trySend(builder))
+      return false;
+    xtrace.modify().clearParentEventID().addParentEventID(eventID);
+    return true;
+  }
+
+  /**
+   * Generates the event ID of a new report and makes it the sole parent of the
+   * current metadata
+   *
+   * @return the new event ID
+   */
+  protected long advanceCausality() {
+    long neweventid = idgenerator.nextID();
+    xtrace.modify().clearParentEventID().addParentEventID(neweventid);
+    return neweventid;
+  }
+
+  /**
+   * Adds the task ID, tenant class and parent event IDs of the metadata to a
+   * report
+   */
+  static void setXTraceFields(Builder builder, Context metadata) {
+    builder.setTaskID(metadata.getTaskID());
+
+    // Record the tenant class if necessary
+    if (metadata.hasTenantClass())
+      builder.setTenantClass(metadata.getTenantClass());
+
+    for (int i = 0; i < metadata.getParentEventIDCount(); i++)
+      builder.addParentEventID(metadata.getParentEventID(i));
+  }
+
   /**
    * Actual method for subclasses to implement to do the sending of a report
    * 
@@ -207,8 +335,36 @@ public abstract class Reporter {
    */
   protected abstract void doSend(Builder report);
 
+  /**
+   * Like doSend, but returns false if the report was discarded rather than
+   * accepted, eg. because a queue was full. Reporters that can discard reports
+   * override this and have doSend call it
+   */
+  protected boolean trySend(Builder report) {
+    doSend(report);
+    return true;
+  }
+
   protected abstract void close();
 
+  /**
+   * Returns the number of reports this reporter has discarded instead of
+   * sending, eg. because its outgoing buffer was full
+   */
+  public long getDroppedReports() {
+    return 0;
+  }
+
+  /** Returns the number of reports waiting to be sent */
+  public int getQueueDepth() {
+    return 0;
+  }
+
+  /** Returns counters of what this reporter has done */
+  public ReporterMetrics getMetrics() {
+    return metrics;
+  }
+
   public static class Utils {
 
     private static Class<?> MainClass;
@@ -0,0 +1,98 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counts what a reporter does, so that the cost of X-Trace itself can be
+ * monitored next to the application's own metrics. Counters are LongAdders, so
+ * that threads logging concurrently do not contend on them, and the time
+ * reports spend in the outgoing buffer is measured for one in every
+ * LATENCY_SAMPLE_INTERVAL reports.
+ */
+public final class ReporterMetrics implements ReporterMetricsMBean {
+  private static final Logger LOG = Logger.getLogger(ReporterMetrics.class);
+
+  /** Queueing latency is measured for one in this many reports; a power of two */
+  static final int LATENCY_SAMPLE_INTERVAL = 64;
+
+  private final Reporter reporter;
+  final LongAdder created = new LongAdder();
+  final LongAdder queued = new LongAdder();
+  final LongAdder published = new LongAdder();
+  final LongAdder messages = new LongAdder();
+  final LongAdder bytes = new LongAdder();
+  final LatencyHistogram queueLatency = new LatencyHistogram();
+
+  ReporterMetrics(Reporter reporter) {
+    this.reporter = reporter;
+  }
+
+  /** Returns true if the queueing latency of the report at this buffer position should be measured */
+  static boolean sampleLatency(long position) {
+    return (position & (LATENCY_SAMPLE_INTERVAL - 1)) == 0;
+  }
+
+  /** Registers this object with the platform MBean server */
+  void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+          new ObjectName("edu.brown.cs.systems.xtrace:type=ReporterMetrics"));
+    } catch (Exception e) {
+      LOG.warn("Unable to register X-Trace reporter metrics with JMX", e);
+    }
+  }
+
+  public long getReportsCreated() {
+    return created.sum();
+  }
+
+  public long getReportsQueued() {
+    return queued.sum();
+  }
+
+  public long getReportsDropped() {
+    return reporter.getDroppedReports();
+  }
+
+  public long getReportsPublished() {
+    return published.sum();
+  }
+
+  public long getMessagesPublished() {
+    return messages.sum();
+  }
+
+  public long getBytesPublished() {
+    return bytes.sum();
+  }
+
+  public int getQueueDepth() {
+    return reporter.getQueueDepth();
+  }
+
+  public long getQueueLatencySamples() {
+    return queueLatency.count();
+  }
+
+  public long getQueueLatencyMeanNanos() {
+    return queueLatency.mean();
+  }
+
+  public long getQueueLatency50thPercentileNanos() {
+    return queueLatency.percentile(0.5);
+  }
+
+  public long getQueueLatency99thPercentileNanos() {
+    return queueLatency.percentile(0.99);
+  }
+
+  public long getQueueLatencyMaxNanos() {
+    return queueLatency.max();
+  }
+
+}
@@ -0,0 +1,41 @@
+package edu.brown.cs.systems.xtrace;
+
+/**
+ * JMX interface for the X-Trace client's own costs, registered as
+ * edu.brown.cs.systems.xtrace:type=ReporterMetrics
+ */
+public interface ReporterMetricsMBean {
+
+  /** Reports that passed the logging checks and were handed to the reporter */
+  public long getReportsCreated();
+
+  /** Reports that were placed in the outgoing buffer */
+  public long getReportsQueued();
+
+  /** Reports discarded instead of being sent */
+  public long getReportsDropped();
+
+  /** Reports handed to the pubsub publisher */
+  public long getReportsPublished();
+
+  /** Messages handed to the pubsub publisher; a batch counts once */
+  public long getMessagesPublished();
+
+  /** Serialized size of the messages handed to the pubsub publisher */
+  public long getBytesPublished();
+
+  /** The number of reports currently waiting in the outgoing buffer */
+  public int getQueueDepth();
+
+  /** The number of sampled reports whose time in the outgoing buffer was measured */
+  public long getQueueLatencySamples();
+
+  public long getQueueLatencyMeanNanos();
+
+  public long getQueueLatency50thPercentileNanos();
+
+  public long getQueueLatency99thPercentileNanos();
+
+  public long getQueueLatencyMaxNanos();
+
+}
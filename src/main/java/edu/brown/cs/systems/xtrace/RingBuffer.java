@@ -0,0 +1,343 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, preallocated, lock-free ring buffer used to hand reports from
+ * application threads to a reporter's worker thread. Any number of threads may
+ * offer elements; elements are normally removed by a single consumer, though
+ * the drop-oldest policy also removes elements on behalf of producers.
+ *
+ * The buffer can be used in one of two ways. Elements can be passed by
+ * reference with offer and poll/take. Alternatively, the buffer can be created
+ * with a Factory that preallocates an object for every slot; producers then
+ * claim a slot, fill in its object and publish it, and the consumer acquires a
+ * slot, reads its object, resets it and releases it, so that nothing is
+ * allocated per element. The objects stay in their slots for the life of the
+ * buffer, so a preallocated buffer cannot be read with poll or take.
+ *
+ * Based on Dmitry Vyukov's bounded MPMC queue: each slot carries a sequence
+ * number that tells producers and consumers whether the slot is free for the
+ * current lap of the buffer, so the only contended operations are a CAS on the
+ * tail (producers) or head (consumers).
+ *
+ * What happens when an element is offered to a full buffer is decided by the
+ * buffer's OverflowPolicy. Elements that are discarded as a result are counted.
+ */
+class RingBuffer<T> {
+
+  /** What to do with a new element when the buffer is full */
+  public static enum OverflowPolicy {
+    /** Discard the element being offered */
+    DROP_NEWEST,
+    /** Discard the oldest element in the buffer to make room */
+    DROP_OLDEST,
+    /** Wait up to the configured timeout for room, then discard the element being offered */
+    BLOCK,
+    /**
+     * Once the buffer is more than half full, accept new elements with a
+     * probability that falls linearly to zero as the buffer fills
+     */
+    SAMPLE;
+
+    /** Parses a policy name as it appears in the config, eg. drop-newest */
+    public static OverflowPolicy parse(String name) {
+      return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+  }
+
+  /** Creates and resets the objects that fill the slots of a preallocated buffer */
+  public static interface Factory<T> {
+    public T create();
+
+    /** Clears an object whose element is discarded, so that it holds no references */
+    public void reset(T element);
+  }
+
+  /** Upper bound on how long a producer blocks before re-checking for room */
+  private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  /** Upper bound on how long the consumer parks before re-checking for elements */
+  private static final long TAKE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray<T> elements;
+  private final AtomicLongArray sequences;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  private final Factory<T> factory;
+  private final OverflowPolicy policy;
+  private final long blockTimeoutNanos;
+  private final Reporter.IDGenerator random = new Reporter.ThreadLocalIDGenerator();
+
+  private final AtomicLong dropped = new AtomicLong();
+
+  /** The consumer thread, if it is parked waiting for elements */
+  private volatile Thread waiter = null;
+
+  /**
+   * @param capacity
+   *          the minimum number of elements the buffer can hold; rounded up to a
+   *          power of two
+   * @param policy
+   *          what to do when an element is offered to a full buffer
+   * @param blockTimeout
+   *          for the BLOCK policy, how long to wait for room
+   * @param unit
+   *          the unit of blockTimeout
+   */
+  public RingBuffer(int capacity, OverflowPolicy policy, long blockTimeout, TimeUnit unit) {
+    this(capacity, policy, blockTimeout, unit, null);
+  }
+
+  /**
+   * Creates a buffer whose slots are preallocated by the provided factory, or
+   * that holds elements by reference if the factory is null
+   */
+  public RingBuffer(int capacity, OverflowPolicy policy, long blockTimeout, TimeUnit unit, Factory<T> factory) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("RingBuffer capacity must be positive: " + capacity);
+    this.capacity = capacity == 1 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+    this.mask = this.capacity - 1;
+    this.elements = new AtomicReferenceArray<T>(this.capacity);
+    this.sequences = new AtomicLongArray(this.capacity);
+    for (int i = 0; i < this.capacity; i++)
+      sequences.set(i, i);
+    if (factory != null)
+      for (int i = 0; i < this.capacity; i++)
+        elements.set(i, factory.create());
+    this.factory = factory;
+    this.policy = policy;
+    this.blockTimeoutNanos = unit.toNanos(blockTimeout);
+  }
+
+  /**
+   * Adds an element to the buffer, applying the overflow policy if the buffer
+   * is full
+   *
+   * @return true if the element was added, false if it was discarded
+   */
+  public boolean offer(T element) {
+    long position = claim();
+    if (position < 0)
+      return false;
+    elements.lazySet((int) position & mask, element);
+    publish(position);
+    return true;
+  }
+
+  /** Removes and returns the oldest element, or null if the buffer is empty */
+  public T poll() {
+    checkNotPreallocated();
+    long position = acquire();
+    return position < 0 ? null : remove(position);
+  }
+
+  /**
+   * Removes and returns the oldest element, waiting for one to arrive if the
+   * buffer is empty. Only one thread may wait in take at a time.
+   */
+  public T take() throws InterruptedException {
+    checkNotPreallocated();
+    long position;
+    while ((position = acquire()) < 0)
+      await(TAKE_PARK_NANOS);
+    return remove(position);
+  }
+
+  /**
+   * Removes and returns the oldest element, waiting up to the specified time
+   * for one to arrive if the buffer is empty. Only one thread may wait in poll
+   * or take at a time.
+   *
+   * @return the oldest element, or null if none arrived in time
+   */
+  public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+    checkNotPreallocated();
+    long position = acquire(timeout, unit);
+    return position < 0 ? null : remove(position);
+  }
+
+  /** Elements of a preallocated buffer stay in their slots, so cannot be removed */
+  private void checkNotPreallocated() {
+    if (factory != null)
+      throw new IllegalStateException("A preallocated RingBuffer is read with acquire and release");
+  }
+
+  private T remove(long position) {
+    int index = (int) position & mask;
+    T element = elements.get(index);
+    elements.lazySet(index, null);
+    release(position);
+    return element;
+  }
+
+  /**
+   * Claims the next free slot, applying the overflow policy if the buffer is
+   * full. The claimed slot must then be filled in and published.
+   *
+   * @return the position of the claimed slot, or -1 if the policy discarded the
+   *         new element
+   */
+  public long claim() {
+    long position;
+    switch (policy) {
+    case DROP_OLDEST:
+      while ((position = tryClaim()) < 0) {
+        long oldest = acquire();
+        if (oldest >= 0) {
+          if (factory == null)
+            elements.lazySet((int) oldest & mask, null);
+          else
+            factory.reset(elements.get((int) oldest & mask));
+          release(oldest);
+          dropped.incrementAndGet();
+        }
+      }
+      return position;
+    case BLOCK:
+      if ((position = tryClaim()) >= 0)
+        return position;
+      long deadline = System.nanoTime() + blockTimeoutNanos;
+      while ((position = tryClaim()) < 0) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+          dropped.incrementAndGet();
+          return -1;
+        }
+        LockSupport.parkNanos(this, Math.min(remaining, BLOCK_PARK_NANOS));
+      }
+      return position;
+    case SAMPLE:
+      int half = capacity / 2;
+      int free = capacity - size();
+      if (free < half && (random.nextID() >>> 11) * 0x1.0p-53 >= free / (double) half) {
+        dropped.incrementAndGet();
+        return -1;
+      }
+      // fall through
+    case DROP_NEWEST:
+    default:
+      if ((position = tryClaim()) >= 0)
+        return position;
+      dropped.incrementAndGet();
+      return -1;
+    }
+  }
+
+  /** Returns the slot at a claimed or acquired position */
+  public T get(long position) {
+    return elements.get((int) position & mask);
+  }
+
+  /** Makes a claimed slot visible to the consumer */
+  public void publish(long position) {
+    sequences.set((int) position & mask, position + 1);
+    Thread consumer = waiter;
+    if (consumer != null)
+      LockSupport.unpark(consumer);
+  }
+
+  /**
+   * Acquires the oldest published slot. The slot must be released once its
+   * contents have been read.
+   *
+   * @return the position of the acquired slot, or -1 if the buffer is empty
+   */
+  public long acquire() {
+    long position = head.get();
+    while (true) {
+      int index = (int) position & mask;
+      long difference = sequences.get(index) - (position + 1);
+      if (difference == 0) {
+        if (head.compareAndSet(position, position + 1))
+          return position;
+        position = head.get();
+      } else if (difference < 0) {
+        return -1;
+      } else {
+        position = head.get();
+      }
+    }
+  }
+
+  /**
+   * Acquires the oldest published slot, waiting up to the specified time for
+   * one to be published if the buffer is empty. Only one thread may wait at a
+   * time.
+   *
+   * @return the position of the acquired slot, or -1 if none arrived in time
+   */
+  public long acquire(long timeout, TimeUnit unit) throws InterruptedException {
+    long position = acquire();
+    if (position >= 0)
+      return position;
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while ((position = acquire()) < 0) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0)
+        return -1;
+      await(Math.min(remaining, TAKE_PARK_NANOS));
+    }
+    return position;
+  }
+
+  /** Returns an acquired slot to producers */
+  public void release(long position) {
+    sequences.set((int) position & mask, position + capacity);
+  }
+
+  /** Claims the next free slot if there is one, returning -1 if the buffer is full */
+  private long tryClaim() {
+    long position = tail.get();
+    while (true) {
+      int index = (int) position & mask;
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1))
+          return position;
+        position = tail.get();
+      } else if (difference < 0) {
+        return -1;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  /** Parks the calling consumer until an element is offered or the time elapses */
+  private void await(long nanos) throws InterruptedException {
+    if (Thread.interrupted())
+      throw new InterruptedException();
+    waiter = Thread.currentThread();
+    if (isEmpty())
+      LockSupport.parkNanos(this, nanos);
+    waiter = null;
+  }
+
+  /** Returns the approximate number of elements in the buffer */
+  public int size() {
+    long size = tail.get() - head.get();
+    return size < 0 ? 0 : size > capacity ? capacity : (int) size;
+  }
+
+  public boolean isEmpty() {
+    return tail.get() == head.get();
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  /** Returns the number of elements discarded by the overflow policy */
+  public long dropped() {
+    return dropped.get();
+  }
+
+}
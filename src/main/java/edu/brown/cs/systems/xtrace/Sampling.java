@@ -0,0 +1,49 @@
+package edu.brown.cs.systems.xtrace;
+
+/**
+ * Head-based sampling. When a task is started, it is decided once whether the
+ * task will be reported; the decision is propagated with the task's metadata,
+ * and reports are not generated for tasks that were not sampled.
+ *
+ * The sampling rate comes from xtrace.client.sampling. A rate configured for
+ * the agent starting the task takes precedence over a rate configured for the
+ * task's tenant class, which takes precedence over the default rate.
+ */
+class Sampling {
+
+  /**
+   * Returns the fraction of tasks that should be sampled
+   *
+   * @param agent
+   *          the agent starting the task, may be null
+   * @param current
+   *          the metadata of the thread starting the task, may be null
+   */
+  static double rate(String agent, Context current) {
+    if (agent != null) {
+      Double rate = XTraceSettings.SAMPLING_AGENT_RATES.get(agent);
+      if (rate != null)
+        return rate;
+    }
+    if (current != null && current.hasTenantClass()) {
+      Double rate = XTraceSettings.SAMPLING_TENANT_CLASS_RATES.get(current.getTenantClass());
+      if (rate != null)
+        return rate;
+    }
+    return XTraceSettings.SAMPLING_RATE;
+  }
+
+  /**
+   * Decides whether a task is sampled. The decision is a deterministic function
+   * of the task ID, so processes that start the same task ID with the same
+   * rate agree on it
+   */
+  static boolean sample(long taskID, double rate) {
+    if (rate >= 1)
+      return true;
+    if (rate <= 0)
+      return false;
+    return (Reporter.ThreadLocalIDGenerator.mix64(taskID) >>> 11) * 0x1.0p-53 < rate;
+  }
+
+}
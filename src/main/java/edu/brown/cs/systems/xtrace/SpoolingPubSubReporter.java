@@ -0,0 +1,255 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+
+import org.apache.log4j.Logger;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import edu.brown.cs.systems.pubsub.Publisher;
+import edu.brown.cs.systems.pubsub.Settings;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReportBatch;
+
+/**
+ * A PubSubReporter that spools reports to local disk while the X-Trace server
+ * is unreachable, and replays them once it is reachable again.
+ *
+ * ZMQ does not tell publishers whether messages reach the server, and
+ * publishing does not fail when it is down, so a background replayer thread
+ * probes the server's pubsub port with a TCP connection every probe interval.
+ * While the server is unreachable, or while earlier batches are still waiting
+ * in the spool, new batches are appended to the spool instead of being
+ * published. The replayer publishes spooled batches oldest first, through the
+ * worker's publisher and under the same lock.
+ *
+ * Published batches are kept in memory until a probe that began after they
+ * were published reaches the server, which stands in for an acknowledgement.
+ * If the probe fails instead, they are spooled and published again once the
+ * server is back, so batches published just before the server went down are
+ * not lost, though the server may receive some of them twice. These batches
+ * are older than any spooled while the server was down, unless the server went
+ * down during a replay, in which case they are replayed after the rest of the
+ * spool. At most MAX_UNCONFIRMED_BYTES of batches are kept; beyond that, the
+ * oldest are assumed to have arrived.
+ */
+class SpoolingPubSubReporter extends PubSubReporter {
+  private static final Logger LOG = Logger.getLogger(SpoolingPubSubReporter.class);
+
+  /** Max bytes of published batches kept until a probe confirms the server was reachable */
+  static final int MAX_UNCONFIRMED_BYTES = 4 * 1024 * 1024;
+
+  /**
+   * A published batch that has not yet been confirmed by a probe. The batch is
+   * kept as published and only serialized if it has to be spooled
+   */
+  private static final class Unconfirmed {
+    final XTraceReportBatch batch;
+    final int size;
+
+    Unconfirmed(XTraceReportBatch batch) {
+      this.batch = batch;
+      this.size = batch.getSerializedSize();
+    }
+  }
+
+  private final ReportSpool spool;
+  private final long probeIntervalMillis;
+  private final Thread replayer;
+
+  /** Whether the last probe reached the server. Until the first probe, assume not */
+  private volatile boolean reachable = false;
+
+  /** Set once the worker has closed the publisher; guarded by spool */
+  private volatile boolean stopped = false;
+
+  /** Published batches, oldest first, not yet confirmed by a probe; guarded by spool */
+  private final ArrayDeque<Unconfirmed> unconfirmed = new ArrayDeque<Unconfirmed>();
+  private long unconfirmedBytes = 0;
+
+  /**
+   * Creates a spooling reporter if spooling is enabled and the spool can be
+   * opened, otherwise a plain PubSubReporter
+   */
+  static PubSubReporter create(Trace trace) {
+    if (XTraceSettings.SPOOL_ENABLED) {
+      try {
+        ReportSpool spool = new ReportSpool(new File(XTraceSettings.SPOOL_DIRECTORY), XTraceSettings.SPOOL_SEGMENT_SIZE,
+            XTraceSettings.SPOOL_MAX_SIZE);
+        return new SpoolingPubSubReporter(trace, null, 0, spool, XTraceSettings.SPOOL_PROBE_INTERVAL);
+      } catch (IOException e) {
+        LOG.warn("Unable to open X-Trace report spool, reports will not be spooled", e);
+      }
+    }
+    return new PubSubReporter(trace);
+  }
+
+  public SpoolingPubSubReporter(Trace trace, String hostname, int port, ReportSpool spool, long probeIntervalMillis) {
+    super(trace, hostname, port, false);
+    this.spool = spool;
+    this.probeIntervalMillis = probeIntervalMillis;
+    this.replayer = new Thread("X-Trace spool replayer") {
+      @Override
+      public void run() {
+        replay();
+      }
+    };
+    replayer.setDaemon(true);
+    worker.start();
+    replayer.start();
+  }
+
+  @Override
+  protected void publish(Publisher publisher, XTraceReportBatch.Builder builder) {
+    XTraceReportBatch batch = builder.build();
+    synchronized (spool) {
+      if (reachable && spool.isEmpty()) {
+        publish(publisher, batch);
+        published(batch);
+      } else {
+        append(batch);
+      }
+    }
+  }
+
+  /** Keeps a published batch until a probe confirms it; called holding spool */
+  private void published(XTraceReportBatch batch) {
+    Unconfirmed published = new Unconfirmed(batch);
+    unconfirmed.add(published);
+    unconfirmedBytes += published.size;
+    while (unconfirmedBytes > MAX_UNCONFIRMED_BYTES)
+      unconfirmedBytes -= unconfirmed.removeFirst().size;
+  }
+
+  /** Appends a batch to the spool; called holding spool */
+  private void append(XTraceReportBatch batch) {
+    try {
+      spool.append(batch.toByteArray(), batch.getReportsCount());
+    } catch (IOException e) {
+      failed.addAndGet(batch.getReportsCount());
+    }
+  }
+
+  @Override
+  protected void closePublisher(Publisher publisher) {
+    synchronized (spool) {
+      stopped = true;
+      super.closePublisher(publisher);
+      spool.close();
+    }
+    replayer.interrupt();
+  }
+
+  @Override
+  public long getDroppedReports() {
+    return super.getDroppedReports() + spool.dropped();
+  }
+
+  /** Returns true if nothing is waiting in the spool */
+  boolean spoolIsEmpty() {
+    return spool.isEmpty();
+  }
+
+  /** Returns the number of published batches not yet confirmed by a probe */
+  int unconfirmedBatches() {
+    synchronized (spool) {
+      return unconfirmed.size();
+    }
+  }
+
+  boolean isReachable() {
+    return reachable;
+  }
+
+  /** Probes the server, then replays the spool while the server is reachable */
+  private void replay() {
+    while (!stopped) {
+      Publisher publisher = this.publisher;
+      if (publisher != null) {
+        int published;
+        synchronized (spool) {
+          published = unconfirmed.size();
+        }
+        probed(probe(), published);
+        while (reachable && replayOne(publisher))
+          continue;
+      }
+      try {
+        Thread.sleep(probeIntervalMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Records the outcome of a probe. If it reached the server, the batches
+   * published before it began are confirmed. Otherwise every unconfirmed batch
+   * is spooled to be published again
+   *
+   * @param published
+   *          the number of unconfirmed batches when the probe began
+   */
+  private void probed(boolean success, int published) {
+    synchronized (spool) {
+      if (stopped)
+        return;
+      reachable = success;
+      if (success) {
+        for (int i = 0; i < published && !unconfirmed.isEmpty(); i++)
+          unconfirmedBytes -= unconfirmed.removeFirst().size;
+      } else {
+        for (Unconfirmed batch : unconfirmed)
+          append(batch.batch);
+        unconfirmed.clear();
+        unconfirmedBytes = 0;
+      }
+    }
+  }
+
+  /**
+   * Publishes the oldest spooled batch
+   *
+   * @return false if there was nothing to publish
+   */
+  private boolean replayOne(Publisher publisher) {
+    synchronized (spool) {
+      if (stopped)
+        return false;
+      byte[] record = spool.peek();
+      if (record == null)
+        return false;
+      try {
+        XTraceReportBatch batch = XTraceReportBatch.parseFrom(record);
+        publish(publisher, batch);
+        published(batch);
+      } catch (InvalidProtocolBufferException e) {
+        LOG.warn("Discarding unreadable batch from X-Trace report spool", e);
+      }
+      spool.remove();
+      return true;
+    }
+  }
+
+  /** Returns true if a TCP connection can be made to the server's pubsub port */
+  boolean probe() {
+    String host = hostname == null ? Settings.SERVER_HOSTNAME : hostname;
+    int port = this.port == 0 ? Settings.CLIENT_PUBLISH_PORT : this.port;
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(host, port), (int) Math.min(probeIntervalMillis, 1000));
+      return true;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+}
@@ -0,0 +1,276 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.protobuf.CodedInputStream;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3.Builder;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReportBatch;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceTcpAck;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceTcpMessage;
+
+/**
+ * A reporter that sends reports straight to the X-Trace server's native TCP
+ * endpoint instead of publishing them to the pubsub broker. Reports are queued
+ * and batched as by PubSubReporter, and each batch is sent as a length-delimited
+ * XTraceTcpMessage.
+ *
+ * With acknowledgements enabled, each message has a sequence number and is
+ * kept until the server acknowledges it. If the connection is lost, the worker
+ * reconnects and resends every unacknowledged message, so reports are delivered
+ * at least once. At most max-unacked messages are outstanding; beyond that the
+ * worker waits for the server, which only acknowledges reports once they are
+ * written to its stores, so a slow server fills this reporter's queue and its
+ * overflow policy applies.
+ */
+class TcpReporter extends PubSubReporter {
+  private static final Logger LOG = Logger.getLogger(TcpReporter.class);
+
+  /** How long a read waits for an acknowledgement before the worker checks whether it was closed */
+  private static final int READ_TIMEOUT = 100;
+  private static final int CONNECT_TIMEOUT = 1000;
+
+  /** How long a closed reporter keeps trying to send the reports it still has */
+  static final long CLOSE_TIMEOUT = 1000;
+
+  /** A message sent to the server, and the number of reports in it */
+  private static final class Sent {
+    final XTraceTcpMessage message;
+    final int reports;
+
+    Sent(XTraceTcpMessage message, int reports) {
+      this.message = message;
+      this.reports = reports;
+    }
+  }
+
+  private final boolean acks;
+  private final int maxUnacked;
+  private final long reconnectMillis;
+
+  /** When the worker stops trying to connect and send; set once the reporter is closed */
+  private volatile long closeDeadline = Long.MAX_VALUE;
+
+  /** Used only by the worker thread */
+  private final ArrayDeque<Sent> unacked = new ArrayDeque<Sent>();
+  private long sequence = 0;
+  private Socket socket;
+  private OutputStream out;
+  private DataInputStream in;
+
+  /** Creates a reporter sending to the configured server */
+  public TcpReporter(Trace trace) {
+    this(trace, null, 0, XTraceSettings.REPORTING_TCP_ACKS, XTraceSettings.REPORTING_TCP_MAX_UNACKED,
+        XTraceSettings.REPORTING_TCP_RECONNECT);
+  }
+
+  public TcpReporter(Trace trace, String hostname, int port, boolean acks, int maxUnacked, long reconnectMillis) {
+    super(trace, hostname, port, false);
+    this.acks = acks;
+    this.maxUnacked = Math.max(1, maxUnacked);
+    this.reconnectMillis = reconnectMillis;
+    worker.start();
+  }
+
+  @Override
+  public void close() {
+    closing();
+    super.close();
+  }
+
+  private void closing() {
+    if (closeDeadline == Long.MAX_VALUE)
+      closeDeadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+  }
+
+  @Override
+  public void run() {
+    if (hostname == null)
+      hostname = XTraceSettings.REPORTING_TCP_HOSTNAME;
+    if (port == 0)
+      port = XTraceSettings.REPORTING_TCP_PORT;
+    try {
+      running = true;
+      while (alive && !Thread.currentThread().isInterrupted()) {
+        // While messages are unacknowledged, keep reading, to notice acks and lost connections
+        Builder first = unacked.isEmpty() ? take() : poll(READ_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (first != null)
+          send(nextBatch(first, batchLingerNanos));
+        else if (connect())
+          readAcks(true);
+      }
+    } catch (Exception e) {
+      alive = false;
+    }
+    closing();
+    Thread.interrupted();
+
+    // Send the rest of the queue, and wait for acknowledgements, until the close timeout
+    Builder remaining;
+    while ((remaining = poll()) != null)
+      send(nextBatch(remaining, 0));
+    while (!unacked.isEmpty() && System.currentTimeMillis() < closeDeadline && connect())
+      readAcks(true);
+
+    for (Sent sent : unacked)
+      failed.addAndGet(sent.reports);
+    unacked.clear();
+    disconnect(null);
+  }
+
+  /**
+   * Sends a lone report as-is, and larger batches compressed unless compression
+   * is disabled, then waits while too many messages are unacknowledged
+   */
+  private void send(XTraceReportBatch.Builder batch) {
+    XTraceTcpMessage.Builder message = XTraceTcpMessage.newBuilder();
+    if (batch.getReportsCount() == 1)
+      message.setReport(batch.getReports(0));
+    else if (codec != null)
+      message.setCompressedBatch(codec.encode(batch.getReportsList()));
+    else
+      message.setBatch(batch);
+    if (acks)
+      message.setSequence(++sequence);
+    Sent sent = new Sent(message.build(), batch.getReportsCount());
+
+    if (acks)
+      unacked.add(sent);
+    while (true) {
+      // A new connection resends the unacknowledged messages, which include this one
+      boolean resent = acks && socket == null;
+      if (!connect()) {
+        if (!acks)
+          failed.addAndGet(sent.reports);
+        return;
+      }
+      if (resent)
+        break;
+      try {
+        write(sent);
+        out.flush();
+        break;
+      } catch (IOException e) {
+        disconnect(e);
+      }
+    }
+
+    if (acks) {
+      readAcks(false);
+      while (unacked.size() >= maxUnacked && System.currentTimeMillis() < closeDeadline && connect())
+        readAcks(true);
+    } else {
+      metrics.published.add(sent.reports);
+    }
+  }
+
+  private void write(Sent sent) throws IOException {
+    sent.message.writeDelimitedTo(out);
+    metrics.messages.increment();
+    metrics.bytes.add(sent.message.getSerializedSize());
+  }
+
+  /**
+   * Connects to the server if not connected, resending unacknowledged messages
+   * on the new connection, and retrying until the reporter is closed
+   *
+   * @return false if the close timeout passed without a connection
+   */
+  private boolean connect() {
+    while (socket == null) {
+      long now = System.currentTimeMillis();
+      if (now >= closeDeadline)
+        return false;
+      Socket s = new Socket();
+      try {
+        s.connect(new InetSocketAddress(hostname, port), CONNECT_TIMEOUT);
+        s.setTcpNoDelay(true);
+        s.setSoTimeout(READ_TIMEOUT);
+        socket = s;
+        out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+        in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        for (Sent sent : unacked)
+          write(sent);
+        out.flush();
+      } catch (IOException e) {
+        if (socket == null)
+          closeQuietly(s);
+        else
+          disconnect(e);
+        try {
+          Thread.sleep(Math.min(reconnectMillis, Math.max(0, closeDeadline - now)));
+        } catch (InterruptedException interrupted) {
+          // Closed; the close timeout ends the retries
+        }
+      }
+    }
+    return true;
+  }
+
+  private void disconnect(IOException cause) {
+    if (socket != null) {
+      if (cause != null)
+        LOG.warn("Lost connection to X-Trace server " + hostname + ":" + port + ": " + cause.getMessage());
+      closeQuietly(socket);
+      socket = null;
+      out = null;
+      in = null;
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Already closing
+    }
+  }
+
+  /**
+   * Reads acknowledgements that have arrived, or if block is true, waits a
+   * short while for at least one
+   */
+  private void readAcks(boolean block) {
+    try {
+      if (!block && in.available() == 0)
+        return;
+      do {
+        int first;
+        try {
+          first = in.read();
+        } catch (SocketTimeoutException e) {
+          return;
+        }
+        if (first < 0)
+          throw new EOFException("Connection closed by server");
+        byte[] bytes = new byte[CodedInputStream.readRawVarint32(first, in)];
+        in.readFully(bytes);
+        acknowledge(XTraceTcpAck.parseFrom(bytes).getSequence());
+      } while (in.available() > 0);
+    } catch (IOException e) {
+      disconnect(e);
+    }
+  }
+
+  /** Forgets every message up to and including the sequence number */
+  private void acknowledge(long sequence) {
+    Sent sent;
+    while ((sent = unacked.peek()) != null && sent.message.getSequence() <= sequence) {
+      unacked.poll();
+      metrics.published.add(sent.reports);
+    }
+  }
+
+}
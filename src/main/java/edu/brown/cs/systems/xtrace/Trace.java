@@ -1,16 +1,49 @@
 package edu.brown.cs.systems.xtrace;
 
-import edu.brown.cs.systems.xtrace.Metadata.XTraceMetadata.Builder;
-import edu.brown.cs.systems.xtrace.Metadata.XTraceMetadataOrBuilder;
-
 /**
  * The basic Trace class. Adds additional behaviours on top of those defined in
  * Context.
+ *
+ * Joins add the parent event IDs of the other context to the current context.
+ * If that takes the current context past the configured maximum number of
+ * parents, the bound reporter sends a join report whose parents are all of
+ * them, and the report's event ID becomes the context's only parent. This keeps
+ * serialized contexts small on fan-in heavy paths, eg. barriers that join
+ * hundreds of contexts. If the report cannot be sent, because the context is
+ * not sampled, logging is off for the XTrace agent, or the reporter discards
+ * it, eg. when its queue is full, the parents are kept.
  * 
  * @author Jonathan Mace
  */
 class Trace extends Context.Manager {
 
+  static final String JOIN_AGENT = "XTrace";
+
+  private final int maxParents;
+  private final LoggingControl.Switch joinSwitch = LoggingControl.INSTANCE.forAgent(JOIN_AGENT);
+  private volatile Reporter reporter = null;
+
+  Trace() {
+    this.maxParents = XTraceSettings.MAX_PARENT_IDS;
+  }
+
+  Trace(ContextStorage storage) {
+    this(storage, XTraceSettings.MAX_PARENT_IDS);
+  }
+
+  Trace(ContextStorage storage, int maxParents) {
+    super(storage);
+    this.maxParents = maxParents;
+  }
+
+  /**
+   * Sets the reporter used to collapse the parents of contexts that exceed the
+   * maximum. Without a reporter, parents are never collapsed
+   */
+  void setReporter(Reporter reporter) {
+    this.reporter = reporter;
+  }
+
   public void join(byte[] other) {
     join(Context.parse(other));
   }
@@ -22,6 +55,9 @@ class Trace extends Context.Manager {
       set(other);
     else
       mergeOtherContextIntoThis(other);
+
+    if (maxParents > 0 && observe().getParentEventIDCount() > maxParents)
+      collapseParents();
   }
 
   public void clear() {
@@ -30,8 +66,8 @@ class Trace extends Context.Manager {
 
   private void mergeOtherContextIntoThis(Context other) {
     // Break out early if current is the same as metadata
-    XTraceMetadataOrBuilder current = observe();
-    XTraceMetadataOrBuilder provided = other.observe();
+    Context current = observe();
+    Context provided = other.observe();
     if (current == provided) {
       return;
     }
@@ -44,27 +80,44 @@ class Trace extends Context.Manager {
     // Do a set if the current metadata has no parents
     if (current.getParentEventIDCount() == 0) {
       set(other);
-    }
-
-    // Check to see whether the parents are different
-    int numToAdd = 0;
-    long[] toAdd = new long[provided.getParentEventIDCount()];
-    parents: for (int i = 0; i < toAdd.length; i++) {
-      long parenti = provided.getParentEventID(i);
-      for (int j = 0; j < current.getParentEventIDCount(); j++) {
-        if (current.getParentEventID(j) == parenti) {
-          continue parents;
-        }
-      }
-      toAdd[numToAdd++] = parenti;
+      return;
     }
 
     // Add new parent IDs if there are any to add
-    if (numToAdd > 0) {
-      Builder builder = modify();
-      for (int i = 0; i < numToAdd; i++)
-        builder.addParentEventID(toAdd[i]);
-    }
+    long[] toAdd = current.parentEventIDsNotIn(provided);
+    if (toAdd.length > 0)
+      modify().addParentEventIDs(toAdd);
+  }
+
+  /**
+   * Returns the byte representation of the current context with at most one
+   * parent event ID. If it has more, they are first collapsed into a join
+   * event, so that no causality is lost. If the join report cannot be sent, the
+   * parents are kept and only the first is written. Returns null if no valid
+   * context
+   */
+  public byte[] bytesBoundedWithJoin() {
+    Context ctx = observe();
+    if (ctx != null && ctx.getParentEventIDCount() > 1)
+      collapseParents();
+    return bytesBounded();
+  }
+
+  /**
+   * Replaces the parents of the current context with a single join event. The
+   * join report goes through the same switch as the XTrace agent's logger; if it
+   * cannot be sent, or the reporter does not accept it, the parents are kept,
+   * since replacing them with an event that was never reported would lose
+   * causality
+   */
+  private void collapseParents() {
+    Reporter reporter = this.reporter;
+    if (reporter == null || !joinSwitch.enabled || !reporter.valid())
+      return;
+
+    // The context may also be held by the caller of join, so it must be copied
+    get();
+    reporter.sendJoinReport(JOIN_AGENT, Reporter.createReport("Join", "Parents", observe().getParentEventIDCount()));
   }
 
 }
@@ -1,12 +1,15 @@
 package edu.brown.cs.systems.xtrace;
 
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import edu.brown.cs.systems.xtrace.Metadata.XTraceMetadata;
-import edu.brown.cs.systems.xtrace.Metadata.XTraceMetadataOrBuilder;
 import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
 import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3.Builder;
 
@@ -28,7 +31,13 @@ public class XTrace {
   public static byte[] XTRACE_BYTES_EXAMPLE = XTraceMetadata.newBuilder().setTaskID(Long.MIN_VALUE).addParentEventID(Long.MIN_VALUE).setTenantClass(Integer.MAX_VALUE).build().toByteArray();
 
   static final Trace METADATA = new Trace();
-  static final Reporter REPORTER = new PubSubReporter(METADATA);
+  static final Reporter REPORTER = "tcp".equals(XTraceSettings.REPORTING_TRANSPORT) ? new TcpReporter(METADATA)
+      : SpoolingPubSubReporter.create(METADATA);
+
+  static {
+    METADATA.setReporter(REPORTER);
+    REPORTER.getMetrics().register();
+  }
 
   public interface Logger {
     /** Returns true if this logger is currently able to send reports */
@@ -73,51 +82,123 @@ public class XTrace {
     }
   };
 
+  /**
+   * A logger for an agent. Checks the agent's switch on every call, so that
+   * logging can be turned on and off at runtime through LoggingControl
+   */
   static class LoggerImpl implements Logger {
     private final String agent;
+    protected final LoggingControl.Switch enabled;
 
     public LoggerImpl(String agent) {
+      this(agent, LoggingControl.INSTANCE.forAgent(agent));
+    }
+
+    public LoggerImpl(String agent, LoggingControl.Switch enabled) {
       this.agent = agent;
+      this.enabled = enabled;
     }
 
     public boolean valid() {
-      return REPORTER.valid();
+      return enabled.enabled && REPORTER.valid();
+    }
+
+    public void log(String message, Object... labels) {
+      if (enabled.enabled)
+        REPORTER.report(agent, message, labels);
+    }
+
+    public void log(XTraceReport3.Builder report) {
+      if (enabled.enabled)
+        REPORTER.report(agent, report);
+    }
+
+    public void logOOB(XTraceReport3.Builder report) {
+      if (enabled.enabled)
+        REPORTER.reportNoXTrace(agent, report);
+    }
+
+    public void tag(String message, String... tags) {
+      if (enabled.enabled)
+        REPORTER.reportTagged(agent, message, tags);
+    }
+  }
+
+  /**
+   * A logger for an agent with a rate limit configured. Reports beyond the
+   * agent's limit are suppressed
+   */
+  static class RateLimitedLogger extends LoggerImpl {
+    private final ReportRateLimiter limiter;
+
+    public RateLimitedLogger(String agent, LoggingControl.Switch enabled, ReportRateLimiter limiter) {
+      super(agent, enabled);
+      this.limiter = limiter;
     }
 
     public void log(String message, Object... labels) {
-      REPORTER.report(agent, message, labels);
+      if (valid() && limiter.tryAcquire())
+        super.log(message, labels);
     }
 
     public void log(XTraceReport3.Builder report) {
-      REPORTER.report(agent, report);
+      if (enabled.enabled && limiter.tryAcquire())
+        super.log(report);
     }
 
     public void logOOB(XTraceReport3.Builder report) {
-      REPORTER.reportNoXTrace(agent, report);
+      if (enabled.enabled && limiter.tryAcquire())
+        super.logOOB(report);
     }
 
     public void tag(String message, String... tags) {
-      REPORTER.reportTagged(agent, message, tags);
+      if (valid() && limiter.tryAcquire())
+        super.tag(message, tags);
     }
   }
 
+  /**
+   * Creates a logger for an agent, rate limited if a limit is configured
+   * 
+   * @param agent
+   *          the name the logger reports under
+   * @param enabled
+   *          the switch that turns the logger on and off
+   */
+  static Logger newLogger(String agent, LoggingControl.Switch enabled) {
+    ReportRateLimiter limiter = ReportRateLimiter.forAgent(agent);
+    return limiter == null ? new LoggerImpl(agent, enabled) : new RateLimitedLogger(agent, enabled, limiter);
+  }
+
+  /**
+   * Loggers handed out by getLogger, one per agent name. A logger checks its
+   * agent's switch on every call, so a cached logger follows enablement changes
+   */
+  private static final ConcurrentMap<String, Logger> LOGGERS = new ConcurrentHashMap<String, Logger>();
+  private static final Logger DEFAULT_LOGGER = newLogger("default", LoggingControl.INSTANCE.forAgent(null));
+
+  /** Loggers for classes, stored on the class itself so a lookup is a field read */
+  private static final ClassValue<Logger> CLASS_LOGGERS = new ClassValue<Logger>() {
+    @Override
+    protected Logger computeValue(Class<?> agent) {
+      return getLogger(agent.getName());
+    }
+  };
+
   /**
    * Returns the default logger
    * 
    * @return
    */
   public static Logger getLogger() {
-    if (XTraceSettings.REPORTING_ENABLED_DEFAULT)
-      return new LoggerImpl("default");
-    else
-      return NULL_LOGGER;
+    return DEFAULT_LOGGER;
   }
   
   /**
    * @return true if XTrace logging is enabled globally
    */
   public static boolean isLoggingEnabled() {
-    return XTraceSettings.REPORTING_ON;
+    return LoggingControl.INSTANCE.isReportingOn();
   }
   
   /**
@@ -125,23 +206,25 @@ public class XTrace {
    * @return true if logging is enabled for this agent.
    */
   public static boolean canLog(String agent) {
-    if (!XTraceSettings.REPORTING_ON) 
-      return false;
-    else if (agent==null) 
-      return XTraceSettings.REPORTING_ENABLED_DEFAULT;
-    else if (XTraceSettings.REPORTING_ENABLED_DEFAULT) 
-      return !XTraceSettings.REPORTING_DISABLED.contains(agent);
-    else 
-      return XTraceSettings.REPORTING_ENABLED.contains(agent);
+    return LoggingControl.INSTANCE.canLog(agent);
   }
 
+  /**
+   * Returns the logger for the agent. Every call with the same agent returns
+   * the same logger. Whether the logger sends reports can be changed at runtime
+   * through LoggingControl
+   */
   public static Logger getLogger(String agent) {
     if (agent == null)
       return getLogger();
-    else if (canLog(agent))
-      return new LoggerImpl(agent);
-    else
-      return NULL_LOGGER;
+    Logger logger = LOGGERS.get(agent);
+    if (logger == null) {
+      logger = newLogger(agent, LoggingControl.INSTANCE.forAgent(agent));
+      Logger existing = LOGGERS.putIfAbsent(agent, logger);
+      if (existing != null)
+        logger = existing;
+    }
+    return logger;
   }
 
   /**
@@ -156,7 +239,7 @@ public class XTrace {
     if (agent == null)
       return NULL_LOGGER;
     else
-      return getLogger(agent.getName());
+      return CLASS_LOGGERS.get(agent);
   }
 
   /**
@@ -250,12 +333,52 @@ public class XTrace {
 
   /**
    * @return the byte representation of the X-Trace metadata being propagated in
-   *         this thread
+   *         this thread, as a new array. writeTo avoids the copy
    */
   public static byte[] bytes() {
     return METADATA.bytes();
   }
 
+  /**
+   * Writes the byte representation of the X-Trace metadata being propagated in
+   * this thread into the provided heap or direct buffer, at the buffer's
+   * current position, without allocating an intermediate array
+   *
+   * @param buf
+   *          the buffer to write to, with at least maxEncodedSize() bytes
+   *          remaining
+   * @return the number of bytes written, or 0 if no metadata is being
+   *         propagated in this thread
+   */
+  public static int writeTo(ByteBuffer buf) {
+    return METADATA.writeTo(buf);
+  }
+
+  /**
+   * Instructs X-Trace to start propagating the metadata found in a range of
+   * the provided heap or direct buffer in this thread. The metadata is read in
+   * place and the buffer's position is not changed. If the bytes are invalid,
+   * X-Trace stops propagating metadata in this thread
+   *
+   * @param buf
+   *          the buffer containing the byte representation of the metadata
+   * @param offset
+   *          the index in the buffer of the first byte of the metadata
+   * @param length
+   *          the number of bytes of metadata
+   */
+  public static void readFrom(ByteBuffer buf, int offset, int length) {
+    METADATA.set(buf, offset, length);
+  }
+
+  /**
+   * @return the number of bytes that writeTo would write for the X-Trace
+   *         metadata being propagated in this thread, or 0 if none
+   */
+  public static int maxEncodedSize() {
+    return METADATA.maxEncodedSize();
+  }
+
   /**
    * @return a base16 encoded string of the X-Trace metadata being propagated in
    *         this thread, or null if no currently valid context.  base16 is just
@@ -277,19 +400,41 @@ public class XTrace {
    * @return some clients wish to bound the size of the metadata that is sent on
    *         the wire this method returns the byte representation of the X-Trace
    *         metadata, but only sends a single parent id. this will lose
-   *         causality, so the client should log before sending this call
+   *         causality, so the client should log before sending this call, or
+   *         use bytesBoundedWithJoin instead. The array is a copy that the
+   *         caller may modify; use writeBoundedTo to avoid the copy
    */
   public static byte[] bytesBounded() {
-    XTraceMetadataOrBuilder md = METADATA.observe();
-    if (md != null && md.getParentEventIDCount() > 1) {
-      long firstParentEventID = md.getParentEventID(0);
-      try {
-        return XTraceMetadata.newBuilder().mergeFrom(bytes()).clearParentEventID().addParentEventID(firstParentEventID).build().toByteArray();
-      } catch (Exception e) {
-        // Do nothing, return bytes
-      }
-    }
-    return bytes();
+    return METADATA.bytesBounded();
+  }
+
+  /**
+   * Writes the byte representation of the X-Trace metadata being propagated in
+   * this thread, with only a single parent id, into the provided heap or direct
+   * buffer at the buffer's current position. As with bytesBounded, this loses
+   * causality if there are several parents
+   *
+   * @param buf
+   *          the buffer to write to, with at least maxEncodedSize() bytes
+   *          remaining
+   * @return the number of bytes written, or 0 if no metadata is being
+   *         propagated in this thread
+   */
+  public static int writeBoundedTo(ByteBuffer buf) {
+    return METADATA.writeBoundedTo(buf);
+  }
+
+  /**
+   * @return like bytesBounded, the byte representation of the X-Trace metadata
+   *         with a single parent id, but if the metadata has several parents, a
+   *         join event is logged first and becomes the only parent, so that no
+   *         causality is lost. If the join cannot be logged, because the
+   *         metadata is not sampled, logging is off for the XTrace agent, or
+   *         the reporter's queue discards the report, the parents are kept in this thread and this is the same as
+   *         bytesBounded
+   */
+  public static byte[] bytesBoundedWithJoin() {
+    return METADATA.bytesBoundedWithJoin();
   }
 
   /**
@@ -310,7 +455,7 @@ public class XTrace {
    * @return true if a task ID is being propagated by X-Trace in this thread
    */
   public static boolean hasTaskID() {
-    XTraceMetadataOrBuilder xmd = METADATA.observe();
+    Context xmd = METADATA.observe();
     return xmd == null ? false : xmd.hasTaskID();
   }
 
@@ -319,7 +464,7 @@ public class XTrace {
    *         thread
    */
   public static boolean hasTenantClass() {
-    XTraceMetadataOrBuilder xmd = METADATA.observe();
+    Context xmd = METADATA.observe();
     return xmd == null ? false : xmd.hasTenantClass();
   }
 
@@ -328,17 +473,17 @@ public class XTrace {
    *         or null if none being propagated
    */
   public static Long getTaskID() {
-    XTraceMetadataOrBuilder xmd = METADATA.observe();
+    Context xmd = METADATA.observe();
     return xmd == null ? null : xmd.hasTaskID() ? xmd.getTaskID() : null;
   }
 
   public static boolean isCausalityEnabled() {
-    XTraceMetadataOrBuilder xmd = METADATA.observe();
+    Context xmd = METADATA.observe();
     return xmd == null ? false : xmd.getParentEventIDCount() > 0;
   }
 
   public static List<Long> getParentIDs() {
-    XTraceMetadataOrBuilder xmd = METADATA.observe();
+    Context xmd = METADATA.observe();
     return xmd == null ? null : xmd.getParentEventIDList();
   }
 
@@ -347,7 +492,7 @@ public class XTrace {
    *         thread, or -1 if none being propagated
    */
   public static int getTenantClass() {
-    XTraceMetadataOrBuilder xmd = METADATA.observe();
+    Context xmd = METADATA.observe();
     return xmd == null ? -1 : xmd.hasTenantClass() ? xmd.getTenantClass() : -1;
   }
 
@@ -358,7 +503,7 @@ public class XTrace {
   public static int getTenantClass(Context ctx) {
     if (ctx==null)
       return -1;
-    XTraceMetadataOrBuilder xmd = ctx.observe();
+    Context xmd = ctx.observe();
     return xmd == null ? -1 : xmd.hasTenantClass() ? xmd.getTenantClass() : -1;
   }
 
@@ -367,7 +512,7 @@ public class XTrace {
    *         and it is therefore worth logging a message before serializing.
    */
   public static boolean shouldLogBeforeSerialization() {
-    XTraceMetadataOrBuilder xmd = METADATA.observe();
+    Context xmd = METADATA.observe();
     return xmd == null ? false : xmd.getParentEventIDCount() > 1;
   }
 
@@ -380,7 +525,21 @@ public class XTrace {
    *          should we also track causality for this task?
    */
   public static void startTask(boolean trackCausality) {
-    setTask(Reporter.random.nextLong(), trackCausality);
+    startTask(null, trackCausality);
+  }
+
+  /**
+   * Start propagating a task ID in this thread if we aren't already propagating
+   * a task ID, on behalf of the specified agent. The agent's sampling rate, if
+   * one is configured, decides whether the task is reported
+   * 
+   * @param agent
+   *          the agent starting the task
+   * @param trackCausality
+   *          should we also track causality for this task?
+   */
+  public static void startTask(String agent, boolean trackCausality) {
+    setTask(REPORTER.nextID(), agent, trackCausality);
   }
 
   /**
@@ -394,14 +553,30 @@ public class XTrace {
    *          should we also track causality for this task?
    */
   public static void setTask(long taskid, boolean trackCausality) {
-    XTraceMetadataOrBuilder current = METADATA.observe();
+    setTask(taskid, null, trackCausality);
+  }
+
+  private static void setTask(long taskid, String agent, boolean trackCausality) {
+    Context current = METADATA.observe();
     if (current != null && current.hasTaskID())
       return;
 
-    if (trackCausality)
-      METADATA.modify().setTaskID(Reporter.random.nextLong()).clearParentEventID().addParentEventID(0L);
+    // Unsampled tasks are never reported, so there is no causality to track
+    if (!Sampling.sample(taskid, Sampling.rate(agent, current)))
+      METADATA.modify().setTaskID(taskid).clearParentEventID().setSampled(false);
+    else if (trackCausality)
+      METADATA.modify().setTaskID(taskid).clearParentEventID().addParentEventID(0L);
     else
-      METADATA.modify().setTaskID(Reporter.random.nextLong()).clearParentEventID();
+      METADATA.modify().setTaskID(taskid).clearParentEventID();
+  }
+
+  /**
+   * @return true if the current task was chosen to be reported when it was
+   *         started, or if there is no current task
+   */
+  public static boolean isSampled() {
+    Context xmd = METADATA.observe();
+    return xmd == null || xmd.isSampled();
   }
 
   /**
@@ -443,6 +618,47 @@ public class XTrace {
     }
   }
   
+  /**
+   * Calls the task with the provided metadata as this thread's X-Trace
+   * metadata, restoring the current metadata afterwards. With scoped context
+   * storage, the task runs in a new scope, and child tasks it forks see the
+   * metadata
+   */
+  public static <V> V call(Context metadata, Callable<V> task) throws Exception {
+    return METADATA.call(metadata, task);
+  }
+
+  /**
+   * Runs the task with the provided metadata as this thread's X-Trace
+   * metadata, restoring the current metadata afterwards
+   * 
+   * @see #call(Context, Callable)
+   */
+  public static void run(Context metadata, final Runnable task) {
+    try {
+      METADATA.call(metadata, new Callable<Void>() {
+        public Void call() {
+          task.run();
+          return null;
+        }
+      });
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      // Runnables do not throw checked exceptions
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns counters of the reports this process has created, queued, dropped
+   * and published, also available through JMX as
+   * edu.brown.cs.systems.xtrace:type=ReporterMetrics
+   */
+  public static ReporterMetrics getMetrics() {
+    return REPORTER.getMetrics();
+  }
+
   public static void shutdown() {
     REPORTER.close();
   }
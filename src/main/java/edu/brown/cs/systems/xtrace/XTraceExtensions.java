@@ -1,6 +1,9 @@
 package edu.brown.cs.systems.xtrace;
 
+import java.util.Collection;
+
 import edu.brown.cs.systems.xtrace.Reporter.Decorator;
+import edu.brown.cs.systems.xtrace.Reporter.IDGenerator;
 
 /**
  * Provides some additional API calls to customize X-Trace from the client side
@@ -13,4 +16,21 @@ public class XTraceExtensions {
     XTrace.REPORTER.setDecorator(decorator);
   }
 
+  public static void setIDGenerator(IDGenerator idgenerator) {
+    XTrace.REPORTER.setIDGenerator(idgenerator);
+  }
+
+  /** Returns the number of reports discarded because the reporter could not keep up */
+  public static long getDroppedReports() {
+    return XTrace.REPORTER.getDroppedReports();
+  }
+
+  /**
+   * Returns the rate limiters of agents that have a rate limit, with their
+   * counts of accepted and suppressed reports
+   */
+  public static Collection<ReportRateLimiter> getRateLimiters() {
+    return ReportRateLimiter.all();
+  }
+
 }
@@ -1,10 +1,14 @@
 package edu.brown.cs.systems.xtrace;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValue;
 
 public class XTraceSettings {
 
@@ -16,22 +20,98 @@ public class XTraceSettings {
   public static final int WEBUI_PORT = CONFIG.getInt("xtrace.server.webui.port");
 
   public static final int TCP_PORT = CONFIG.getInt("xtrace.tcp.port");
+  public static final int TCP_PROTOBUF_PORT = CONFIG.getInt("xtrace.tcp.protobuf-port");
 
   public static final int PUBSUB_PUBLISH_PORT = CONFIG.getInt("xtrace.pubsub.client-publish-port");
   public static final int PUBSUB_SUBSCRIBE_PORT = CONFIG.getInt("xtrace.pubsub.client-subscribe-port");
+  public static final String CONTEXT_STORAGE = CONFIG.getString("xtrace.client.context-storage");
+  public static final int MAX_PARENT_IDS = CONFIG.getInt("xtrace.client.max-parent-ids");
   public static final String PUBSUB_TOPIC = CONFIG.getString("xtrace.pubsub.topic");
+  public static final String PUBSUB_BATCH_TOPIC = CONFIG.getString("xtrace.pubsub.batch-topic");
+  public static final String PUBSUB_COMPRESSED_BATCH_TOPIC = CONFIG.getString("xtrace.pubsub.compressed-batch-topic");
 
   public static final int DATABASE_UPDATE_INTERVAL = CONFIG.getInt("xtrace.server.database-update-interval-ms");
+  public static final int DATABASE_MAX_PENDING_TASKS = CONFIG.getInt("xtrace.server.database-max-pending-tasks");
 
   public static final String DATASTORE_DIRECTORY = CONFIG.getString("xtrace.server.datastore.dir");
   public static final int DATASTORE_BUFFER_SIZE = CONFIG.getInt("xtrace.server.datastore.buffer-size");
   public static final int DATASTORE_CACHE_SIZE = CONFIG.getInt("xtrace.server.datastore.cache-size");
   public static final int DATASTORE_CACHE_TIMEOUT = CONFIG.getInt("xtrace.server.datastore.cache-timeout");
+
+  public static final int INGEST_WORKERS = CONFIG.getInt("xtrace.server.ingest.workers");
+  public static final int INGEST_QUEUE_CAPACITY = CONFIG.getInt("xtrace.server.ingest.queue-capacity");
+  public static final Map<Integer, Integer> INGEST_SHEDDING_PRIORITIES = tenantClassPriorities("xtrace.server.ingest.shedding.tenant-class-priorities");
+  public static final int INGEST_SHEDDING_DEFAULT_PRIORITY = CONFIG.getInt("xtrace.server.ingest.shedding.default-priority");
+  public static final double[] INGEST_SHEDDING_THRESHOLDS = thresholds("xtrace.server.ingest.shedding.thresholds");
+  public static final int INGEST_SHEDDING_MAX_REPORTS_PER_TASK = CONFIG.getInt("xtrace.server.ingest.shedding.max-reports-per-task");
+  public static final long INGEST_SHEDDING_TASK_WINDOW = CONFIG.getLong("xtrace.server.ingest.shedding.task-window-ms");
   
   public static final boolean REPORTING_ON = CONFIG.getBoolean("xtrace.client.reporting.on");
   public static final boolean REPORTING_ENABLED_DEFAULT = CONFIG.getBoolean("xtrace.client.reporting.logging-default");
   public static final Set<String> REPORTING_ENABLED = new HashSet<String>(CONFIG.getStringList("xtrace.client.reporting.logging-enabled"));
   public static final Set<String> REPORTING_DISABLED = new HashSet<String>(CONFIG.getStringList("xtrace.client.reporting.logging-disabled"));
+  public static final String REPORTING_OVERRIDE_FILE = CONFIG.getString("xtrace.client.reporting.override-file");
+  public static final int REPORTING_QUEUE_CAPACITY = CONFIG.getInt("xtrace.client.reporting.queue.capacity");
+  public static final String REPORTING_QUEUE_OVERFLOW_POLICY = CONFIG.getString("xtrace.client.reporting.queue.overflow-policy");
+  public static final long REPORTING_QUEUE_BLOCK_TIMEOUT = CONFIG.getLong("xtrace.client.reporting.queue.block-timeout-ms");
+  public static final double RATE_LIMIT_DEFAULT = CONFIG.getDouble("xtrace.client.reporting.rate-limit.default");
+  public static final Map<String, Double> RATE_LIMIT_AGENTS = rates("xtrace.client.reporting.rate-limit.agents");
+  public static final long RATE_LIMIT_BURST = CONFIG.getLong("xtrace.client.reporting.rate-limit.burst-ms");
+  public static final boolean REPORTING_DEFERRED = CONFIG.getBoolean("xtrace.client.reporting.deferred");
+  public static final int REPORTING_BATCH_MAX_REPORTS = CONFIG.getInt("xtrace.client.reporting.batch.max-reports");
+  public static final int REPORTING_BATCH_MAX_BYTES = CONFIG.getInt("xtrace.client.reporting.batch.max-bytes");
+  public static final long REPORTING_BATCH_LINGER = CONFIG.getLong("xtrace.client.reporting.batch.linger-ms");
+  public static final boolean REPORTING_BATCH_COMPRESS = CONFIG.getBoolean("xtrace.client.reporting.batch.compress");
+  public static final boolean SPOOL_ENABLED = CONFIG.getBoolean("xtrace.client.reporting.spool.enabled");
+  public static final String SPOOL_DIRECTORY = CONFIG.getString("xtrace.client.reporting.spool.dir");
+  public static final int SPOOL_SEGMENT_SIZE = CONFIG.getInt("xtrace.client.reporting.spool.segment-size");
+  public static final long SPOOL_MAX_SIZE = CONFIG.getLong("xtrace.client.reporting.spool.max-size");
+  public static final long SPOOL_PROBE_INTERVAL = CONFIG.getLong("xtrace.client.reporting.spool.probe-interval-ms");
+  public static final String REPORTING_TRANSPORT = CONFIG.getString("xtrace.client.reporting.transport");
+  public static final String REPORTING_TCP_HOSTNAME = CONFIG.getString("xtrace.client.reporting.tcp.hostname");
+  public static final int REPORTING_TCP_PORT = CONFIG.getInt("xtrace.client.reporting.tcp.port");
+  public static final boolean REPORTING_TCP_ACKS = CONFIG.getBoolean("xtrace.client.reporting.tcp.acks");
+  public static final int REPORTING_TCP_MAX_UNACKED = CONFIG.getInt("xtrace.client.reporting.tcp.max-unacked");
+  public static final long REPORTING_TCP_RECONNECT = CONFIG.getLong("xtrace.client.reporting.tcp.reconnect-ms");
+
+  public static final double SAMPLING_RATE = CONFIG.getDouble("xtrace.client.sampling.rate");
+  public static final Map<String, Double> SAMPLING_AGENT_RATES = rates("xtrace.client.sampling.agent-rates");
+  public static final Map<Integer, Double> SAMPLING_TENANT_CLASS_RATES = tenantClassRates("xtrace.client.sampling.tenant-class-rates");
+
+  public static final List<String> AGENT_TRACKED_CLASSES = CONFIG.getStringList("xtrace.client.agent.tracked-classes");
+  public static final List<String> AGENT_SAVE_ARGUMENTS = CONFIG.getStringList("xtrace.client.agent.save-arguments");
+  public static final List<String> AGENT_JOIN_ARGUMENTS = CONFIG.getStringList("xtrace.client.agent.join-arguments");
+  public static final List<String> AGENT_JOIN_RETURNED = CONFIG.getStringList("xtrace.client.agent.join-returned");
+  public static final long AGENT_BUDGET = CONFIG.getLong("xtrace.client.agent.budget-ms");
+
+  private static Map<String, Double> rates(String path) {
+    Map<String, Double> rates = new HashMap<String, Double>();
+    for (Map.Entry<String, ConfigValue> entry : CONFIG.getObject(path).entrySet())
+      rates.put(entry.getKey(), ((Number) entry.getValue().unwrapped()).doubleValue());
+    return rates;
+  }
+
+  private static Map<Integer, Double> tenantClassRates(String path) {
+    Map<Integer, Double> rates = new HashMap<Integer, Double>();
+    for (Map.Entry<String, Double> entry : rates(path).entrySet())
+      rates.put(Integer.valueOf(entry.getKey()), entry.getValue());
+    return rates;
+  }
+
+  private static Map<Integer, Integer> tenantClassPriorities(String path) {
+    Map<Integer, Integer> priorities = new HashMap<Integer, Integer>();
+    for (Map.Entry<String, ConfigValue> entry : CONFIG.getObject(path).entrySet())
+      priorities.put(Integer.valueOf(entry.getKey()), ((Number) entry.getValue().unwrapped()).intValue());
+    return priorities;
+  }
+
+  private static double[] thresholds(String path) {
+    List<Double> values = CONFIG.getDoubleList(path);
+    double[] thresholds = new double[values.size()];
+    for (int i = 0; i < thresholds.length; i++)
+      thresholds[i] = values.get(i);
+    return thresholds;
+  }
   
 
 }
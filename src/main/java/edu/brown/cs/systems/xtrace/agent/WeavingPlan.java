@@ -0,0 +1,102 @@
+package edu.brown.cs.systems.xtrace.agent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What the agent does to one class: whether to make it implement XTracked, and
+ * which calls to insert into which of its methods
+ */
+final class WeavingPlan {
+
+  enum Kind {
+    SAVE_ARGUMENT, JOIN_ARGUMENT, JOIN_RETURNED
+  }
+
+  /** A call inserted into every method of a class with the given name */
+  static final class MethodAction {
+    final String method;
+    final Kind kind;
+    final int argument;
+
+    MethodAction(String method, Kind kind, int argument) {
+      this.method = method;
+      this.kind = kind;
+      this.argument = argument;
+    }
+  }
+
+  boolean tracked = false;
+  final List<MethodAction> actions = new ArrayList<MethodAction>();
+
+  /** Returns the actions for methods with the name */
+  List<MethodAction> actionsFor(String method) {
+    List<MethodAction> matching = null;
+    for (MethodAction action : actions) {
+      if (action.method.equals(method)) {
+        if (matching == null)
+          matching = new ArrayList<MethodAction>();
+        matching.add(action);
+      }
+    }
+    return matching;
+  }
+
+  /**
+   * Builds the plans for the configured classes and methods, keyed by internal
+   * class name, eg. com/example/Task
+   *
+   * @throws IllegalArgumentException
+   *           if a method is not of the form class#method or class#method(index)
+   */
+  static Map<String, WeavingPlan> create(List<String> trackedClasses, List<String> saveArguments,
+      List<String> joinArguments, List<String> joinReturned) {
+    Map<String, WeavingPlan> plans = new HashMap<String, WeavingPlan>();
+    for (String className : trackedClasses)
+      planFor(plans, className.trim()).tracked = true;
+    for (String spec : saveArguments)
+      addAction(plans, spec, Kind.SAVE_ARGUMENT);
+    for (String spec : joinArguments)
+      addAction(plans, spec, Kind.JOIN_ARGUMENT);
+    for (String spec : joinReturned)
+      addAction(plans, spec, Kind.JOIN_RETURNED);
+    return plans;
+  }
+
+  private static WeavingPlan planFor(Map<String, WeavingPlan> plans, String className) {
+    String internalName = className.replace('.', '/');
+    WeavingPlan plan = plans.get(internalName);
+    if (plan == null)
+      plans.put(internalName, plan = new WeavingPlan());
+    return plan;
+  }
+
+  private static void addAction(Map<String, WeavingPlan> plans, String spec, Kind kind) {
+    String s = spec.trim();
+    int hash = s.indexOf('#');
+    int paren = s.indexOf('(');
+    if (hash <= 0 || hash == s.length() - 1)
+      throw new IllegalArgumentException("Expected class#method, got " + spec);
+
+    int argument = -1;
+    String method = s.substring(hash + 1);
+    if (paren > hash) {
+      if (!s.endsWith(")"))
+        throw new IllegalArgumentException("Expected class#method(index), got " + spec);
+      method = s.substring(hash + 1, paren);
+      try {
+        argument = Integer.parseInt(s.substring(paren + 1, s.length() - 1).trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Expected class#method(index), got " + spec);
+      }
+    }
+    if (kind == Kind.JOIN_RETURNED ? argument != -1 : argument < 0)
+      throw new IllegalArgumentException((kind == Kind.JOIN_RETURNED ? "Expected class#method, got "
+          : "Expected class#method(index), got ") + spec);
+
+    planFor(plans, s.substring(0, hash)).actions.add(new MethodAction(method, kind, argument));
+  }
+
+}
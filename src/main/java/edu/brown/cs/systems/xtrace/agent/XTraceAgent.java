@@ -0,0 +1,43 @@
+package edu.brown.cs.systems.xtrace.agent;
+
+import java.lang.instrument.Instrumentation;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import edu.brown.cs.systems.xtrace.XTraceSettings;
+
+/**
+ * A java agent that weaves XTracked into the classes configured under
+ * xtrace.client.agent as they are loaded, so that queue elements carry the
+ * X-Trace context of the thread that enqueued them without being edited by
+ * hand. Run with -javaagent:xtrace-<version>-agent.jar, which bundles the
+ * client's dependencies with ASM relocated.
+ */
+public class XTraceAgent {
+  private static final Logger LOG = Logger.getLogger(XTraceAgent.class);
+
+  private static volatile XTrackedTransformer transformer = null;
+
+  public static void premain(String args, Instrumentation inst) {
+    Map<String, WeavingPlan> plans;
+    try {
+      plans = WeavingPlan.create(XTraceSettings.AGENT_TRACKED_CLASSES, XTraceSettings.AGENT_SAVE_ARGUMENTS,
+          XTraceSettings.AGENT_JOIN_ARGUMENTS, XTraceSettings.AGENT_JOIN_RETURNED);
+    } catch (IllegalArgumentException e) {
+      LOG.warn("Invalid X-Trace agent configuration, no classes will be woven", e);
+      return;
+    }
+    if (plans.isEmpty())
+      return;
+    transformer = new XTrackedTransformer(plans, XTraceSettings.AGENT_BUDGET, TimeUnit.MILLISECONDS);
+    inst.addTransformer(transformer);
+  }
+
+  /** Returns the agent's transformer, or null if the agent is not running or has nothing to weave */
+  public static XTrackedTransformer getTransformer() {
+    return transformer;
+  }
+
+}
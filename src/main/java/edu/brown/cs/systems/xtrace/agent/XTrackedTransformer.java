@@ -0,0 +1,309 @@
+package edu.brown.cs.systems.xtrace.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import edu.brown.cs.systems.xtrace.agent.WeavingPlan.Kind;
+import edu.brown.cs.systems.xtrace.agent.WeavingPlan.MethodAction;
+
+/**
+ * Weaves the configured classes as they are loaded: tracked classes are made
+ * to implement XTracked with the same field and methods as
+ * XTracked.XTrackedImpl, and configured methods get calls to XTracking.save or
+ * XTracking.join inserted on entry or before returning.
+ *
+ * Classes that are not configured are skipped with a single map lookup. The
+ * time spent weaving is added up, and once it exceeds the budget no more
+ * classes are woven, so that the agent cannot noticeably slow down startup.
+ * Configured classes loaded after that are logged at warn, by name. A tracked
+ * class that already declares one of the members XTracked weaving adds is left
+ * unwoven, with a warning, since duplicate members would stop it loading.
+ */
+public class XTrackedTransformer implements ClassFileTransformer {
+  private static final Logger LOG = Logger.getLogger(XTrackedTransformer.class);
+
+  static final String XTRACKED = "edu/brown/cs/systems/xtrace/extensions/XTracked";
+  static final String FIELD = "__xtraced__xtrace_metadata";
+  private static final String XTRACE = "edu/brown/cs/systems/xtrace/XTrace";
+  private static final String CONTEXT = "Ledu/brown/cs/systems/xtrace/Context;";
+  private static final String XTRACKING = "edu/brown/cs/systems/xtrace/agent/XTracking";
+
+  private final Map<String, WeavingPlan> plans;
+  private final long budgetNanos;
+  private final AtomicLong spentNanos = new AtomicLong();
+  private final AtomicInteger woven = new AtomicInteger();
+  private final Queue<String> skipped = new ConcurrentLinkedQueue<String>();
+  private volatile boolean exhausted = false;
+
+  XTrackedTransformer(Map<String, WeavingPlan> plans, long budget, TimeUnit unit) {
+    this.plans = plans;
+    this.budgetNanos = unit.toNanos(budget);
+  }
+
+  public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+      ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+    if (className == null)
+      return null;
+    WeavingPlan plan = plans.get(className);
+    if (plan == null)
+      return null;
+    if (exhausted) {
+      skipped.add(className);
+      LOG.warn("X-Trace agent weaving budget exhausted; not weaving configured class " + className.replace('/', '.'));
+      return null;
+    }
+
+    long start = System.nanoTime();
+    try {
+      byte[] transformed = weave(classfileBuffer, plan);
+      woven.incrementAndGet();
+      return transformed;
+    } catch (MemberClash e) {
+      LOG.warn("X-Trace agent: not weaving " + className.replace('/', '.') + ", which already declares " + e.getMessage());
+      return null;
+    } catch (Throwable t) {
+      LOG.warn("Unable to weave X-Trace into " + className, t);
+      return null;
+    } finally {
+      if (spentNanos.addAndGet(System.nanoTime() - start) > budgetNanos && !exhausted) {
+        exhausted = true;
+        LOG.warn("X-Trace agent weaving budget of " + TimeUnit.NANOSECONDS.toMillis(budgetNanos)
+            + "ms exhausted after weaving " + woven.get() + " classes; no more classes will be woven");
+      }
+    }
+  }
+
+  /** Returns the number of classes woven so far */
+  public int getWovenClasses() {
+    return woven.get();
+  }
+
+  /** Returns the time spent weaving so far */
+  public long getSpentNanos() {
+    return spentNanos.get();
+  }
+
+  /** Returns the configured classes that were loaded after the budget was spent */
+  public List<String> getSkippedClasses() {
+    return new ArrayList<String>(skipped);
+  }
+
+  /** Returns true if the budget is spent and classes are no longer woven */
+  public boolean isExhausted() {
+    return exhausted;
+  }
+
+  /** Returns the class file with the plan applied */
+  static byte[] weave(byte[] classfile, WeavingPlan plan) {
+    ClassReader reader = new ClassReader(classfile);
+    // Inserted code never branches, so existing stack map frames stay valid
+    ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+    reader.accept(new Weaver(writer, plan), 0);
+    return writer.toByteArray();
+  }
+
+  /** Thrown when a class already declares a member that XTracked weaving would add */
+  static final class MemberClash extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    MemberClash(String member) {
+      super(member);
+    }
+  }
+
+  /** The field and methods added to XTracked classes, as name followed by descriptor */
+  private static final List<String> XTRACKED_MEMBERS = Arrays.asList(FIELD + CONTEXT, "saveXTrace(" + CONTEXT + ")V",
+      "saveActiveXTrace()V", "getXTrace()" + CONTEXT, "getTenantClass()I", "joinSavedXTrace()V");
+
+  private static final class Weaver extends ClassVisitor {
+    private final WeavingPlan plan;
+    private String owner;
+    private boolean addXTracked;
+    private final Set<String> declared = new HashSet<String>();
+
+    Weaver(ClassVisitor next, WeavingPlan plan) {
+      super(Opcodes.ASM9, next);
+      this.plan = plan;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+      owner = name;
+      List<String> existing = interfaces == null ? null : Arrays.asList(interfaces);
+      addXTracked = plan.tracked && (access & Opcodes.ACC_INTERFACE) == 0
+          && (existing == null || !existing.contains(XTRACKED));
+      if (addXTracked) {
+        String[] extended = interfaces == null ? new String[1] : Arrays.copyOf(interfaces, interfaces.length + 1);
+        extended[extended.length - 1] = XTRACKED;
+        interfaces = extended;
+        if (signature != null)
+          signature = signature + "L" + XTRACKED + ";";
+      }
+      super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+      declared.add(name + descriptor);
+      return super.visitField(access, name, descriptor, signature, value);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+      declared.add(name + descriptor);
+      MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+      List<MethodAction> actions = plan.actionsFor(name);
+      if (actions == null || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0)
+        return mv;
+      return new MethodWeaver(mv, owner, name, access, descriptor, actions);
+    }
+
+    @Override
+    public void visitEnd() {
+      if (addXTracked) {
+        // Members are visited before visitEnd, so a clash is known before anything is added
+        for (String member : XTRACKED_MEMBERS)
+          if (declared.contains(member))
+            throw new MemberClash(member);
+        addXTrackedImpl();
+      }
+      super.visitEnd();
+    }
+
+    /** Adds the field and methods of XTracked.XTrackedImpl */
+    private void addXTrackedImpl() {
+      // Transient, since Context is not serializable
+      super.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_TRANSIENT | Opcodes.ACC_SYNTHETIC, FIELD, CONTEXT, null, null)
+          .visitEnd();
+
+      MethodVisitor mv = super.visitMethod(Opcodes.ACC_PUBLIC, "saveXTrace", "(" + CONTEXT + ")V", null, null);
+      mv.visitCode();
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitVarInsn(Opcodes.ALOAD, 1);
+      mv.visitFieldInsn(Opcodes.PUTFIELD, owner, FIELD, CONTEXT);
+      mv.visitInsn(Opcodes.RETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+
+      mv = super.visitMethod(Opcodes.ACC_PUBLIC, "saveActiveXTrace", "()V", null, null);
+      mv.visitCode();
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, XTRACE, "get", "()" + CONTEXT, false);
+      mv.visitFieldInsn(Opcodes.PUTFIELD, owner, FIELD, CONTEXT);
+      mv.visitInsn(Opcodes.RETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+
+      mv = super.visitMethod(Opcodes.ACC_PUBLIC, "getXTrace", "()" + CONTEXT, null, null);
+      mv.visitCode();
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitFieldInsn(Opcodes.GETFIELD, owner, FIELD, CONTEXT);
+      mv.visitInsn(Opcodes.ARETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+
+      mv = super.visitMethod(Opcodes.ACC_PUBLIC, "getTenantClass", "()I", null, null);
+      mv.visitCode();
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitFieldInsn(Opcodes.GETFIELD, owner, FIELD, CONTEXT);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, XTRACE, "getTenantClass", "(" + CONTEXT + ")I", false);
+      mv.visitInsn(Opcodes.IRETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+
+      mv = super.visitMethod(Opcodes.ACC_PUBLIC, "joinSavedXTrace", "()V", null, null);
+      mv.visitCode();
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitFieldInsn(Opcodes.GETFIELD, owner, FIELD, CONTEXT);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, XTRACE, "join", "(" + CONTEXT + ")V", false);
+      mv.visitInsn(Opcodes.RETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    }
+  }
+
+  /** Inserts XTracking calls on entry to, and before returns from, a method */
+  private static final class MethodWeaver extends MethodVisitor {
+    private final String description;
+    private final boolean isStatic;
+    private final Type[] arguments;
+    private final Type returnType;
+    private final List<MethodAction> actions;
+
+    MethodWeaver(MethodVisitor next, String owner, String name, int access, String descriptor,
+        List<MethodAction> actions) {
+      super(Opcodes.ASM9, next);
+      this.description = owner.replace('/', '.') + "#" + name + descriptor;
+      this.isStatic = (access & Opcodes.ACC_STATIC) != 0;
+      this.arguments = Type.getArgumentTypes(descriptor);
+      this.returnType = Type.getReturnType(descriptor);
+      this.actions = actions;
+    }
+
+    private static boolean isReference(Type type) {
+      return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+    }
+
+    @Override
+    public void visitCode() {
+      super.visitCode();
+      for (MethodAction action : actions) {
+        if (action.kind == Kind.JOIN_RETURNED)
+          continue;
+        if (action.argument >= arguments.length || !isReference(arguments[action.argument])) {
+          LOG.warn("X-Trace agent: argument " + action.argument + " of " + description + " is not an object");
+          continue;
+        }
+        int local = isStatic ? 0 : 1;
+        for (int i = 0; i < action.argument; i++)
+          local += arguments[i].getSize();
+        super.visitVarInsn(Opcodes.ALOAD, local);
+        super.visitMethodInsn(Opcodes.INVOKESTATIC, XTRACKING, action.kind == Kind.SAVE_ARGUMENT ? "save" : "join",
+            "(Ljava/lang/Object;)V", false);
+      }
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+      if (opcode == Opcodes.ARETURN) {
+        for (MethodAction action : actions) {
+          if (action.kind == Kind.JOIN_RETURNED) {
+            super.visitInsn(Opcodes.DUP);
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, XTRACKING, "join", "(Ljava/lang/Object;)V", false);
+          }
+        }
+      }
+      super.visitInsn(opcode);
+    }
+
+    @Override
+    public void visitEnd() {
+      if (!isReference(returnType))
+        for (MethodAction action : actions)
+          if (action.kind == Kind.JOIN_RETURNED)
+            LOG.warn("X-Trace agent: " + description + " does not return an object");
+      super.visitEnd();
+    }
+  }
+
+}
@@ -0,0 +1,26 @@
+package edu.brown.cs.systems.xtrace.agent;
+
+import edu.brown.cs.systems.xtrace.extensions.XTracked;
+
+/**
+ * The calls that the agent inserts into enqueue and dequeue methods. Objects
+ * that are not XTracked, including null, are ignored.
+ */
+public final class XTracking {
+
+  private XTracking() {
+  }
+
+  /** Saves the current X-Trace context in the object */
+  public static void save(Object o) {
+    if (o instanceof XTracked)
+      ((XTracked) o).saveActiveXTrace();
+  }
+
+  /** Joins the X-Trace context saved in the object into the current context */
+  public static void join(Object o) {
+    if (o instanceof XTracked)
+      ((XTracked) o).joinSavedXTrace();
+  }
+
+}
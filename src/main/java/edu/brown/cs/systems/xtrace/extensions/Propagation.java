@@ -0,0 +1,27 @@
+package edu.brown.cs.systems.xtrace.extensions;
+
+import edu.brown.cs.systems.xtrace.Context;
+import edu.brown.cs.systems.xtrace.XTrace;
+
+/**
+ * Switches the current thread to a captured context and back, for the wrappers
+ * that run tasks in the context they were submitted in
+ */
+final class Propagation {
+
+  private Propagation() {
+  }
+
+  /** Makes the captured context current, returning the context it replaced */
+  static Context attach(Context captured) {
+    Context previous = XTrace.get();
+    XTrace.set(captured);
+    return previous;
+  }
+
+  /** Restores the context that was current before attach */
+  static void detach(Context previous) {
+    XTrace.set(previous);
+  }
+
+}
@@ -0,0 +1,40 @@
+package edu.brown.cs.systems.xtrace.extensions;
+
+import java.util.concurrent.Callable;
+
+import edu.brown.cs.systems.xtrace.Context;
+import edu.brown.cs.systems.xtrace.XTrace;
+
+/**
+ * A Callable that runs in the X-Trace context that was current when it was
+ * wrapped, restoring the running thread's own context afterwards
+ */
+public final class XTraceCallable<V> implements Callable<V> {
+
+  private final Context context;
+  private final Callable<V> task;
+
+  private XTraceCallable(Context context, Callable<V> task) {
+    this.context = context;
+    this.task = task;
+  }
+
+  /**
+   * Wraps the task so that it runs in the current X-Trace context. If there is
+   * no current context, the task is returned as-is
+   */
+  public static <V> Callable<V> wrap(Callable<V> task) {
+    Context context = XTrace.get();
+    return context == null || task instanceof XTraceCallable ? task : new XTraceCallable<V>(context, task);
+  }
+
+  public V call() throws Exception {
+    Context previous = Propagation.attach(context);
+    try {
+      return task.call();
+    } finally {
+      Propagation.detach(previous);
+    }
+  }
+
+}
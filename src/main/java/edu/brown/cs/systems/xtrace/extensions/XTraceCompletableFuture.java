@@ -0,0 +1,128 @@
+package edu.brown.cs.systems.xtrace.extensions;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import edu.brown.cs.systems.xtrace.Context;
+import edu.brown.cs.systems.xtrace.XTrace;
+
+/**
+ * Helpers for running CompletableFuture stages in the X-Trace context that was
+ * current when the stage was created. Start a pipeline with supplyAsync or
+ * runAsync, and wrap the function passed to each dependent stage, eg.
+ * 
+ * <pre>
+ * XTraceCompletableFuture.supplyAsync(fetch).thenApply(XTraceCompletableFuture.function(parse));
+ * </pre>
+ * 
+ * Stages may run on the completing thread or on an executor, so each wrapped
+ * function sets and restores the context itself. If there is no current context
+ * when a function is wrapped, it is returned as-is.
+ */
+public final class XTraceCompletableFuture {
+
+  private XTraceCompletableFuture() {
+  }
+
+  public static <U> CompletableFuture<U> supplyAsync(Supplier<U> supplier) {
+    return CompletableFuture.supplyAsync(supplier(supplier));
+  }
+
+  public static <U> CompletableFuture<U> supplyAsync(Supplier<U> supplier, Executor executor) {
+    return CompletableFuture.supplyAsync(supplier(supplier), executor);
+  }
+
+  public static CompletableFuture<Void> runAsync(Runnable runnable) {
+    return CompletableFuture.runAsync(XTraceRunnable.wrap(runnable));
+  }
+
+  public static CompletableFuture<Void> runAsync(Runnable runnable, Executor executor) {
+    return CompletableFuture.runAsync(XTraceRunnable.wrap(runnable), executor);
+  }
+
+  public static <U> Supplier<U> supplier(final Supplier<U> supplier) {
+    final Context context = XTrace.get();
+    if (context == null)
+      return supplier;
+    return new Supplier<U>() {
+      public U get() {
+        Context previous = Propagation.attach(context);
+        try {
+          return supplier.get();
+        } finally {
+          Propagation.detach(previous);
+        }
+      }
+    };
+  }
+
+  public static <T, R> Function<T, R> function(final Function<T, R> function) {
+    final Context context = XTrace.get();
+    if (context == null)
+      return function;
+    return new Function<T, R>() {
+      public R apply(T t) {
+        Context previous = Propagation.attach(context);
+        try {
+          return function.apply(t);
+        } finally {
+          Propagation.detach(previous);
+        }
+      }
+    };
+  }
+
+  public static <T, U, R> BiFunction<T, U, R> biFunction(final BiFunction<T, U, R> function) {
+    final Context context = XTrace.get();
+    if (context == null)
+      return function;
+    return new BiFunction<T, U, R>() {
+      public R apply(T t, U u) {
+        Context previous = Propagation.attach(context);
+        try {
+          return function.apply(t, u);
+        } finally {
+          Propagation.detach(previous);
+        }
+      }
+    };
+  }
+
+  public static <T> Consumer<T> consumer(final Consumer<T> consumer) {
+    final Context context = XTrace.get();
+    if (context == null)
+      return consumer;
+    return new Consumer<T>() {
+      public void accept(T t) {
+        Context previous = Propagation.attach(context);
+        try {
+          consumer.accept(t);
+        } finally {
+          Propagation.detach(previous);
+        }
+      }
+    };
+  }
+
+  public static <T, U> BiConsumer<T, U> biConsumer(final BiConsumer<T, U> consumer) {
+    final Context context = XTrace.get();
+    if (context == null)
+      return consumer;
+    return new BiConsumer<T, U>() {
+      public void accept(T t, U u) {
+        Context previous = Propagation.attach(context);
+        try {
+          consumer.accept(t, u);
+        } finally {
+          Propagation.detach(previous);
+        }
+      }
+    };
+  }
+
+}
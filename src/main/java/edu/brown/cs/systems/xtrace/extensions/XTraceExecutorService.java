@@ -0,0 +1,109 @@
+package edu.brown.cs.systems.xtrace.extensions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import edu.brown.cs.systems.xtrace.XTrace;
+
+/**
+ * An ExecutorService that runs each task in the X-Trace context that was
+ * current when the task was submitted. Tasks submitted without a current
+ * context are passed to the underlying executor unwrapped.
+ */
+public class XTraceExecutorService implements ExecutorService {
+
+  protected final ExecutorService executor;
+
+  protected XTraceExecutorService(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /** Wraps the executor so that tasks run in the context they were submitted in */
+  public static ExecutorService wrap(ExecutorService executor) {
+    return executor instanceof XTraceExecutorService ? executor : new XTraceExecutorService(executor);
+  }
+
+  /** Wraps the executor so that tasks run in the context they were submitted in */
+  public static Executor wrap(final Executor executor) {
+    if (executor instanceof ExecutorService)
+      return wrap((ExecutorService) executor);
+    return new Executor() {
+      public void execute(Runnable task) {
+        executor.execute(XTraceRunnable.wrap(task));
+      }
+    };
+  }
+
+  /** Wraps each task, capturing the current context once */
+  protected static <T> Collection<? extends Callable<T>> wrap(Collection<? extends Callable<T>> tasks) {
+    if (!XTrace.active())
+      return tasks;
+    List<Callable<T>> wrapped = new ArrayList<Callable<T>>(tasks.size());
+    for (Callable<T> task : tasks)
+      wrapped.add(XTraceCallable.wrap(task));
+    return wrapped;
+  }
+
+  public void execute(Runnable command) {
+    executor.execute(XTraceRunnable.wrap(command));
+  }
+
+  public <T> Future<T> submit(Callable<T> task) {
+    return executor.submit(XTraceCallable.wrap(task));
+  }
+
+  public <T> Future<T> submit(Runnable task, T result) {
+    return executor.submit(XTraceRunnable.wrap(task), result);
+  }
+
+  public Future<?> submit(Runnable task) {
+    return executor.submit(XTraceRunnable.wrap(task));
+  }
+
+  public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+    return executor.invokeAll(wrap(tasks));
+  }
+
+  public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    return executor.invokeAll(wrap(tasks), timeout, unit);
+  }
+
+  public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+    return executor.invokeAny(wrap(tasks));
+  }
+
+  public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    return executor.invokeAny(wrap(tasks), timeout, unit);
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  public List<Runnable> shutdownNow() {
+    return executor.shutdownNow();
+  }
+
+  public boolean isShutdown() {
+    return executor.isShutdown();
+  }
+
+  public boolean isTerminated() {
+    return executor.isTerminated();
+  }
+
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return executor.awaitTermination(timeout, unit);
+  }
+
+}
@@ -0,0 +1,38 @@
+package edu.brown.cs.systems.xtrace.extensions;
+
+import edu.brown.cs.systems.xtrace.Context;
+import edu.brown.cs.systems.xtrace.XTrace;
+
+/**
+ * A Runnable that runs in the X-Trace context that was current when it was
+ * wrapped, restoring the running thread's own context afterwards
+ */
+public final class XTraceRunnable implements Runnable {
+
+  private final Context context;
+  private final Runnable task;
+
+  private XTraceRunnable(Context context, Runnable task) {
+    this.context = context;
+    this.task = task;
+  }
+
+  /**
+   * Wraps the task so that it runs in the current X-Trace context. If there is
+   * no current context, the task is returned as-is
+   */
+  public static Runnable wrap(Runnable task) {
+    Context context = XTrace.get();
+    return context == null || task instanceof XTraceRunnable ? task : new XTraceRunnable(context, task);
+  }
+
+  public void run() {
+    Context previous = Propagation.attach(context);
+    try {
+      task.run();
+    } finally {
+      Propagation.detach(previous);
+    }
+  }
+
+}
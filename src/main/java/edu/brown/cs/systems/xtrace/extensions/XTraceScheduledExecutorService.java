@@ -0,0 +1,43 @@
+package edu.brown.cs.systems.xtrace.extensions;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A ScheduledExecutorService that runs each task in the X-Trace context that
+ * was current when the task was scheduled. Every run of a periodic task starts
+ * from that same context.
+ */
+public class XTraceScheduledExecutorService extends XTraceExecutorService implements ScheduledExecutorService {
+
+  protected final ScheduledExecutorService scheduler;
+
+  protected XTraceScheduledExecutorService(ScheduledExecutorService scheduler) {
+    super(scheduler);
+    this.scheduler = scheduler;
+  }
+
+  /** Wraps the executor so that tasks run in the context they were scheduled in */
+  public static ScheduledExecutorService wrap(ScheduledExecutorService scheduler) {
+    return scheduler instanceof XTraceScheduledExecutorService ? scheduler : new XTraceScheduledExecutorService(scheduler);
+  }
+
+  public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+    return scheduler.schedule(XTraceRunnable.wrap(command), delay, unit);
+  }
+
+  public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+    return scheduler.schedule(XTraceCallable.wrap(callable), delay, unit);
+  }
+
+  public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+    return scheduler.scheduleAtFixedRate(XTraceRunnable.wrap(command), initialDelay, period, unit);
+  }
+
+  public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+    return scheduler.scheduleWithFixedDelay(XTraceRunnable.wrap(command), initialDelay, delay, unit);
+  }
+
+}
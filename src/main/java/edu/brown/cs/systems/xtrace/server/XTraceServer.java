@@ -35,8 +35,10 @@ import edu.brown.cs.systems.xtrace.server.api.DataStore;
 import edu.brown.cs.systems.xtrace.server.api.MetadataStore;
 import edu.brown.cs.systems.xtrace.server.impl.DerbyMetadataStore;
 import edu.brown.cs.systems.xtrace.server.impl.FileTreeDataStore;
+import edu.brown.cs.systems.xtrace.server.impl.IngestionPipeline;
+import edu.brown.cs.systems.xtrace.server.impl.ProtobufReportSource;
 import edu.brown.cs.systems.xtrace.server.impl.PubSubSource;
-import edu.brown.cs.systems.xtrace.server.impl.deprecated.TcpReportSource;
+import edu.brown.cs.systems.xtrace.server.impl.TcpReportSource;
 
 /**
  * @author George Porter
@@ -48,6 +50,7 @@ public class XTraceServer {
 	// Storage
 	private final MetadataStore metadata;
 	private final DataStore data;
+	private final IngestionPipeline pipeline;
 	
 	// Servers
   private final WebServer webserver;
@@ -55,6 +58,7 @@ public class XTraceServer {
   
   // Report sources
   private final TcpReportSource tcpsource;
+  private final ProtobufReportSource protobufsource;
   private final PubSubSource pubsubsource;
   
   /**
@@ -64,40 +68,53 @@ public class XTraceServer {
 	  // Create the data stores
 	  metadata = DerbyMetadataStore.getInstance();
 	  data = new FileTreeDataStore(XTraceSettings.DATASTORE_DIRECTORY + "/reports/");
+	  pipeline = new IngestionPipeline(data, metadata);
+	  pipeline.register();
 	  
 	  // Create the static servers
 	  webserver = new WebServer(XTraceSettings.WEBUI_PORT, data, metadata);
 	  pubsubserver = new Server(XTraceSettings.SERVER_BIND_HOSTNAME, XTraceSettings.PUBSUB_SUBSCRIBE_PORT, XTraceSettings.PUBSUB_PUBLISH_PORT);
 	  
 	  // Start the report sources
-	  tcpsource = new TcpReportSource(XTraceSettings.TCP_PORT, data, metadata);
-	  pubsubsource = new PubSubSource(XTraceSettings.SERVER_HOSTNAME, XTraceSettings.PUBSUB_SUBSCRIBE_PORT, data, metadata);
+	  tcpsource = new TcpReportSource(XTraceSettings.TCP_PORT, pipeline);
+	  protobufsource = new ProtobufReportSource(XTraceSettings.TCP_PROTOBUF_PORT, pipeline);
+	  pubsubsource = new PubSubSource(XTraceSettings.SERVER_HOSTNAME, XTraceSettings.PUBSUB_SUBSCRIBE_PORT, pipeline);
 	  
 	  Runtime.getRuntime().addShutdownHook(new Thread() {
 	    @Override
 	    public void run() {
         try {
-          metadata.shutdown();
+          pubsubsource.shutdown();
         } catch (Exception e) {
-          LOG.warn("Unable to shutdown metadata store", e);
+          LOG.warn("Unable to shutdown pubsub source", e);
         }
         try {
-          data.shutdown();
+          tcpsource.shutdown();
         } catch (Exception e) {
-          LOG.warn("Unable to shutdown data store", e);
+          LOG.warn("Unable to shutdown TCP report source", e);
         }
         try {
-          pubsubserver.shutdown();
+          protobufsource.shutdown();
         } catch (Exception e) {
-          LOG.warn("Unable to shutdown pubsub server", e);
+          LOG.warn("Unable to shutdown protobuf report source", e);
         }
         try {
-          tcpsource.shutdown();
+          pipeline.shutdown();
         } catch (Exception e) {
-          LOG.warn("Unable to shutdown pubsub server", e);
+          LOG.warn("Unable to shutdown ingestion pipeline", e);
         }
         try {
-          pubsubsource.shutdown();
+          metadata.shutdown();
+        } catch (Exception e) {
+          LOG.warn("Unable to shutdown metadata store", e);
+        }
+        try {
+          data.shutdown();
+        } catch (Exception e) {
+          LOG.warn("Unable to shutdown data store", e);
+        }
+        try {
+          pubsubserver.shutdown();
         } catch (Exception e) {
           LOG.warn("Unable to shutdown pubsub server", e);
         }
@@ -119,6 +136,7 @@ public class XTraceServer {
     webserver.start();
     pubsubserver.start();
     tcpsource.start();
+    protobufsource.start();
 	}
 	
 	
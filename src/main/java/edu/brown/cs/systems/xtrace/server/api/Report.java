@@ -21,6 +21,15 @@ public interface Report {
   public List<String> getTags();
   
   public String getTitle();
+
+  /** Returns true if the report has a tenant class; reports of older versions have none */
+  public default boolean hasTenantClass() {
+    return false;
+  }
+
+  public default int getTenantClass() {
+    return 0;
+  }
   
   public JSONObject jsonRepr();
 
@@ -481,8 +481,27 @@ public class DerbyMetadataStore implements MetadataStore {
       getTags = write.prepareStatement("select tags from tasks where taskid = ?");
     }
 
+    /**
+     * Waits while the pending updates are full, so that a database which falls
+     * behind backs up into the ingestion queues instead of into memory
+     */
+    private void awaitRoom() {
+      while (alive && pendingUpdates.size() >= XTraceSettings.DATABASE_MAX_PENDING_TASKS) {
+        try {
+          wait(100);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+
     private TaskUpdate getTaskUpdate(String taskId) {
       TaskUpdate update = pendingUpdates.get(taskId);
+      if (update == null) {
+        awaitRoom();
+        update = pendingUpdates.get(taskId);
+      }
       if (update == null) {
         update = new TaskUpdate();
         update.taskid = taskId;
@@ -530,6 +549,7 @@ public class DerbyMetadataStore implements MetadataStore {
           Map<String, TaskUpdate> pending = pendingUpdates;
           pendingUpdates = updates;
           updates = pending;
+          notifyAll();
         }
 
         // Save the start time of processing, to later sleep
@@ -46,8 +46,43 @@ public class FileTreeDataStore implements DataStore {
     LOG.info("DataStore directory: " + data.getAbsolutePath());
   }
   
-  private class FileCloser implements RemovalListener<String, OutputStream> {
-    public void  onRemoval(RemovalNotification<String, OutputStream> notification) {
+  /**
+   * The writer for a task's file. Workers write to it and the cache closes it on
+   * eviction, possibly from another worker's cleanUp, so both happen while
+   * holding its lock, and a closed writer is never written to
+   */
+  private static final class TaskWriter {
+    private final OutputStream out;
+    private boolean closed = false;
+
+    TaskWriter(OutputStream out) {
+      this.out = out;
+    }
+
+    /** Writes and flushes the report, returning false if the writer was already closed */
+    synchronized boolean write(ReportOnDisk report) throws IOException {
+      if (closed)
+        return false;
+      report.writeDelimitedTo(out);
+      out.flush(); // for now flush immediately... but might not be the best choice
+      return true;
+    }
+
+    synchronized void flush() throws IOException {
+      if (!closed)
+        out.flush();
+    }
+
+    synchronized void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        out.close();
+      }
+    }
+  }
+
+  private class FileCloser implements RemovalListener<String, TaskWriter> {
+    public void  onRemoval(RemovalNotification<String, TaskWriter> notification) {
       try {
         notification.getValue().close();
       } catch (IOException e) {
@@ -56,8 +91,8 @@ public class FileTreeDataStore implements DataStore {
     }    
   }
   
-  private class FileOpener extends CacheLoader<String, OutputStream> {
-    public OutputStream load(String taskId) throws IOException {
+  private class FileOpener extends CacheLoader<String, TaskWriter> {
+    public TaskWriter load(String taskId) throws IOException {
       if (taskId.length() < 6)
         throw new IllegalArgumentException("Invalid Task ID: " + taskId);
       
@@ -74,11 +109,11 @@ public class FileTreeDataStore implements DataStore {
       
       // Create the task file and a writer to it
       File taskfile = new File(l3, taskId + ".txt");
-      return new BufferedOutputStream(new FileOutputStream(taskfile, true), XTraceSettings.DATASTORE_BUFFER_SIZE);
+      return new TaskWriter(new BufferedOutputStream(new FileOutputStream(taskfile, true), XTraceSettings.DATASTORE_BUFFER_SIZE));
     }
   }
 
-  private final LoadingCache<String, OutputStream> writercache = 
+  private final LoadingCache<String, TaskWriter> writercache = 
       CacheBuilder.newBuilder().maximumSize(XTraceSettings.DATASTORE_CACHE_SIZE)
                                .expireAfterWrite(XTraceSettings.DATASTORE_CACHE_TIMEOUT, TimeUnit.MILLISECONDS)
                                .removalListener(new FileCloser())
@@ -87,12 +122,10 @@ public class FileTreeDataStore implements DataStore {
   @Override
   public void reportReceived(Report r) {
     try {
-      OutputStream writer = writercache.get(r.getTaskID());
       ReportOnDisk fordisk = r.diskRepr();
-      synchronized(writer) {
-        fordisk.writeDelimitedTo(writer);
-      }
-      writer.flush(); // for now flush immediately... but might not be the best choice
+      // If the writer is evicted and closed before the write, the next get opens a new one
+      while (!writercache.get(r.getTaskID()).write(fordisk))
+        continue;
       writercache.cleanUp();
     } catch (ExecutionException e) {
       LOG.warn("Discarding a report due to file cache error", e);
@@ -114,7 +147,7 @@ public class FileTreeDataStore implements DataStore {
    * Flushes all open writers to disk.
    */
   public void flush() {
-    for (OutputStream out : writercache.asMap().values()) {
+    for (TaskWriter out : writercache.asMap().values()) {
       try {
         out.flush();
       } catch (IOException e) {
@@ -163,8 +196,10 @@ public class FileTreeDataStore implements DataStore {
         // read the next report
         ReportOnDisk diskrepr = ReportOnDisk.parseDelimitedFrom(in);
         
-        if (diskrepr==null)
+        if (diskrepr==null) {
+          close();
           return null;
+        }
         if (diskrepr.hasV2Report())
           return new Report2(diskrepr.getV2Report());
         if (diskrepr.hasV3Report())
@@ -173,7 +208,16 @@ public class FileTreeDataStore implements DataStore {
         LOG.warn("Received empty or invalid report from disk:\n"+diskrepr);
       } catch (IOException e) {
       }
+      close();
       return null;
     }
+
+    /** Closes the task file once it has been read to the end */
+    private void close() {
+      try {
+        in.close();
+      } catch (IOException e) {
+      }
+    }
   }
 }
@@ -0,0 +1,265 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import edu.brown.cs.systems.xtrace.XTraceSettings;
+import edu.brown.cs.systems.xtrace.server.api.DataStore;
+import edu.brown.cs.systems.xtrace.server.api.MetadataStore;
+import edu.brown.cs.systems.xtrace.server.api.Report;
+
+/**
+ * Writes received reports to the data and metadata stores on a pool of worker
+ * threads, so that report sources only decode reports and hand them over.
+ *
+ * Each worker has its own bounded queue, and all reports of a task go to the
+ * same worker, so the reports of a task are written in the order they were
+ * received. If a worker's queue is full, reports for it are dropped rather than
+ * stalling the source. Before that, the pipeline's LoadShedder sheds reports of
+ * low priority tenant classes as the queue fills, and reports of tasks that
+ * exceed their limit.
+ */
+public class IngestionPipeline implements IngestionPipelineMBean {
+  private static final Logger LOG = Logger.getLogger(IngestionPipeline.class);
+
+  /** Max number of reports a worker takes from its queue at once */
+  private static final int DRAIN_BATCH = 256;
+
+  private final DataStore data;
+  private final MetadataStore metadata;
+  private final Worker[] workers;
+  private final LoadShedder shedder;
+  private volatile boolean alive = true;
+
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong ingested = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  /**
+   * Implemented by reports whose source waits to hear that they reached the
+   * stores. stored is called on a worker thread once the report is written, or
+   * could not be written, or when it is shed on arrival
+   */
+  interface Tracked {
+    void stored();
+  }
+
+  /** Creates a pipeline with the configured number of workers, queue capacity and load shedding */
+  public IngestionPipeline(DataStore data, MetadataStore metadata) {
+    this(data, metadata, XTraceSettings.INGEST_WORKERS, XTraceSettings.INGEST_QUEUE_CAPACITY, LoadShedder.configured());
+  }
+
+  /** Creates a pipeline that only drops reports once their worker's queue is full */
+  public IngestionPipeline(DataStore data, MetadataStore metadata, int workers, int queueCapacity) {
+    this(data, metadata, workers, queueCapacity, new LoadShedder());
+  }
+
+  /**
+   * @param workers
+   *          the number of worker threads
+   * @param queueCapacity
+   *          the max number of reports waiting for each worker
+   * @param shedder
+   *          decides which reports are shed before the queues are full
+   */
+  public IngestionPipeline(DataStore data, MetadataStore metadata, int workers, int queueCapacity, LoadShedder shedder) {
+    if (workers < 1)
+      throw new IllegalArgumentException("Ingestion pipeline needs at least one worker, got " + workers);
+    this.data = data;
+    this.metadata = metadata;
+    this.shedder = shedder;
+    this.workers = new Worker[workers];
+    for (int i = 0; i < workers; i++)
+      this.workers[i] = new Worker(i, queueCapacity);
+    for (Worker worker : this.workers)
+      worker.start();
+  }
+
+  /** Registers this pipeline's metrics with the platform MBean server */
+  public void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+          new ObjectName("edu.brown.cs.systems.xtrace:type=IngestionPipeline"));
+    } catch (Exception e) {
+      LOG.warn("Unable to register X-Trace ingestion metrics with JMX", e);
+    }
+  }
+
+  /**
+   * Queues a report to be written by the worker for its task
+   *
+   * @return false if the report was shed, or dropped because the worker's
+   *         queue was full or the pipeline is shut down
+   */
+  public boolean submit(Report report) {
+    received.incrementAndGet();
+    if (alive) {
+      Worker worker = workerFor(report.getTaskID());
+      if (!shedder.admits(report, worker.queue.size(), worker.capacity)) {
+        shedder.shedByPriority.incrementAndGet();
+        return false;
+      }
+      if (shedder.overTaskCap(report)) {
+        shedder.shedByTaskCap.incrementAndGet();
+        return false;
+      }
+      if (worker.queue.offer(report))
+        return true;
+    }
+    dropped.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Queues a report if its worker has room. Unlike submit, a report that does
+   * not fit, including one that its priority does not admit yet, is not counted
+   * as dropped, so the caller can hold on to it and try again later. Reports of
+   * tasks over their limit are still shed
+   *
+   * @return false if the report did not fit or the pipeline is shut down
+   */
+  public boolean offer(Report report) {
+    if (!alive)
+      return false;
+    Worker worker = workerFor(report.getTaskID());
+    if (!shedder.admits(report, worker.queue.size(), worker.capacity))
+      return false;
+    if (shedder.overTaskCap(report)) {
+      received.incrementAndGet();
+      shedder.shedByTaskCap.incrementAndGet();
+      if (report instanceof Tracked)
+        ((Tracked) report).stored();
+      return true;
+    }
+    if (worker.queue.offer(report)) {
+      received.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  private Worker workerFor(String taskID) {
+    // Spread the hash, since task IDs of one client often differ only in a few bits
+    int h = taskID.hashCode() * 0x9E3779B9;
+    return workers[((h ^ (h >>> 16)) & Integer.MAX_VALUE) % workers.length];
+  }
+
+  /**
+   * Stops accepting reports, then waits for the workers to write the reports
+   * already queued
+   */
+  public void shutdown() {
+    alive = false;
+    for (Worker worker : workers) {
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    LOG.info("Ingestion pipeline shut down");
+  }
+
+  private class Worker extends Thread {
+    private final BlockingQueue<Report> queue;
+    private final int capacity;
+
+    Worker(int index, int queueCapacity) {
+      super("XTrace Ingestion Worker " + index);
+      this.queue = new ArrayBlockingQueue<Report>(queueCapacity);
+      this.capacity = queueCapacity;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      List<Report> batch = new ArrayList<Report>(DRAIN_BATCH);
+      while (alive || !queue.isEmpty()) {
+        try {
+          Report first = queue.poll(100, TimeUnit.MILLISECONDS);
+          if (first == null)
+            continue;
+          batch.add(first);
+          queue.drainTo(batch, DRAIN_BATCH - 1);
+          for (int i = 0; i < batch.size(); i++)
+            ingest(batch.get(i));
+          batch.clear();
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    private void ingest(Report report) {
+      try {
+        data.reportReceived(report);
+        metadata.reportReceived(report);
+        ingested.incrementAndGet();
+      } catch (Exception e) {
+        failed.incrementAndGet();
+        LOG.warn("Exception writing report\n" + report, e);
+      } finally {
+        if (report instanceof Tracked)
+          ((Tracked) report).stored();
+      }
+    }
+  }
+
+  public int getWorkers() {
+    return workers.length;
+  }
+
+  public long getReportsReceived() {
+    return received.get();
+  }
+
+  public long getReportsIngested() {
+    return ingested.get();
+  }
+
+  public long getReportsDropped() {
+    return dropped.get();
+  }
+
+  public long getReportsFailed() {
+    return failed.get();
+  }
+
+  public long getReportsShed() {
+    return shedder.shedByPriority.get() + shedder.shedByTaskCap.get();
+  }
+
+  public long getReportsShedByPriority() {
+    return shedder.shedByPriority.get();
+  }
+
+  public long getReportsShedByTaskCap() {
+    return shedder.shedByTaskCap.get();
+  }
+
+  public int getQueueDepth() {
+    int depth = 0;
+    for (Worker worker : workers)
+      depth += worker.queue.size();
+    return depth;
+  }
+
+  public int getMaxQueueDepth() {
+    int max = 0;
+    for (Worker worker : workers)
+      max = Math.max(max, worker.queue.size());
+    return max;
+  }
+
+}
@@ -0,0 +1,39 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+/**
+ * JMX interface for the server's report ingestion, registered as
+ * edu.brown.cs.systems.xtrace:type=IngestionPipeline
+ */
+public interface IngestionPipelineMBean {
+
+  /** The number of worker threads writing reports to the stores */
+  public int getWorkers();
+
+  /** Reports handed to the pipeline by report sources */
+  public long getReportsReceived();
+
+  /** Reports written to the data and metadata stores */
+  public long getReportsIngested();
+
+  /** Reports discarded because their worker's queue was full */
+  public long getReportsDropped();
+
+  /** Reports the stores failed to write */
+  public long getReportsFailed();
+
+  /** Reports shed before their worker's queue was full, for either reason below */
+  public long getReportsShed();
+
+  /** Reports shed because their worker's queue was fuller than their tenant class's priority allows */
+  public long getReportsShedByPriority();
+
+  /** Reports shed because their task exceeded its limit for the current window */
+  public long getReportsShedByTaskCap();
+
+  /** The number of reports waiting in all of the workers' queues */
+  public int getQueueDepth();
+
+  /** The number of reports waiting in the most backed up worker's queue */
+  public int getMaxQueueDepth();
+
+}
@@ -0,0 +1,125 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.brown.cs.systems.xtrace.XTraceSettings;
+import edu.brown.cs.systems.xtrace.server.api.Report;
+
+/**
+ * Decides which reports the ingestion pipeline sheds when it falls behind.
+ *
+ * Each report has a priority, given by its tenant class. A report is shed once
+ * its worker's queue is fuller than the threshold for its priority, so the
+ * reports of low priority tenant classes are shed first, leaving room for those
+ * of higher priority. Separately, once a task has had the max number of reports
+ * within the current window, its further reports are shed until the next
+ * window, so that a runaway task cannot crowd out the others.
+ */
+public class LoadShedder {
+
+  /** Max number of tasks counted; the counts are reset early beyond this */
+  private static final int MAX_TRACKED_TASKS = 100000;
+
+  private final Map<Integer, Integer> priorities;
+  private final int defaultPriority;
+  private final double[] thresholds;
+  private final int maxReportsPerTask;
+  private final long windowMillis;
+
+  private final ConcurrentHashMap<String, AtomicInteger> taskCounts = new ConcurrentHashMap<String, AtomicInteger>();
+  private volatile long windowEnd;
+
+  final AtomicLong shedByPriority = new AtomicLong();
+  final AtomicLong shedByTaskCap = new AtomicLong();
+
+  /** Creates a shedder that lets every report fill the queues, without a per-task cap */
+  public LoadShedder() {
+    this(Collections.<Integer, Integer> emptyMap(), 0, new double[] { 1.0 }, 0, 0);
+  }
+
+  /**
+   * @param priorities
+   *          the priority of each tenant class
+   * @param defaultPriority
+   *          the priority of reports of other tenant classes, or of none
+   * @param thresholds
+   *          the fraction of a worker's queue that reports of each priority may
+   *          fill; priorities beyond the last use the last
+   * @param maxReportsPerTask
+   *          the max number of reports of one task per window, or 0 for no
+   *          limit
+   * @param windowMillis
+   *          the length of the window for the per-task limit
+   */
+  public LoadShedder(Map<Integer, Integer> priorities, int defaultPriority, double[] thresholds, int maxReportsPerTask,
+      long windowMillis) {
+    if (thresholds.length == 0)
+      throw new IllegalArgumentException("Load shedding needs at least one threshold");
+    this.priorities = new HashMap<Integer, Integer>(priorities);
+    this.defaultPriority = defaultPriority;
+    this.thresholds = thresholds.clone();
+    this.maxReportsPerTask = maxReportsPerTask;
+    this.windowMillis = windowMillis;
+    this.windowEnd = System.currentTimeMillis() + windowMillis;
+  }
+
+  /** Creates a shedder with the configured priorities, thresholds and per-task limit */
+  public static LoadShedder configured() {
+    return new LoadShedder(XTraceSettings.INGEST_SHEDDING_PRIORITIES, XTraceSettings.INGEST_SHEDDING_DEFAULT_PRIORITY,
+        XTraceSettings.INGEST_SHEDDING_THRESHOLDS, XTraceSettings.INGEST_SHEDDING_MAX_REPORTS_PER_TASK,
+        XTraceSettings.INGEST_SHEDDING_TASK_WINDOW);
+  }
+
+  /** Returns the priority of the report's tenant class */
+  int priority(Report report) {
+    if (report.hasTenantClass() && !priorities.isEmpty()) {
+      Integer priority = priorities.get(report.getTenantClass());
+      if (priority != null)
+        return priority;
+    }
+    return defaultPriority;
+  }
+
+  /**
+   * Returns true if the report may be added to a queue holding depth of
+   * capacity reports, given the report's priority. Reports allowed the whole
+   * queue are left to be dropped if it is full
+   */
+  boolean admits(Report report, int depth, int capacity) {
+    double threshold = thresholds[Math.max(0, Math.min(priority(report), thresholds.length - 1))];
+    int limit = Math.max(1, (int) (threshold * capacity));
+    return limit >= capacity || depth < limit;
+  }
+
+  /**
+   * Counts a report against its task's limit
+   *
+   * @return true if the task has exceeded its limit for the current window
+   */
+  boolean overTaskCap(Report report) {
+    if (maxReportsPerTask <= 0)
+      return false;
+    long now = System.currentTimeMillis();
+    if (now >= windowEnd || taskCounts.size() > MAX_TRACKED_TASKS) {
+      synchronized (taskCounts) {
+        if (now >= windowEnd || taskCounts.size() > MAX_TRACKED_TASKS) {
+          taskCounts.clear();
+          windowEnd = now + windowMillis;
+        }
+      }
+    }
+    AtomicInteger count = taskCounts.get(report.getTaskID());
+    if (count == null) {
+      AtomicInteger existing = taskCounts.putIfAbsent(report.getTaskID(), count = new AtomicInteger());
+      if (existing != null)
+        count = existing;
+    }
+    return count.incrementAndGet() > maxReportsPerTask;
+  }
+
+}
@@ -0,0 +1,412 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import edu.brown.cs.systems.xtrace.ReportBatchCodec;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceTcpAck;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceTcpMessage;
+import edu.brown.cs.systems.xtrace.server.api.Report;
+
+/**
+ * Receives X-Trace v3 reports from clients over TCP, without going through the
+ * pubsub broker. Each message is an XTraceTcpMessage preceded by its length as
+ * a varint, and carries a report, a batch or a compressed batch.
+ *
+ * A message with a sequence number is acknowledged once the ingestion
+ * pipeline's workers have handed all of its reports to the data and metadata
+ * stores, so a server crash loses no acknowledged report. Acknowledgements
+ * are cumulative: a message is acknowledged once it and every earlier message
+ * of the connection are stored, and only the latest is sent if several are
+ * waiting to be written.
+ *
+ * Reports are never dropped for lack of room in the pipeline. Instead, the
+ * connection they came from stops being read until they fit, so TCP flow
+ * control pushes back on that client alone, while other clients whose reports
+ * go to workers with room carry on.
+ */
+public class ProtobufReportSource extends SelectorReportSource<ProtobufReportSource.Connection> {
+  private static final Logger LOG = Logger.getLogger(ProtobufReportSource.class);
+
+  static final int MAX_MESSAGE_LENGTH = 4 * 1024 * 1024;
+
+  /** Size of pooled read buffers */
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  /** How often paused connections try again to queue their reports */
+  private static final long RETRY_MILLIS = 5;
+
+  /** Used only by the selector thread */
+  private final byte[] scratch = new byte[MAX_MESSAGE_LENGTH];
+  private final ReportBatchCodec codec = new ReportBatchCodec();
+  private final List<Connection> paused = new ArrayList<Connection>();
+
+  /** Connections with a message whose reports have all been stored; filled by the pipeline's workers */
+  private final Queue<Connection> completed = new ConcurrentLinkedQueue<Connection>();
+
+  private final AtomicLong messages = new AtomicLong();
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong invalid = new AtomicLong();
+  private final AtomicLong pauses = new AtomicLong();
+
+  public ProtobufReportSource(int port, IngestionPipeline pipeline) throws IOException {
+    super(port, pipeline, BUFFER_SIZE);
+  }
+
+  /** Returns the number of messages received */
+  public long getMessagesReceived() {
+    return messages.get();
+  }
+
+  /** Returns the number of reports received */
+  public long getReportsReceived() {
+    return received.get();
+  }
+
+  /** Returns the number of messages that could not be decoded */
+  public long getInvalidMessages() {
+    return invalid.get();
+  }
+
+  /** Returns the number of times a connection stopped being read because the pipeline was full */
+  public long getPauses() {
+    return pauses.get();
+  }
+
+  /** A client's reports waiting to be queued, and acknowledgement state */
+  static final class Connection extends SelectorReportSource.Connection {
+    /** Reports of the last message that did not fit in the pipeline; the connection is paused while there are any */
+    final ArrayDeque<Report> pending = new ArrayDeque<Report>();
+    Delivery pendingDelivery;
+
+    /** Sequenced messages whose reports are not yet all stored, oldest first */
+    final ArrayDeque<Delivery> unstored = new ArrayDeque<Delivery>();
+
+    /** The latest sequence number whose reports, and those of earlier messages, are stored, and the latest written in an ack */
+    long stored = -1;
+    long acked = -1;
+    ByteBuffer ack;
+
+    Connection(SocketChannel channel) {
+      super(channel);
+    }
+
+    boolean paused() {
+      return !pending.isEmpty();
+    }
+
+    /** Reads while there are no pending reports, and writes while an ack is partly written */
+    void updateInterest() {
+      if (key.isValid())
+        key.interestOps((paused() ? 0 : SelectionKey.OP_READ) | (ack != null ? SelectionKey.OP_WRITE : 0));
+    }
+  }
+
+  /**
+   * Counts down the reports of a sequenced message as the workers store them.
+   * The count starts one higher, and is counted down once every report is
+   * queued, so a message is never complete before its last report is queued
+   */
+  private final class Delivery {
+    final Connection conn;
+    final long sequence;
+    final AtomicInteger remaining;
+
+    Delivery(Connection conn, long sequence, int reports) {
+      this.conn = conn;
+      this.sequence = sequence;
+      this.remaining = new AtomicInteger(reports + 1);
+    }
+
+    void stored() {
+      if (remaining.decrementAndGet() == 0) {
+        completed.add(conn);
+        selector.wakeup();
+      }
+    }
+  }
+
+  /** A report that counts down its message's delivery once stored */
+  private static final class StoredReport extends Report3 implements IngestionPipeline.Tracked {
+    private final Delivery delivery;
+
+    StoredReport(XTraceReport3 report, Delivery delivery) {
+      super(report);
+      this.delivery = delivery;
+    }
+
+    public void stored() {
+      delivery.stored();
+    }
+  }
+
+  @Override
+  Connection newConnection(SocketChannel channel) throws IOException {
+    return new Connection(channel);
+  }
+
+  @Override
+  void selected(SelectionKey key) {
+    if (key.isValid() && key.isWritable())
+      write(key);
+    if (key.isValid() && key.isReadable())
+      read(key);
+  }
+
+  @Override
+  long selectTimeout() {
+    return paused.isEmpty() ? 0 : RETRY_MILLIS;
+  }
+
+  @Override
+  void afterSelect() {
+    resumePaused();
+    acknowledgeStored();
+  }
+
+  @Override
+  void closed(Connection conn) {
+    conn.pending.clear();
+    conn.unstored.clear();
+  }
+
+  private void read(SelectionKey key) {
+    Connection conn = (Connection) key.attachment();
+    if (conn.buffer == null)
+      conn.buffer = borrow();
+    try {
+      int read, reads = 0;
+      do {
+        read = conn.channel.read(conn.buffer);
+        if (!parse(conn))
+          return;
+      } while (read > 0 && ++reads < MAX_READS && !conn.paused());
+      if (read < 0) {
+        if (conn.buffer.position() > 0 || conn.paused())
+          LOG.info("Closing TCP client " + conn.name + " with a partial message");
+        close(key);
+        return;
+      }
+      flushAck(conn);
+      conn.updateInterest();
+    } catch (IOException e) {
+      LOG.info("Closing TCP client " + conn.name + ": " + e.getMessage());
+      close(key);
+    } finally {
+      releaseIfEmpty(conn);
+    }
+  }
+
+  /**
+   * Decodes the complete messages in the connection's buffer, leaving any
+   * partial message at the start of the buffer, until the connection pauses.
+   * Returns false if the connection was closed because of a bad message
+   */
+  private boolean parse(Connection conn) {
+    ByteBuffer buf = conn.buffer;
+    buf.flip();
+    while (!conn.paused() && buf.hasRemaining()) {
+      int start = buf.position();
+      int length = readVarint(buf);
+      if (length == -1) {
+        buf.position(start);
+        break;
+      }
+      if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+        LOG.info("Closing TCP client " + conn.name + " due to bad length: " + length);
+        buf.clear();
+        close(conn.key);
+        return false;
+      }
+      if (buf.remaining() < length) {
+        int needed = buf.position() - start + length;
+        buf.position(start);
+        if (needed > buf.capacity()) {
+          grow(conn, needed);
+          return true;
+        }
+        break;
+      }
+      buf.get(scratch, 0, length);
+      if (!received(conn, length)) {
+        buf.clear();
+        close(conn.key);
+        return false;
+      }
+    }
+    buf.compact();
+    return true;
+  }
+
+  /**
+   * Reads a varint length from the buffer
+   *
+   * @return the length, -1 if the buffer does not yet hold all of it, or -2 if
+   *         it is malformed
+   */
+  private static int readVarint(ByteBuffer buf) {
+    int result = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      if (!buf.hasRemaining())
+        return -1;
+      byte b = buf.get();
+      result |= (b & 0x7F) << shift;
+      if (b >= 0)
+        return result;
+    }
+    return -2;
+  }
+
+  /**
+   * Decodes a message from the scratch buffer and queues its reports, pausing
+   * the connection if they do not all fit. Returns false if the message could
+   * not be parsed
+   */
+  private boolean received(Connection conn, int length) {
+    XTraceTcpMessage message;
+    try {
+      message = XTraceTcpMessage.PARSER.parseFrom(scratch, 0, length);
+    } catch (InvalidProtocolBufferException e) {
+      invalid.incrementAndGet();
+      LOG.info("TCP client " + conn.name + " sent an unreadable message: " + e.getMessage());
+      return false;
+    }
+    messages.incrementAndGet();
+
+    // A well-formed message whose batch cannot be decoded is acknowledged, so it is not resent forever
+    List<XTraceReport3> reports = new ArrayList<XTraceReport3>();
+    if (message.hasReport())
+      reports.add(message.getReport());
+    if (message.hasBatch())
+      reports.addAll(message.getBatch().getReportsList());
+    if (message.hasCompressedBatch()) {
+      try {
+        reports.addAll(codec.decode(message.getCompressedBatch()));
+      } catch (InvalidProtocolBufferException e) {
+        invalid.incrementAndGet();
+        LOG.warn("TCP client " + conn.name + " sent an unreadable compressed batch, ignoring", e);
+      }
+    }
+    received.addAndGet(reports.size());
+    if (message.hasSequence()) {
+      Delivery delivery = new Delivery(conn, message.getSequence(), reports.size());
+      conn.unstored.add(delivery);
+      conn.pendingDelivery = delivery;
+      for (XTraceReport3 report : reports)
+        conn.pending.add(new StoredReport(report, delivery));
+    } else {
+      for (XTraceReport3 report : reports)
+        conn.pending.add(new Report3(report));
+    }
+    if (!drain(conn)) {
+      pauses.incrementAndGet();
+      paused.add(conn);
+    }
+    return true;
+  }
+
+  /** Queues the connection's pending reports, returning false if some did not fit */
+  private boolean drain(Connection conn) {
+    Report report;
+    while ((report = conn.pending.peek()) != null) {
+      if (!pipeline.offer(report))
+        return false;
+      conn.pending.poll();
+    }
+    if (conn.pendingDelivery != null) {
+      conn.pendingDelivery.stored();
+      conn.pendingDelivery = null;
+    }
+    return true;
+  }
+
+  /** Tries again to queue the reports of paused connections, and reads on from any that fit */
+  private void resumePaused() {
+    for (int i = paused.size() - 1; i >= 0; i--) {
+      Connection conn = paused.get(i);
+      if (!conn.key.isValid()) {
+        paused.remove(i);
+      } else if (drain(conn)) {
+        paused.remove(i);
+        if (conn.buffer != null && !parse(conn))
+          continue;
+        try {
+          flushAck(conn);
+        } catch (IOException e) {
+          LOG.info("Closing TCP client " + conn.name + ": " + e.getMessage());
+          close(conn.key);
+          continue;
+        }
+        releaseIfEmpty(conn);
+        conn.updateInterest();
+      }
+    }
+  }
+
+  /** Advances the acknowledgements of connections whose oldest messages are now stored */
+  private void acknowledgeStored() {
+    Connection conn;
+    while ((conn = completed.poll()) != null) {
+      if (!conn.key.isValid())
+        continue;
+      Delivery delivery;
+      while ((delivery = conn.unstored.peek()) != null && delivery.remaining.get() == 0) {
+        conn.stored = delivery.sequence;
+        conn.unstored.poll();
+      }
+      try {
+        flushAck(conn);
+      } catch (IOException e) {
+        LOG.info("Closing TCP client " + conn.name + ": " + e.getMessage());
+        close(conn.key);
+        continue;
+      }
+      conn.updateInterest();
+    }
+  }
+
+  private void write(SelectionKey key) {
+    Connection conn = (Connection) key.attachment();
+    try {
+      flushAck(conn);
+      conn.updateInterest();
+    } catch (IOException e) {
+      LOG.info("Closing TCP client " + conn.name + ": " + e.getMessage());
+      close(key);
+    }
+  }
+
+  /** Writes the latest acknowledgement, unless one is still partly written */
+  private void flushAck(Connection conn) throws IOException {
+    if (conn.ack == null && conn.stored > conn.acked) {
+      XTraceTcpAck ack = XTraceTcpAck.newBuilder().setSequence(conn.stored).build();
+      byte[] bytes = new byte[CodedOutputStream.computeRawVarint32Size(ack.getSerializedSize()) + ack.getSerializedSize()];
+      CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+      out.writeRawVarint32(ack.getSerializedSize());
+      ack.writeTo(out);
+      conn.ack = ByteBuffer.wrap(bytes);
+      conn.acked = conn.stored;
+    }
+    if (conn.ack != null) {
+      conn.channel.write(conn.ack);
+      if (!conn.ack.hasRemaining())
+        conn.ack = null;
+    }
+  }
+
+}
@@ -1,26 +1,36 @@
 package edu.brown.cs.systems.xtrace.server.impl;
 
+import java.util.List;
+
 import org.apache.log4j.Logger;
 
+import com.google.protobuf.InvalidProtocolBufferException;
+
 import edu.brown.cs.systems.pubsub.Subscriber;
 import edu.brown.cs.systems.pubsub.Subscriber.Callback;
+import edu.brown.cs.systems.xtrace.ReportBatchCodec;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceCompressedBatch;
 import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReportBatch;
 import edu.brown.cs.systems.xtrace.XTraceSettings;
-import edu.brown.cs.systems.xtrace.server.api.DataStore;
-import edu.brown.cs.systems.xtrace.server.api.MetadataStore;
 
+/**
+ * Receives reports published by clients over pubsub. Reports are decoded on
+ * the subscriber's callback thread and handed to the ingestion pipeline, which
+ * writes them to the stores
+ */
 public class PubSubSource extends Callback<XTraceReport3> {
   private static final Logger LOG = Logger.getLogger(PubSubSource.class);
 
   private final Subscriber subscriber;
-  private final MetadataStore metadata;
-  private final DataStore data;
+  private final IngestionPipeline pipeline;
 
-  public PubSubSource(String serverHostname, int pubsubSubscribePort, DataStore data, MetadataStore metadata) {
+  public PubSubSource(String serverHostname, int pubsubSubscribePort, IngestionPipeline pipeline) {
+    this.pipeline = pipeline;
     subscriber = new Subscriber(serverHostname, pubsubSubscribePort);
     subscriber.subscribe(XTraceSettings.PUBSUB_TOPIC, this);
-    this.data = data;
-    this.metadata = metadata;
+    subscriber.subscribe(XTraceSettings.PUBSUB_BATCH_TOPIC, new BatchCallback());
+    subscriber.subscribe(XTraceSettings.PUBSUB_COMPRESSED_BATCH_TOPIC, new CompressedBatchCallback());
   }
 
   public void shutdown() {
@@ -30,10 +40,39 @@ public class PubSubSource extends Callback<XTraceReport3> {
 
   @Override
   protected void OnMessage(XTraceReport3 msg) {
+    received(msg);
+  }
+
+  /** Unpacks batches of reports published by clients */
+  private class BatchCallback extends Callback<XTraceReportBatch> {
+    @Override
+    protected void OnMessage(XTraceReportBatch batch) {
+      for (int i = 0; i < batch.getReportsCount(); i++)
+        received(batch.getReports(i));
+    }
+  }
+
+  /** Decompresses and unpacks compressed batches of reports published by clients */
+  private class CompressedBatchCallback extends Callback<XTraceCompressedBatch> {
+    private final ReportBatchCodec codec = new ReportBatchCodec();
+
+    @Override
+    protected void OnMessage(XTraceCompressedBatch batch) {
+      List<XTraceReport3> reports;
+      try {
+        reports = codec.decode(batch);
+      } catch (InvalidProtocolBufferException e) {
+        LOG.warn("PubSub exception decoding compressed batch of reports", e);
+        return;
+      }
+      for (XTraceReport3 report : reports)
+        received(report);
+    }
+  }
+
+  private void received(XTraceReport3 msg) {
     try {
-      Report3 report = new Report3(msg);
-      data.reportReceived(report);
-      metadata.reportReceived(report);
+      pipeline.submit(new Report3(msg));
     } catch (Exception e) {
       LOG.warn("PubSub exception receiving report\n" + msg, e);
     }
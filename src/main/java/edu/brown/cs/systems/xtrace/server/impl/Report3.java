@@ -51,6 +51,16 @@ public class Report3 implements Report {
     return event.getTitle();
   }
   
+  @Override
+  public boolean hasTenantClass() {
+    return event.hasTenantClass();
+  }
+
+  @Override
+  public int getTenantClass() {
+    return event.getTenantClass();
+  }
+
   @Override
   public String toString() {
     return event.toString();
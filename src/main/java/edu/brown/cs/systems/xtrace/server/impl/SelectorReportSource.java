@@ -0,0 +1,228 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Base of the TCP report sources: a single thread accepts and serves every
+ * client with a selector. Subclasses parse what their clients send.
+ *
+ * Connections only hold a read buffer while they have part of a message
+ * outstanding. Buffers are direct and are returned to a pool once the
+ * connection has no partial message left, so thousands of mostly idle clients
+ * cost little memory.
+ */
+abstract class SelectorReportSource<C extends SelectorReportSource.Connection> extends Thread {
+  private static final Logger LOG = Logger.getLogger(SelectorReportSource.class);
+
+  /** Max number of reads from one connection before moving on to the others */
+  static final int MAX_READS = 16;
+
+  /** Max number of idle buffers kept in the pool */
+  private static final int MAX_POOLED_BUFFERS = 64;
+
+  final IngestionPipeline pipeline;
+  final Selector selector;
+  private final ServerSocketChannel server;
+  private final int bufferSize;
+  private volatile boolean alive = true;
+
+  /** Idle read buffers; used only by the selector thread */
+  private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+
+  private final AtomicLong connections = new AtomicLong();
+
+  /** A client's channel and its partially received message, if any */
+  static class Connection {
+    final SocketChannel channel;
+    final String name;
+    SelectionKey key;
+    ByteBuffer buffer;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+      this.name = String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+  }
+
+  SelectorReportSource(int port, IngestionPipeline pipeline, int bufferSize) throws IOException {
+    setName("XTrace " + getClass().getSimpleName());
+    this.pipeline = pipeline;
+    this.bufferSize = bufferSize;
+    this.selector = Selector.open();
+    this.server = ServerSocketChannel.open();
+    server.socket().setReuseAddress(true);
+    server.socket().bind(new InetSocketAddress(port), 1024);
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+    setDaemon(true);
+  }
+
+  /** Returns the port the source is listening on */
+  public int getPort() {
+    return server.socket().getLocalPort();
+  }
+
+  /** Returns the number of clients currently connected */
+  public long getConnections() {
+    return connections.get();
+  }
+
+  public void shutdown() {
+    if (alive) {
+      alive = false;
+      selector.wakeup();
+      LOG.info(getClass().getSimpleName() + " successfully shut down");
+    }
+  }
+
+  /** Creates the state of a newly accepted client */
+  abstract C newConnection(SocketChannel channel) throws IOException;
+
+  /** Serves a client whose channel is ready */
+  abstract void selected(SelectionKey key);
+
+  /** Called after each round of selected keys has been served */
+  void afterSelect() {
+  }
+
+  /** Returns how long to wait for ready channels, or 0 to wait indefinitely */
+  long selectTimeout() {
+    return 0;
+  }
+
+  /** Called once a client's channel has been closed, to drop any state it holds */
+  void closed(C conn) {
+  }
+
+  @Override
+  public void run() {
+    LOG.info(getClass().getSimpleName() + " listening on port " + getPort());
+    try {
+      while (alive) {
+        selector.select(selectTimeout());
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          if (!key.isValid())
+            continue;
+          if (key.isAcceptable())
+            accept();
+          else
+            selected(key);
+        }
+        afterSelect();
+      }
+    } catch (IOException e) {
+      if (alive)
+        LOG.warn("IOException in " + getClass().getSimpleName() + " selector", e);
+    } finally {
+      alive = false;
+      for (SelectionKey key : selector.keys())
+        closeQuietly(key);
+      try {
+        selector.close();
+      } catch (IOException e) {
+        LOG.warn("IOException closing " + getClass().getSimpleName() + " selector", e);
+      }
+    }
+  }
+
+  /**
+   * Accepts the pending clients. A failure to accept or set up one client is
+   * logged and closes only that client, so the selector keeps serving the rest
+   */
+  private void accept() {
+    while (true) {
+      SocketChannel channel;
+      try {
+        channel = server.accept();
+      } catch (IOException e) {
+        LOG.warn("IOException accepting TCP client", e);
+        return;
+      }
+      if (channel == null)
+        return;
+      try {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        C conn = newConnection(channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        connections.incrementAndGet();
+      } catch (IOException e) {
+        LOG.info("Closing TCP client " + channel.socket().getRemoteSocketAddress() + ": " + e.getMessage());
+        try {
+          channel.close();
+        } catch (IOException e2) {
+          // Already closing
+        }
+      }
+    }
+  }
+
+  ByteBuffer borrow() {
+    ByteBuffer buf = pool.poll();
+    return buf != null ? buf : ByteBuffer.allocateDirect(bufferSize);
+  }
+
+  void release(ByteBuffer buf) {
+    if (buf.capacity() == bufferSize && pool.size() < MAX_POOLED_BUFFERS) {
+      buf.clear();
+      pool.push(buf);
+    }
+  }
+
+  /** Returns the connection's buffer to the pool if it holds no partial message */
+  void releaseIfEmpty(C conn) {
+    if (conn.buffer != null && conn.buffer.position() == 0) {
+      release(conn.buffer);
+      conn.buffer = null;
+    }
+  }
+
+  /**
+   * Replaces the connection's buffer with one large enough for a message of
+   * the given size, keeping what has been read of it so far
+   */
+  void grow(C conn, int size) {
+    ByteBuffer larger = ByteBuffer.allocateDirect(size);
+    larger.put(conn.buffer);
+    release(conn.buffer);
+    conn.buffer = larger;
+  }
+
+  @SuppressWarnings("unchecked")
+  void close(SelectionKey key) {
+    C conn = (C) key.attachment();
+    closeQuietly(key);
+    if (conn != null) {
+      connections.decrementAndGet();
+      closed(conn);
+      if (conn.buffer != null) {
+        release(conn.buffer);
+        conn.buffer = null;
+      }
+    }
+  }
+
+  private static void closeQuietly(SelectionKey key) {
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      // Already closing
+    }
+  }
+
+}
@@ -0,0 +1,133 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.impl.deprecated.Report2;
+
+/**
+ * Receives X-Trace v2 reports from legacy clients over TCP. Each report is a
+ * 4-byte big-endian length followed by that many bytes of UTF-8 report text.
+ *
+ * Complete reports are parsed and handed to the ingestion pipeline. A report
+ * larger than a pooled buffer is collected in a buffer of its own.
+ */
+public class TcpReportSource extends SelectorReportSource<SelectorReportSource.Connection> {
+  private static final Logger LOG = Logger.getLogger(TcpReportSource.class);
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  static final int MAX_REPORT_LENGTH = 256 * 1024;
+
+  /** Size of pooled read buffers */
+  static final int BUFFER_SIZE = 16 * 1024;
+
+  /** Used only by the selector thread */
+  private final byte[] scratch = new byte[MAX_REPORT_LENGTH];
+
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong invalid = new AtomicLong();
+
+  public TcpReportSource(int port, IngestionPipeline pipeline) throws IOException {
+    super(port, pipeline, BUFFER_SIZE);
+  }
+
+  /** Returns the number of reports received and handed to the pipeline */
+  public long getReportsReceived() {
+    return received.get();
+  }
+
+  /** Returns the number of reports that could not be parsed */
+  public long getInvalidReports() {
+    return invalid.get();
+  }
+
+  @Override
+  Connection newConnection(SocketChannel channel) throws IOException {
+    return new Connection(channel);
+  }
+
+  @Override
+  void selected(SelectionKey key) {
+    if (key.isReadable())
+      read(key);
+  }
+
+  private void read(SelectionKey key) {
+    Connection conn = (Connection) key.attachment();
+    if (conn.buffer == null)
+      conn.buffer = borrow();
+    try {
+      int read, reads = 0;
+      do {
+        read = conn.channel.read(conn.buffer);
+        if (!parse(conn))
+          return;
+      } while (read > 0 && ++reads < MAX_READS);
+      if (read < 0) {
+        if (conn.buffer.position() > 0)
+          LOG.info("Closing TCP client " + conn.name + " with a partial report");
+        close(key);
+      }
+    } catch (IOException e) {
+      LOG.info("Closing TCP client " + conn.name + ": " + e.getMessage());
+      close(key);
+    } finally {
+      releaseIfEmpty(conn);
+    }
+  }
+
+  /**
+   * Parses the complete reports in the connection's buffer, leaving any
+   * partial report at the start of the buffer. Returns false if the
+   * connection was closed because of an invalid length
+   */
+  private boolean parse(Connection conn) {
+    ByteBuffer buf = conn.buffer;
+    buf.flip();
+    while (buf.remaining() >= 4) {
+      int length = buf.getInt(buf.position());
+      if (length <= 0 || length > MAX_REPORT_LENGTH) {
+        LOG.info("Closing TCP client " + conn.name + " due to bad length: " + length);
+        buf.clear();
+        close(conn.key);
+        return false;
+      }
+      if (buf.remaining() < 4 + length) {
+        if (4 + length > buf.capacity()) {
+          grow(conn, 4 + length);
+          return true;
+        }
+        break;
+      }
+      buf.position(buf.position() + 4);
+      buf.get(scratch, 0, length);
+      received(new String(scratch, 0, length, UTF8));
+    }
+    buf.compact();
+    return true;
+  }
+
+  private void received(String message) {
+    Report report = null;
+    try {
+      report = Report2.parse(message);
+    } catch (Exception e) {
+      // Treated as invalid below
+    }
+    if (report == null) {
+      invalid.incrementAndGet();
+      LOG.warn("TcpReportSource received bad report, ignoring: " + message);
+      return;
+    }
+    received.incrementAndGet();
+    pipeline.submit(report);
+  }
+
+}
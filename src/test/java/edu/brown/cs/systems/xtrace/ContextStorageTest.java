@@ -0,0 +1,147 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests of the backends that keep each thread's current context
+ */
+public class ContextStorageTest extends TestCase {
+
+  /**
+   * Stands in for ScopedValue, which this JVM may not have. As with a
+   * StructuredTaskScope, threads started within run see the binding
+   */
+  static final class StubBinding implements ContextStorage.Scoped.Binding {
+    private final InheritableThreadLocal<Object> bound = new InheritableThreadLocal<Object>();
+
+    public Object get() {
+      return bound.get();
+    }
+
+    public void run(Object value, Runnable task) {
+      Object previous = bound.get();
+      bound.set(value);
+      try {
+        task.run();
+      } finally {
+        bound.set(previous);
+      }
+    }
+  }
+
+  /** Returns the context current in a new thread started by this one */
+  private static Context inChildThread(final Trace trace) throws InterruptedException {
+    final AtomicReference<Context> seen = new AtomicReference<Context>();
+    Thread child = new Thread() {
+      @Override
+      public void run() {
+        seen.set(trace.observe());
+        if (trace.exists())
+          trace.modify().addParentEventID(99);
+      }
+    };
+    child.start();
+    child.join();
+    return seen.get();
+  }
+
+  @Test
+  public void testCreate() {
+    assertTrue(ContextStorage.create("thread-local") instanceof ContextStorage.Local);
+    assertTrue(ContextStorage.create("inheritable") instanceof ContextStorage.Inheritable);
+    assertTrue(ContextStorage.create("unknown") instanceof ContextStorage.Local);
+    ContextStorage scoped = ContextStorage.create("scoped");
+    if (ContextStorage.Scoped.SUPPORTED)
+      assertTrue(scoped instanceof ContextStorage.Scoped);
+    else
+      assertTrue(scoped instanceof ContextStorage.Local);
+  }
+
+  @Test
+  public void testThreadLocalNotInherited() throws InterruptedException {
+    Trace trace = new Trace(new ContextStorage.Local());
+    trace.modify().setTaskID(1);
+    assertNull(inChildThread(trace));
+  }
+
+  @Test
+  public void testInheritable() throws InterruptedException {
+    Trace trace = new Trace(new ContextStorage.Inheritable());
+    trace.modify().setTaskID(2).addParentEventID(5);
+    Context parent = trace.observe();
+    assertSame(parent, inChildThread(trace));
+
+    // The child's modification copied the context rather than changing the parent's
+    assertEquals(1, trace.observe().getParentEventIDCount());
+    assertEquals(5, trace.observe().getParentEventID(0));
+  }
+
+  @Test
+  public void testScopedForks() throws Exception {
+    final Trace trace = new Trace(new ContextStorage.Scoped(new StubBinding()));
+    Context bound = new Context();
+    bound.setTaskID(7).addParentEventID(1);
+    trace.call(bound, new Callable<Void>() {
+      public Void call() throws Exception {
+        final Context scope = trace.observe();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread fork = new Thread() {
+          @Override
+          public void run() {
+            // A forked thread starts with the scope's context and keeps its changes to itself
+            if (trace.observe() != scope)
+              failure.set("Fork did not see the scope's context");
+            trace.modify().addParentEventID(99);
+            if (trace.observe() == scope || trace.observe().getParentEventIDCount() != 2)
+              failure.set("Fork did not see its own change");
+            trace.clear();
+            if (trace.observe() != null)
+              failure.set("Fork did not see its context cleared");
+          }
+        };
+        fork.start();
+        fork.join();
+        assertNull(failure.get(), failure.get());
+
+        // The scope's own context is unaffected, and the scope can still change it
+        assertSame(scope, trace.observe());
+        assertEquals(1, scope.getParentEventIDCount());
+        trace.modify().addParentEventID(2);
+        assertEquals(2, trace.observe().getParentEventIDCount());
+        return null;
+      }
+    });
+    assertNull(trace.observe());
+    assertEquals(1, bound.getParentEventIDCount());
+  }
+
+  @Test
+  public void testCallRestoresContext() throws Exception {
+    ContextStorage[] storages = { ContextStorage.create("thread-local"), ContextStorage.create("inheritable"),
+        ContextStorage.create("scoped"), new ContextStorage.Scoped(new StubBinding()) };
+    for (ContextStorage storage : storages) {
+      String name = storage.getClass().getSimpleName();
+      final Trace trace = new Trace(storage);
+      trace.modify().setTaskID(3);
+      Context outer = trace.observe();
+
+      Context inner = new Context();
+      inner.setTaskID(4);
+      long seen = trace.call(inner, new Callable<Long>() {
+        public Long call() {
+          trace.modify().addParentEventID(6);
+          return trace.observe().getTaskID();
+        }
+      });
+      assertEquals(name, 4, seen);
+      assertEquals(name, 0, inner.getParentEventIDCount());
+      assertSame(name, outer, trace.observe());
+    }
+  }
+
+}
@@ -0,0 +1,275 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.common.primitives.Bytes;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import edu.brown.cs.systems.xtrace.Metadata.XTraceMetadata;
+
+/**
+ * Tests of the primitive Context representation and its wire format
+ */
+public class ContextTest extends TestCase {
+
+  @Test
+  public void testRoundTripMatchesProtobuf() throws InvalidProtocolBufferException {
+    for (int numparents = 0; numparents < 10; numparents++) {
+      byte[] xmd = TraceImplTest.randomTaskIDAndTenantAndParents(numparents);
+      Context ctx = Context.parse(xmd);
+      assertNotNull(ctx);
+      assertTrue(Arrays.equals(xmd, ctx.bytes()));
+
+      XTraceMetadata expected = TraceImplTest.build(xmd);
+      assertEquals(expected.getTaskID(), ctx.getTaskID());
+      assertEquals(expected.getTenantClass(), ctx.getTenantClass());
+      assertEquals(expected.getParentEventIDList(), ctx.getParentEventIDList());
+    }
+  }
+
+  @Test
+  public void testNegativeTenantClass() {
+    byte[] xmd = TraceImplTest.newBytes(7L, -3);
+    Context ctx = Context.parse(xmd);
+    assertEquals(-3, ctx.getTenantClass());
+    assertTrue(Arrays.equals(xmd, ctx.bytes()));
+  }
+
+  @Test
+  public void testModifiedMatchesProtobuf() {
+    Trace xtrace = new Trace();
+    xtrace.modify().setTaskID(100L).setTenantClass(5).addParentEventID(1L).addParentEventID(2L).addParentEventID(3L);
+    byte[] expected = TraceImplTest.newBytes(100L, 5, 1L, 2L, 3L);
+    assertTrue(Arrays.equals(expected, xtrace.bytes()));
+
+    xtrace.modify().clearParentEventID().addParentEventID(4L);
+    expected = TraceImplTest.newBytes(100L, 5, 4L);
+    assertTrue(Arrays.equals(expected, xtrace.bytes()));
+  }
+
+  @Test
+  public void testUnknownFieldsPreserved() {
+    byte[] known = TraceImplTest.randomTaskIDAndTenantAndParents(2);
+    byte[] unknown = new byte[] { (15 << 3) | 0, 0x7F, (12 << 3) | 2, 2, 'h', 'i' };
+    byte[] xmd = Bytes.concat(known, unknown);
+    Context ctx = Context.parse(xmd);
+    assertNotNull(ctx);
+    assertEquals(2, ctx.getParentEventIDCount());
+    assertTrue(Arrays.equals(xmd, ctx.bytes()));
+  }
+
+  @Test
+  public void testInvalidBytes() {
+    byte[] xmd = TraceImplTest.randomTaskIDAndTenantAndParents(2);
+    assertNull(Context.parse(Arrays.copyOf(xmd, xmd.length - 1)));
+    assertNull(Context.parse(new byte[] { 0 }));
+    assertNull(Context.parse(new byte[] { (byte) 0xFF }));
+  }
+
+  @Test
+  public void testCopyOnWrite() {
+    Trace xtrace = new Trace();
+    byte[] xmd = TraceImplTest.randomTaskIDAndTenantAndParents(3);
+    xtrace.set(xmd);
+    Context saved = xtrace.get();
+
+    // Modifying an observed context copies it, leaving the saved one untouched
+    xtrace.modify().addParentEventID(4L);
+    assertNotSame(saved, xtrace.observe());
+    assertEquals(3, saved.getParentEventIDCount());
+    assertEquals(4, xtrace.observe().getParentEventIDCount());
+    assertTrue(Arrays.equals(xmd, saved.bytes()));
+
+    xtrace.set(saved);
+    xtrace.modify().clearParentEventID().addParentEventID(5L);
+    assertEquals(3, saved.getParentEventIDCount());
+    assertTrue(Arrays.equals(xmd, saved.bytes()));
+    assertEquals(5L, xtrace.observe().getParentEventID(0));
+  }
+
+  @Test
+  public void testSerializedFormsCached() {
+    Trace xtrace = new Trace();
+    xtrace.set(TraceImplTest.randomTaskIDAndTenantAndParents(1));
+    byte[] bytes = xtrace.observe().serializedBytes();
+    String base16 = xtrace.base16();
+    String base64 = xtrace.base64();
+    assertSame(bytes, xtrace.observe().serializedBytes());
+    assertSame(base16, xtrace.base16());
+    assertSame(base64, xtrace.base64());
+
+    // Callers are given a copy, so modifying it leaves the cached form intact
+    byte[] copy = xtrace.bytes();
+    assertNotSame(bytes, copy);
+    assertTrue(Arrays.equals(bytes, copy));
+    copy[0]++;
+    assertTrue(Arrays.equals(bytes, xtrace.bytes()));
+
+    // Modifying the context in place discards the cached forms
+    xtrace.modify().clearParentEventID().addParentEventID(10L);
+    assertFalse(Arrays.equals(bytes, xtrace.bytes()));
+    assertFalse(base16.equals(xtrace.base16()));
+    assertFalse(base64.equals(xtrace.base64()));
+    assertTrue(Arrays.equals(xtrace.bytes(), Context.parse(xtrace.base64()).bytes()));
+
+    // Modifying an observed context leaves the cached forms of the original intact
+    Context saved = xtrace.get();
+    bytes = saved.serializedBytes();
+    base64 = saved.base64();
+    xtrace.modify().addParentEventID(11L);
+    assertSame(bytes, saved.serializedBytes());
+    assertSame(base64, saved.base64());
+    assertFalse(Arrays.equals(bytes, xtrace.bytes()));
+  }
+
+  @Test
+  public void testHeldModifiableContextInvalidates() {
+    Trace xtrace = new Trace();
+    xtrace.set(TraceImplTest.randomTaskIDAndTenantAndParents(1));
+
+    // A context kept from modify() discards its cached forms when changed later
+    Context held = xtrace.modify();
+    byte[] bytes = xtrace.bytes();
+    String base64 = xtrace.base64();
+    held.addParentEventID(12L);
+    assertFalse(Arrays.equals(bytes, xtrace.bytes()));
+    assertFalse(base64.equals(xtrace.base64()));
+    assertEquals(2, Context.parse(xtrace.bytes()).getParentEventIDCount());
+    held.setTenantClass(99);
+    assertEquals(99, Context.parse(xtrace.base64()).getTenantClass());
+  }
+
+  @Test
+  public void testParsedStringReused() {
+    byte[] xmd = TraceImplTest.randomTaskIDAndTenantAndParents(2);
+    Context ctx = Context.parse(xmd);
+    String base64 = ctx.base64();
+    String base16 = ctx.base16();
+
+    Context parsed = Context.parse(base64);
+    assertSame(base64, parsed.base64());
+    assertTrue(Arrays.equals(xmd, parsed.bytes()));
+
+    parsed = Context.parseBase16(base16);
+    assertSame(base16, parsed.base16());
+    assertTrue(Arrays.equals(xmd, parsed.bytes()));
+  }
+
+  @Test
+  public void testByteBuffers() {
+    byte[] xmd = TraceImplTest.randomTaskIDAndTenantAndParents(3);
+    ByteBuffer[] buffers = new ByteBuffer[] { ByteBuffer.allocate(200), ByteBuffer.allocateDirect(200) };
+    for (ByteBuffer buf : buffers) {
+      // Uncached, then cached, serialized forms
+      Context ctx = Context.parse(xmd);
+      buf.position(10);
+      assertEquals(xmd.length, ctx.maxEncodedSize());
+      assertEquals(xmd.length, ctx.writeTo(buf));
+      ctx.bytes();
+      assertEquals(xmd.length, ctx.writeTo(buf));
+      assertEquals(10 + 2 * xmd.length, buf.position());
+
+      Context read = Context.readFrom(buf, 10, xmd.length);
+      assertTrue(Arrays.equals(xmd, read.bytes()));
+      read = Context.readFrom(buf, 10 + xmd.length, xmd.length);
+      assertTrue(Arrays.equals(xmd, read.bytes()));
+      assertEquals(10 + 2 * xmd.length, buf.position());
+
+      assertNull(Context.readFrom(buf, 10, xmd.length - 1));
+      assertNull(Context.readFrom(buf, -1, xmd.length));
+      assertNull(Context.readFrom(buf, 190, 20));
+      assertNull(Context.readFrom(buf, 10, Integer.MAX_VALUE));
+    }
+  }
+
+  @Test
+  public void testByteBufferOverflow() {
+    byte[] xmd = TraceImplTest.randomTaskIDAndTenantAndParents(3);
+    ByteBuffer buf = ByteBuffer.allocate(xmd.length - 1);
+    try {
+      Context.parse(xmd).writeTo(buf);
+      fail("Expected BufferOverflowException");
+    } catch (BufferOverflowException e) {
+    }
+    assertEquals(0, buf.position());
+  }
+
+  @Test
+  public void testXTraceByteBuffers() {
+    Trace xtrace = new Trace();
+    ByteBuffer buf = ByteBuffer.allocateDirect(100);
+    assertEquals(0, xtrace.maxEncodedSize());
+    assertEquals(0, xtrace.writeTo(buf));
+
+    byte[] xmd = TraceImplTest.randomTaskIDAndTenantAndParents(2);
+    xtrace.set(xmd);
+    assertEquals(xmd.length, xtrace.maxEncodedSize());
+    assertEquals(xmd.length, xtrace.writeTo(buf));
+
+    xtrace.clear();
+    xtrace.set(buf, 0, xmd.length);
+    assertTrue(Arrays.equals(xmd, xtrace.bytes()));
+  }
+
+  @Test
+  public void testBoundedMatchesProtobuf() throws InvalidProtocolBufferException {
+    byte[] xmd = TraceImplTest.newBuilder(5L, 2, 11, 12, 13).setSampled(false).build().toByteArray();
+    byte[] expected = XTraceMetadata.parseFrom(xmd).toBuilder().clearParentEventID().addParentEventID(11).build()
+        .toByteArray();
+    Context ctx = Context.parse(xmd);
+    assertTrue(Arrays.equals(expected, ctx.bytesBounded()));
+    assertEquals(3, ctx.getParentEventIDCount());
+
+    for (ByteBuffer buf : new ByteBuffer[] { ByteBuffer.allocate(100), ByteBuffer.allocateDirect(100) }) {
+      buf.position(5);
+      assertEquals(expected.length, ctx.writeBoundedTo(buf));
+      assertEquals(5 + expected.length, buf.position());
+      assertTrue(Arrays.equals(expected, Context.readFrom(buf, 5, expected.length).bytes()));
+
+      ByteBuffer small = ByteBuffer.allocate(expected.length - 1);
+      try {
+        ctx.writeBoundedTo(small);
+        fail("Expected BufferOverflowException");
+      } catch (BufferOverflowException e) {
+      }
+      assertEquals(0, small.position());
+    }
+
+    // With at most one parent, a copy of the cached bytes is returned
+    ctx = Context.parse(TraceImplTest.randomTaskIDAndTenantAndParents(1));
+    byte[] bounded = ctx.bytesBounded();
+    assertNotSame(ctx.serializedBytes(), bounded);
+    assertTrue(Arrays.equals(ctx.serializedBytes(), bounded));
+    bounded[0]++;
+    assertFalse(Arrays.equals(ctx.serializedBytes(), bounded));
+
+    Trace xtrace = new Trace();
+    assertNull(xtrace.bytesBounded());
+    assertEquals(0, xtrace.writeBoundedTo(ByteBuffer.allocate(10)));
+  }
+
+  @Test
+  public void testSampledMatchesProtobuf() throws InvalidProtocolBufferException {
+    byte[] xmd = XTraceMetadata.newBuilder().setTaskID(5L).setTenantClass(2).setSampled(false).build().toByteArray();
+    Context ctx = Context.parse(xmd);
+    assertFalse(ctx.isSampled());
+    assertEquals(2, ctx.getTenantClass());
+    assertTrue(Arrays.equals(xmd, ctx.bytes()));
+
+    // Absent means sampled, and a copy keeps the flag
+    assertTrue(Context.parse(TraceImplTest.newBytes(5L, 2)).isSampled());
+    Trace xtrace = new Trace();
+    xtrace.set(xmd);
+    xtrace.get();
+    xtrace.modify().setTenantClass(3);
+    assertFalse(xtrace.observe().isSampled());
+    assertFalse(TraceImplTest.build(xtrace.bytes()).getSampled());
+  }
+
+}
@@ -0,0 +1,438 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.brown.cs.systems.pubsub.Server;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3.Builder;
+import edu.brown.cs.systems.xtrace.server.api.DataStore;
+import edu.brown.cs.systems.xtrace.server.api.MetadataStore;
+import edu.brown.cs.systems.xtrace.server.api.TaskRecord;
+import edu.brown.cs.systems.xtrace.server.impl.DerbyMetadataStore;
+import edu.brown.cs.systems.xtrace.server.impl.FileTreeDataStore;
+import edu.brown.cs.systems.xtrace.server.impl.IngestionPipeline;
+import edu.brown.cs.systems.xtrace.server.impl.ProtobufReportSource;
+import edu.brown.cs.systems.xtrace.server.impl.PubSubSource;
+import edu.brown.cs.systems.xtrace.server.impl.Report3;
+
+/**
+ * Generates the reports of synthetic tasks and drives them through a reporter
+ * into a local ingestion pipeline writing to the server's file and Derby
+ * stores. Prints the rate at which reports were generated and ingested, how
+ * long sampled tasks took to become queryable in each store after their last
+ * report, and how far each store lagged behind.
+ *
+ * Each task starts with a titled, tagged report, then forks into fanout
+ * branches that each make spanReports reports and fork again, depth levels
+ * deep, joining the branches of each fork with a join report. Joins that take
+ * a context past xtrace.client.max-parent-ids also make X-Trace send a report
+ * of its own, which is counted with the task's reports. The transport is one
+ * of
+ * <ul>
+ * <li>direct: reports are handed straight to the pipeline, as PubSubSource
+ * does, measuring the server alone</li>
+ * <li>tcp: a TcpReporter sends to a ProtobufReportSource</li>
+ * <li>pubsub: a PubSubReporter publishes to a local pubsub server, and a
+ * PubSubSource subscribes to it</li>
+ * </ul>
+ *
+ * Run with option=value arguments, eg. transport=tcp tasks=10000 fanout=4. The
+ * Derby store is kept in the configured xtrace.server.datastore.dir, and report
+ * files in its loadgen subdirectory.
+ */
+public class IngestionLoadGenerator {
+
+  private static final DecimalFormat format = new DecimalFormat("#.##");
+  private static final String AGENT = "LoadGenerator";
+
+  /** The shape and volume of the generated load */
+  public static class Options {
+    String transport = "direct";
+    int threads = 4;
+    int tasks = 2000;
+    int fanout = 3;
+    int depth = 2;
+    int spanReports = 2;
+    int tags = 2;
+    int tenantClasses = 0;
+    long rate = 0;
+    int probeEvery = 50;
+    long timeoutMillis = 60000;
+
+    static Options parse(String... args) {
+      Options options = new Options();
+      for (String arg : args) {
+        int eq = arg.indexOf('=');
+        if (eq < 0)
+          throw new IllegalArgumentException("Expected option=value, got " + arg);
+        String key = arg.substring(0, eq), value = arg.substring(eq + 1);
+        if (key.equals("transport"))
+          options.transport = value;
+        else if (key.equals("threads"))
+          options.threads = Integer.parseInt(value);
+        else if (key.equals("tasks"))
+          options.tasks = Integer.parseInt(value);
+        else if (key.equals("fanout"))
+          options.fanout = Integer.parseInt(value);
+        else if (key.equals("depth"))
+          options.depth = Integer.parseInt(value);
+        else if (key.equals("span-reports"))
+          options.spanReports = Integer.parseInt(value);
+        else if (key.equals("tags"))
+          options.tags = Integer.parseInt(value);
+        else if (key.equals("tenant-classes"))
+          options.tenantClasses = Integer.parseInt(value);
+        else if (key.equals("rate"))
+          options.rate = Long.parseLong(value);
+        else if (key.equals("probe-every"))
+          options.probeEvery = Integer.parseInt(value);
+        else if (key.equals("timeout-ms"))
+          options.timeoutMillis = Long.parseLong(value);
+        else
+          throw new IllegalArgumentException("Unknown option " + key);
+      }
+      return options;
+    }
+
+    @Override
+    public String toString() {
+      return transport + " transport, " + threads + " threads, " + tasks + " tasks, fanout " + fanout + ", depth "
+          + depth + ", " + spanReports + " reports per span, " + tags + " tags, " + tenantClasses + " tenant classes"
+          + (rate > 0 ? ", " + rate + " reports/s" : "");
+    }
+  }
+
+  /** Hands reports straight to the pipeline, as PubSubSource does with the reports it receives */
+  static final class DirectReporter extends Reporter {
+    private final IngestionPipeline pipeline;
+
+    DirectReporter(Trace trace, IngestionPipeline pipeline) {
+      super(trace);
+      this.pipeline = pipeline;
+    }
+
+    @Override
+    protected void doSend(Builder report) {
+      pipeline.submit(new Report3(report.build()));
+      metrics.published.increment();
+    }
+
+    @Override
+    protected void close() {
+    }
+  }
+
+  /** A sampled task, waiting to be queryable in the stores */
+  private static final class Probe {
+    final String taskID;
+    final String title;
+    final int reports;
+    final long sent = System.nanoTime();
+    long data = -1;
+    long metadata = -1;
+
+    Probe(long taskID, String title, int reports) {
+      this.taskID = new Report3(XTraceReport3.newBuilder().setTaskID(taskID).build()).getTaskID();
+      this.title = title;
+      this.reports = reports;
+    }
+  }
+
+  private final Options options;
+  private final String run = Long.toHexString(System.currentTimeMillis());
+  private final Trace trace = new Trace();
+  private final AtomicLong generated = new AtomicLong();
+  private final ConcurrentLinkedQueue<Probe> probes = new ConcurrentLinkedQueue<Probe>();
+  private final List<Probe> probed = Collections.synchronizedList(new ArrayList<Probe>());
+
+  private DataStore data;
+  private MetadataStore metadata;
+  private IngestionPipeline pipeline;
+  private Reporter reporter;
+  private volatile boolean generating = true;
+  /** Stops the sampler and prober; they are not interrupted, as that closes the Derby connection they query */
+  private volatile boolean stopped = false;
+
+  private volatile long maxDataLag = 0, maxMetadataLag = 0;
+
+  public IngestionLoadGenerator(Options options) {
+    this.options = options;
+  }
+
+  public static void main(String[] args) throws Exception {
+    new IngestionLoadGenerator(Options.parse(args)).run();
+    System.exit(0);
+  }
+
+  public void run() throws Exception {
+    System.out.println("Ingestion\t " + options);
+    data = new FileTreeDataStore(XTraceSettings.DATASTORE_DIRECTORY + "/loadgen/");
+    metadata = DerbyMetadataStore.getInstance();
+    final long metadataBaseline = metadata.numReports();
+    pipeline = new IngestionPipeline(data, metadata);
+
+    ProtobufReportSource tcpsource = null;
+    Server pubsubserver = null;
+    PubSubSource pubsubsource = null;
+    if (options.transport.equals("direct")) {
+      reporter = new DirectReporter(trace, pipeline);
+    } else if (options.transport.equals("tcp")) {
+      tcpsource = new ProtobufReportSource(0, pipeline);
+      tcpsource.start();
+      reporter = new TcpReporter(trace, "localhost", tcpsource.getPort(), XTraceSettings.REPORTING_TCP_ACKS,
+          XTraceSettings.REPORTING_TCP_MAX_UNACKED, 100);
+    } else if (options.transport.equals("pubsub")) {
+      pubsubserver = new Server(XTraceSettings.SERVER_BIND_HOSTNAME, XTraceSettings.PUBSUB_SUBSCRIBE_PORT,
+          XTraceSettings.PUBSUB_PUBLISH_PORT);
+      pubsubserver.start();
+      pubsubsource = new PubSubSource(XTraceSettings.SERVER_HOSTNAME, XTraceSettings.PUBSUB_SUBSCRIBE_PORT, pipeline);
+      reporter = new PubSubReporter(trace);
+    } else {
+      throw new IllegalArgumentException("Unknown transport " + options.transport);
+    }
+    trace.setReporter(reporter);
+
+    // Sample how far behind each store is while the load runs
+    Thread sampler = new Thread("LoadGenerator lag sampler") {
+      @Override
+      public void run() {
+        while (!stopped && (generating || accounted() < generated.get())) {
+          long ingested = pipeline.getReportsIngested();
+          maxDataLag = Math.max(maxDataLag, generated.get() - accounted());
+          maxMetadataLag = Math.max(maxMetadataLag, ingested - (metadata.numReports() - metadataBaseline));
+          try {
+            Thread.sleep(100);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    };
+    sampler.setDaemon(true);
+    sampler.start();
+    Thread prober = new Thread("LoadGenerator prober") {
+      @Override
+      public void run() {
+        probe();
+      }
+    };
+    prober.setDaemon(true);
+    prober.start();
+
+    long start = System.nanoTime();
+    generate();
+    long generatedAt = System.nanoTime();
+    generating = false;
+
+    long deadline = System.currentTimeMillis() + options.timeoutMillis;
+    while (accounted() < generated.get() && System.currentTimeMillis() < deadline)
+      Thread.sleep(1);
+    long ingestedAt = System.nanoTime();
+    prober.join(Math.max(1, deadline - System.currentTimeMillis()));
+    long metadataCount = metadata.numReports() - metadataBaseline;
+    while (metadataCount < pipeline.getReportsIngested() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+      metadataCount = metadata.numReports() - metadataBaseline;
+    }
+    long metadataAt = System.nanoTime();
+
+    print(start, generatedAt, ingestedAt, metadataAt, metadataCount);
+
+    stopped = true;
+    prober.join();
+    sampler.join();
+    reporter.close();
+    if (pubsubsource != null)
+      pubsubsource.shutdown();
+    if (tcpsource != null)
+      tcpsource.shutdown();
+    pipeline.shutdown();
+    if (pubsubserver != null)
+      pubsubserver.shutdown();
+  }
+
+  /** Reports whose fate is known: written, failed, shed or dropped */
+  private long accounted() {
+    return pipeline.getReportsIngested() + pipeline.getReportsFailed() + pipeline.getReportsShed()
+        + pipeline.getReportsDropped() + reporter.getDroppedReports();
+  }
+
+  private void generate() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(options.threads);
+    final long startMillis = System.currentTimeMillis();
+    for (int t = 0; t < options.threads; t++) {
+      final int thread = t;
+      new Thread("LoadGenerator " + t) {
+        @Override
+        public void run() {
+          try {
+            Random random = new Random(System.nanoTime() ^ thread);
+            long sent = 0;
+            for (int i = thread; i < options.tasks; i += options.threads) {
+              sent += task(random, i);
+              if (options.rate > 0) {
+                long due = startMillis + sent * 1000 * options.threads / options.rate;
+                long wait = due - System.currentTimeMillis();
+                if (wait > 0)
+                  Thread.sleep(wait);
+              }
+            }
+          } catch (InterruptedException e) {
+            // Stop generating
+          } finally {
+            trace.clear();
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    done.await();
+  }
+
+  /** Generates the reports of one task, returning how many */
+  private int task(Random random, int index) {
+    long taskID = random.nextLong();
+    trace.clear();
+    trace.modify().setTaskID(taskID).addParentEventID(0L);
+    if (options.tenantClasses > 0)
+      trace.modify().setTenantClass(index % options.tenantClasses);
+
+    String title = "loadgen " + run + " " + index;
+    Builder first = Reporter.createReport("Task started", "Index", index).setTitle(title);
+    for (int i = 0; i < options.tags; i++)
+      first.addTags("tag" + random.nextInt(10 * Math.max(1, options.tags)));
+    reporter.report(AGENT, first);
+    int reports = 1 + branch(0);
+    generated.addAndGet(reports);
+
+    if (options.probeEvery > 0 && index % options.probeEvery == 0)
+      probes.add(new Probe(taskID, title, reports));
+    return reports;
+  }
+
+  /** Forks the current context into branches, joining them afterwards; returns the number of reports made */
+  private int branch(int level) {
+    if (level >= options.depth)
+      return 0;
+    int reports = 0;
+    Context fork = trace.get();
+    List<Context> ends = new ArrayList<Context>(options.fanout);
+    for (int b = 0; b < options.fanout; b++) {
+      trace.set(fork);
+      for (int r = 0; r < options.spanReports; r++)
+        reporter.report(AGENT, "Span", "Level", level, "Branch", b, "Step", r);
+      reports += options.spanReports + branch(level + 1);
+      ends.add(trace.get());
+    }
+    trace.set(ends.get(0));
+    for (int b = 1; b < ends.size(); b++)
+      reports += join(ends.get(b));
+    reporter.report(AGENT, "Joined", "Level", level);
+    return reports + 1;
+  }
+
+  /**
+   * Joins a branch into the current context, returning 1 if X-Trace collapsed
+   * the parents with a join report of its own. A collapse leaves a single
+   * parent that neither context had. It is detected here rather than with a
+   * decorator, which deferred reporting runs on the reporter's worker thread
+   */
+  private int join(Context other) {
+    List<Long> parents = trace.observe().getParentEventIDList();
+    parents.addAll(other.getParentEventIDList());
+    trace.join(other);
+    Context joined = trace.observe();
+    return joined.getParentEventIDCount() == 1 && !parents.contains(joined.getParentEventID(0)) ? 1 : 0;
+  }
+
+  /** Polls the stores until each probed task's reports are all queryable */
+  private void probe() {
+    List<Probe> waiting = new ArrayList<Probe>();
+    while (!stopped && (generating || !probes.isEmpty() || !waiting.isEmpty())) {
+      Probe next;
+      while ((next = probes.poll()) != null)
+        waiting.add(next);
+      for (Iterator<Probe> it = waiting.iterator(); it.hasNext();) {
+        Probe probe = it.next();
+        if (probe.data < 0 && count(data.getReports(probe.taskID)) >= probe.reports)
+          probe.data = System.nanoTime() - probe.sent;
+        if (probe.metadata < 0) {
+          List<TaskRecord> records = metadata.getTasksByTitle(probe.title, 0, 1);
+          if (!records.isEmpty() && records.get(0).getNumReports() >= probe.reports)
+            probe.metadata = System.nanoTime() - probe.sent;
+        }
+        if (probe.data >= 0 && probe.metadata >= 0) {
+          probed.add(probe);
+          it.remove();
+        }
+      }
+      try {
+        Thread.sleep(5);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private static int count(Iterator<?> it) {
+    int count = 0;
+    try {
+      for (; it.hasNext(); it.next())
+        count++;
+    } catch (RuntimeException e) {
+      // Task file not written yet
+    }
+    return count;
+  }
+
+  private void print(long start, long generatedAt, long ingestedAt, long metadataAt, long metadataCount) {
+    long total = generated.get();
+    System.out.println("  Reports:   " + total + " generated, " + pipeline.getReportsIngested() + " ingested, "
+        + pipeline.getReportsShed() + " shed, " + (pipeline.getReportsDropped() + reporter.getDroppedReports())
+        + " dropped, " + (total - accounted()) + " unaccounted");
+    System.out.println("  Generated: " + format.format(total / seconds(generatedAt - start)) + " reports/s");
+    System.out.println("  Ingested:  " + format.format(pipeline.getReportsIngested() / seconds(ingestedAt - start))
+        + " reports/s");
+    System.out.println("  Indexed:   " + format.format(metadataCount / seconds(metadataAt - start))
+        + " reports/s in the metadata store");
+    System.out.println("  Max lag:   " + maxDataLag + " reports not yet written to the data store, " + maxMetadataLag
+        + " written but not in the metadata store");
+
+    List<Long> dataLatency = new ArrayList<Long>(), metadataLatency = new ArrayList<Long>();
+    synchronized (probed) {
+      for (Probe probe : probed) {
+        dataLatency.add(probe.data);
+        metadataLatency.add(probe.metadata);
+      }
+    }
+    System.out.println("  Queryable: " + probed.size() + " sampled tasks");
+    System.out.println("    data:     " + percentiles(dataLatency));
+    System.out.println("    metadata: " + percentiles(metadataLatency));
+  }
+
+  private static String percentiles(List<Long> latencies) {
+    if (latencies.isEmpty())
+      return "none";
+    Collections.sort(latencies);
+    return "p50 " + millis(latencies.get(latencies.size() / 2)) + ", p99 "
+        + millis(latencies.get(Math.min(latencies.size() - 1, latencies.size() * 99 / 100))) + ", max "
+        + millis(latencies.get(latencies.size() - 1));
+  }
+
+  private static String millis(long nanos) {
+    return format.format(nanos / 1000000.0) + " ms";
+  }
+
+  private static double seconds(long nanos) {
+    return nanos / 1000000000.0;
+  }
+
+}
@@ -0,0 +1,37 @@
+package edu.brown.cs.systems.xtrace;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.IngestionLoadGenerator.Options;
+
+/**
+ * Load tests of the server's ingestion, from reporter to queryable stores. See
+ * IngestionLoadGenerator for the options, which can also be run on its own
+ * with other loads
+ */
+public class IngestionPerf extends TestCase {
+
+  @Test
+  public void testDirect() throws Exception {
+    new IngestionLoadGenerator(Options.parse("transport=direct", "tasks=5000")).run();
+  }
+
+  @Test
+  public void testTcp() throws Exception {
+    new IngestionLoadGenerator(Options.parse("transport=tcp", "tasks=5000")).run();
+  }
+
+  @Test
+  public void testWideTasks() throws Exception {
+    new IngestionLoadGenerator(Options.parse("transport=tcp", "tasks=500", "fanout=8", "depth=3", "span-reports=1",
+        "tenant-classes=4")).run();
+  }
+
+  @Test
+  public void testPaced() throws Exception {
+    new IngestionLoadGenerator(Options.parse("transport=tcp", "tasks=2000", "rate=20000")).run();
+  }
+
+}
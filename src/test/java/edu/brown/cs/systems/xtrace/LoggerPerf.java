@@ -32,7 +32,7 @@ public class LoggerPerf extends TestCase {
     public void run() {
       while (alive && !Thread.currentThread().isInterrupted()) {
         try {
-          outgoing.take();
+          take();
         } catch (InterruptedException e) {
           alive = false;
         }
@@ -1,10 +1,13 @@
 package edu.brown.cs.systems.xtrace;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 import junit.framework.TestCase;
 
 import org.junit.Test;
 
-import edu.brown.cs.systems.xtrace.Metadata.XTraceMetadataOrBuilder;
 import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3.Builder;
 
 public class LoggerTest extends TestCase {
@@ -12,6 +15,7 @@ public class LoggerTest extends TestCase {
   static final class NullLogger extends Reporter {
 
     public Builder report = null;
+    public boolean accepting = true;
     
     public NullLogger(Trace trace) {
       super(trace);
@@ -22,6 +26,14 @@ public class LoggerTest extends TestCase {
       this.report = report;
     }
 
+    @Override
+    protected boolean trySend(Builder report) {
+      if (!accepting)
+        return false;
+      doSend(report);
+      return true;
+    }
+
     @Override
     protected void close() {
     }
@@ -35,7 +47,7 @@ public class LoggerTest extends TestCase {
     
     byte[] start = TraceImplTest.randomTaskIDAndTenantAndParents(1);
     xtrace.set(start);
-    XTraceMetadataOrBuilder metadata = xtrace.observe();
+    Context metadata = xtrace.observe();
     xtrace.get(); // force update
     
     logger.report("test", "my test");
@@ -57,7 +69,7 @@ public class LoggerTest extends TestCase {
     
     byte[] start = TraceImplTest.randomTaskIDAndTenantAndParents(1);
     xtrace.set(start);
-    XTraceMetadataOrBuilder metadata = xtrace.observe();
+    Context metadata = xtrace.observe();
     
     logger.report("test", "my test");
     Builder event = logger.report;
@@ -78,7 +90,7 @@ public class LoggerTest extends TestCase {
     
     byte[] start = TraceImplTest.randomTaskIDAndTenant();
     xtrace.set(start);
-    XTraceMetadataOrBuilder metadata = xtrace.observe();
+    Context metadata = xtrace.observe();
     
     logger.report("test", "my test");
     Builder event = logger.report;
@@ -98,7 +110,7 @@ public class LoggerTest extends TestCase {
     
     byte[] start = TraceImplTest.randomTaskIDAndTenant();
     xtrace.set(start);
-    XTraceMetadataOrBuilder metadata = xtrace.observe();
+    Context metadata = xtrace.observe();
     xtrace.get();
     
     logger.report("test", "my test");
@@ -127,4 +139,73 @@ public class LoggerTest extends TestCase {
     assertTrue(xtrace.get()==ctx);
   }
 
+  @Test
+  public void testCustomIDGenerator() {
+    Trace xtrace = new Trace();
+    NullLogger logger = new NullLogger(xtrace);
+    logger.setIDGenerator(new Reporter.IDGenerator() {
+      public long nextID() {
+        return 55L;
+      }
+    });
+
+    xtrace.set(TraceImplTest.randomTaskIDAndTenantAndParents(1));
+    logger.report("test", "my test");
+    assertEquals(55L, logger.report.getEventID());
+    assertEquals(55L, xtrace.observe().getParentEventID(0));
+  }
+
+  @Test
+  public void testThreadLocalIDGenerator() throws InterruptedException {
+    final Reporter.IDGenerator generator = new Reporter.ThreadLocalIDGenerator();
+    final Set<Long> ids = Collections.synchronizedSet(new HashSet<Long>());
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++)
+            ids.add(generator.nextID());
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    assertEquals(4 * 10000, ids.size());
+  }
+
+  @Test
+  public void testUnsampledTaskNotReported() {
+    Trace xtrace = new Trace();
+    NullLogger logger = new NullLogger(xtrace);
+    xtrace.modify().setTaskID(10L).setTenantClass(1).setSampled(false);
+    byte[] before = xtrace.observe().serializedBytes();
+
+    assertFalse(logger.valid());
+    logger.report("test", "my test");
+    logger.reportTagged("test", "my test", "tag");
+    assertNull(logger.report);
+    assertSame(before, xtrace.observe().serializedBytes());
+  }
+
+  @Test
+  public void testSamplingDecision() {
+    assertTrue(Sampling.sample(1L, 1.0));
+    assertFalse(Sampling.sample(1L, 0.0));
+
+    // The decision depends only on the task ID and rate
+    int sampled = 0;
+    for (long taskID = 0; taskID < 10000; taskID++) {
+      boolean decision = Sampling.sample(taskID, 0.1);
+      assertEquals(decision, Sampling.sample(taskID, 0.1));
+      if (decision) {
+        sampled++;
+        assertTrue(Sampling.sample(taskID, 0.2));
+      }
+    }
+    assertTrue(sampled > 800 && sampled < 1200);
+    assertEquals(XTraceSettings.SAMPLING_RATE, Sampling.rate(null, null));
+  }
+
 }
@@ -0,0 +1,137 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.WatchService;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests of turning agents on and off at runtime
+ */
+public class LoggingControlTest extends TestCase {
+
+  private static void write(File file, String contents) throws IOException {
+    FileWriter writer = new FileWriter(file);
+    try {
+      writer.write(contents);
+    } finally {
+      writer.close();
+    }
+  }
+
+  @Test
+  public void testSwitchesFollowOperations() {
+    LoggingControl control = new LoggingControl(null);
+    LoggingControl.Switch agent = control.forAgent("someAgent");
+    LoggingControl.Switch disabled = control.forAgent("randomDisabledAgentName");
+    assertSame(agent, control.forAgent("someAgent"));
+    assertEquals(control.canLog("someAgent"), agent.enabled);
+    assertFalse(disabled.enabled);
+
+    control.enableAgent("randomDisabledAgentName");
+    assertTrue(control.canLog("randomDisabledAgentName"));
+    assertEquals(XTraceSettings.REPORTING_ON, disabled.enabled);
+
+    control.disableAgent("someAgent");
+    assertFalse(agent.enabled);
+
+    control.setReportingOn(false);
+    assertFalse(disabled.enabled);
+    assertFalse(control.forAgent(null).enabled);
+    assertFalse(control.forAgent("newAgent").enabled);
+
+    control.setReportingOn(true);
+    control.setLoggingDefault(false);
+    assertFalse(control.forAgent("newAgent").enabled);
+    assertTrue(control.forAgent("randomDisabledAgentName").enabled);
+  }
+
+  @Test
+  public void testOverrideFile() throws IOException {
+    File file = File.createTempFile("xtrace-logging", ".conf");
+    try {
+      write(file, "logging-default = false\nlogging-enabled = [ \"incidentAgent\" ]\n");
+      LoggingControl control = new LoggingControl(file);
+      LoggingControl.Switch incident = control.forAgent("incidentAgent");
+      LoggingControl.Switch other = control.forAgent("otherAgent");
+      assertEquals(XTraceSettings.REPORTING_ON, incident.enabled);
+      assertFalse(other.enabled);
+
+      // A change to the file replaces changes made since
+      control.enableAgent("otherAgent");
+      assertEquals(XTraceSettings.REPORTING_ON, other.enabled);
+      write(file, "on = false\n");
+      control.reload();
+      assertFalse(incident.enabled);
+      assertFalse(other.enabled);
+
+      // Removing the file reverts to the configuration
+      file.delete();
+      control.reload();
+      assertEquals(XTraceSettings.REPORTING_ON, control.isReportingOn());
+      assertEquals(XTraceSettings.REPORTING_ENABLED_DEFAULT, control.isLoggingDefault());
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testOverrideFileWatched() throws Exception {
+    File dir = File.createTempFile("xtrace-logging", "");
+    dir.delete();
+    dir.mkdir();
+    File file = new File(dir, "overrides.conf");
+    WatchService watcher = null;
+    try {
+      LoggingControl control = new LoggingControl(file);
+      watcher = control.watch();
+      assertNotNull(watcher);
+      LoggingControl.Switch agent = control.forAgent("watchedAgent");
+      assertEquals(XTraceSettings.REPORTING_ON, agent.enabled);
+
+      // Creating the file is noticed without reloading it by hand
+      write(file, "on = false\n");
+      for (int i = 0; i < 1000 && agent.enabled; i++)
+        Thread.sleep(10);
+      assertFalse(agent.enabled);
+      assertFalse(control.isReportingOn());
+    } finally {
+      if (watcher != null)
+        watcher.close();
+      file.delete();
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void testLoggerFollowsSwitch() {
+    XTrace.Logger logger = XTrace.getLogger("randomDisabledAgentName");
+    XTrace.startTask(true);
+    try {
+      assertFalse(logger.valid());
+      LoggingControl.INSTANCE.enableAgent("randomDisabledAgentName");
+      assertEquals(XTraceSettings.REPORTING_ON && XTrace.isSampled(), logger.valid());
+    } finally {
+      LoggingControl.INSTANCE.disableAgent("randomDisabledAgentName");
+      XTrace.stop();
+    }
+    assertFalse(logger.valid());
+  }
+
+  @Test
+  public void testLoggersCached() {
+    XTrace.Logger logger = XTrace.getLogger("randomDisabledAgentName");
+    assertSame(logger, XTrace.getLogger("randomDisabledAgentName"));
+    assertSame(XTrace.getLogger(), XTrace.getLogger((String) null));
+    assertNotSame(logger, XTrace.getLogger("someOtherAgent"));
+
+    XTrace.Logger classLogger = XTrace.getLogger(LoggingControlTest.class);
+    assertSame(classLogger, XTrace.getLogger(LoggingControlTest.class));
+    assertSame(classLogger, XTrace.getLogger(LoggingControlTest.class.getName()));
+  }
+
+}
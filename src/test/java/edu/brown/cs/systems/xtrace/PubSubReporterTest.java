@@ -0,0 +1,179 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReportBatch;
+
+/**
+ * Tests of how the pubsub reporter batches outgoing reports
+ */
+public class PubSubReporterTest extends TestCase {
+
+  /**
+   * A reporter whose worker thread exits immediately, leaving reports queued.
+   * Batching is off by default, so it is enabled here
+   */
+  static final class IdleReporter extends PubSubReporter {
+    IdleReporter() {
+      super(new Trace(), "localhost", 9999);
+      this.batchMaxReports = 100;
+    }
+
+    IdleReporter(boolean deferred) {
+      this();
+      this.deferred = deferred;
+    }
+
+    @Override
+    public void run() {
+    }
+  }
+
+  private static XTraceReport3.Builder report(int i, int labelSize) {
+    char[] label = new char[labelSize];
+    return XTraceReport3.newBuilder().setTaskID(i).setLabel(new String(label));
+  }
+
+  @Test
+  public void testBatchBoundedByCount() {
+    IdleReporter reporter = new IdleReporter();
+    int count = 2 * reporter.batchMaxReports + 3;
+    for (int i = 0; i < count; i++)
+      reporter.doSend(report(i, 10));
+
+    int received = 0;
+    while (received < count) {
+      XTraceReportBatch.Builder batch = reporter.nextBatch(reporter.poll(), 0);
+      assertEquals(Math.min(reporter.batchMaxReports, count - received), batch.getReportsCount());
+      for (int i = 0; i < batch.getReportsCount(); i++)
+        assertEquals(received++, batch.getReports(i).getTaskID());
+    }
+    assertTrue(reporter.outgoing.isEmpty());
+  }
+
+  @Test
+  public void testBatchBoundedByBytes() {
+    IdleReporter reporter = new IdleReporter();
+    int labelSize = reporter.batchMaxBytes / 4;
+    for (int i = 0; i < 10; i++)
+      reporter.doSend(report(i, labelSize));
+
+    XTraceReportBatch.Builder batch = reporter.nextBatch(reporter.poll(), 0);
+    assertEquals(4, batch.getReportsCount());
+    assertEquals(6, reporter.outgoing.size());
+  }
+
+  @Test
+  public void testTrySendReportsDiscards() {
+    // With the default drop-newest policy, a full queue discards the new report
+    IdleReporter reporter = new IdleReporter();
+    for (int i = 0; i < XTraceSettings.REPORTING_QUEUE_CAPACITY; i++)
+      assertTrue(reporter.trySend(report(i, 0)));
+    assertFalse(reporter.trySend(report(0, 0)));
+    assertEquals(1, reporter.getDroppedReports());
+  }
+
+  @Test
+  public void testBatchLingers() {
+    final IdleReporter reporter = new IdleReporter();
+    reporter.doSend(report(0, 10));
+    new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+        }
+        reporter.doSend(report(1, 10));
+      }
+    }.start();
+
+    XTraceReportBatch.Builder batch = reporter.nextBatch(reporter.poll(), TimeUnit.MILLISECONDS.toNanos(500));
+    assertEquals(2, batch.getReportsCount());
+
+    // Without lingering, a lone report is a batch of one
+    reporter.doSend(report(2, 10));
+    batch = reporter.nextBatch(reporter.poll(), 0);
+    assertEquals(1, batch.getReportsCount());
+  }
+
+  @Test
+  public void testDeferredReport() {
+    IdleReporter reporter = new IdleReporter(true);
+    reporter.xtrace.set(TraceImplTest.newBytes(100L, 3, 7L));
+
+    // Fields are only converted to strings once the worker builds the report
+    StringBuilder value = new StringBuilder("before");
+    reporter.report("agent", "label", "key", value);
+    value.replace(0, value.length(), "after");
+    assertEquals(1, reporter.outgoing.size());
+
+    // Causality is advanced by the caller
+    assertEquals(1, reporter.xtrace.observe().getParentEventIDCount());
+    long eventID = reporter.xtrace.observe().getParentEventID(0);
+    assertTrue(eventID != 7L);
+
+    XTraceReport3 report = reporter.poll().build();
+    assertEquals("agent", report.getAgent());
+    assertEquals("label", report.getLabel());
+    assertEquals("key", report.getKey(0));
+    assertEquals("after", report.getValue(0));
+    assertEquals(100L, report.getTaskID());
+    assertEquals(3, report.getTenantClass());
+    assertEquals(7L, report.getParentEventID(0));
+    assertEquals(eventID, report.getEventID());
+    assertEquals(Thread.currentThread().getName(), report.getThreadName());
+    assertTrue(reporter.outgoing.isEmpty());
+
+    reporter.reportTagged("agent", "tagged", "tag1", "tag2");
+    report = reporter.poll().build();
+    assertEquals("tagged", report.getLabel());
+    assertEquals(2, report.getTagsCount());
+    assertEquals(eventID, report.getParentEventID(0));
+  }
+
+  @Test
+  public void testDeferredReportFailures() {
+    IdleReporter reporter = new IdleReporter(true);
+    reporter.xtrace.set(TraceImplTest.newBytes(100L, null));
+    Object broken = new Object() {
+      @Override
+      public String toString() {
+        throw new IllegalStateException();
+      }
+    };
+    reporter.report("agent", "broken", "key", broken);
+    reporter.report("agent", "fine");
+    assertEquals("fine", reporter.poll().getLabel());
+    assertNull(reporter.poll());
+    assertEquals(1, reporter.getDroppedReports());
+
+    // Nothing is captured without a task
+    reporter.xtrace.clear();
+    reporter.report("agent", "no task");
+    assertTrue(reporter.outgoing.isEmpty());
+  }
+
+  @Test
+  public void testMetrics() {
+    IdleReporter reporter = new IdleReporter();
+    ReporterMetrics metrics = reporter.getMetrics();
+    for (int i = 0; i < 200; i++)
+      reporter.doSend(report(i, 10));
+    assertEquals(200, metrics.getReportsQueued());
+    assertEquals(200, metrics.getQueueDepth());
+    assertEquals(0, metrics.getQueueLatencySamples());
+
+    while (reporter.poll() != null)
+      continue;
+    assertEquals(0, metrics.getQueueDepth());
+    assertEquals(200 / ReporterMetrics.LATENCY_SAMPLE_INTERVAL + 1, metrics.getQueueLatencySamples());
+    assertTrue(metrics.getQueueLatencyMaxNanos() > 0);
+    assertEquals(0, metrics.getReportsDropped());
+  }
+
+}
@@ -0,0 +1,104 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceCompressedBatch;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReportBatch;
+
+/**
+ * Tests of the dictionary-encoded, compressed batch format
+ */
+public class ReportBatchCodecTest extends TestCase {
+
+  private static List<XTraceReport3> reports(int count) {
+    List<XTraceReport3> reports = new ArrayList<XTraceReport3>();
+    for (int i = 0; i < count; i++) {
+      XTraceReport3.Builder report = Reporter.createReport("event " + i, "key", i);
+      report.setAgent(i % 2 == 0 ? "agent-a" : "agent-b");
+      report.setTaskID(i);
+      report.addParentEventID(i * 31);
+      reports.add(report.build());
+    }
+    // Reports with none of the encoded fields set pass through too
+    reports.add(XTraceReport3.newBuilder().setLabel("bare").build());
+    return reports;
+  }
+
+  @Test
+  public void testRoundTrip() throws InvalidProtocolBufferException {
+    ReportBatchCodec codec = new ReportBatchCodec();
+    List<XTraceReport3> reports = reports(50);
+    assertEquals(reports, codec.decode(codec.encode(reports)));
+
+    // The codec can be reused
+    reports = reports(3);
+    assertEquals(reports, codec.decode(XTraceCompressedBatch.parseFrom(codec.encode(reports).toByteArray())));
+  }
+
+  @Test
+  public void testDictionary() {
+    List<XTraceReport3> reports = reports(10);
+    // One host, process and thread name, and two agents
+    assertEquals(5, ReportBatchCodec.dictionaryEncode(reports).getDictionaryCount());
+  }
+
+  @Test
+  public void testSmallerThanPlainBatch() {
+    List<XTraceReport3> reports = reports(100);
+    int plain = XTraceReportBatch.newBuilder().addAllReports(reports).build().getSerializedSize();
+    int compressed = new ReportBatchCodec().encode(reports).getSerializedSize();
+    assertTrue(compressed + " >= " + plain, compressed < plain);
+  }
+
+  @Test
+  public void testLargeBatchBufferReleased() throws InvalidProtocolBufferException {
+    // Random labels barely compress, so the batch is large both before and after compression
+    Random random = new Random(7);
+    List<XTraceReport3> reports = new ArrayList<XTraceReport3>();
+    for (int i = 0; i < 1000; i++) {
+      byte[] label = new byte[2048];
+      random.nextBytes(label);
+      reports.add(XTraceReport3.newBuilder().setTaskID(i).setLabel(new String(label, Charsets.ISO_8859_1)).build());
+    }
+
+    ReportBatchCodec codec = new ReportBatchCodec();
+    XTraceCompressedBatch batch = codec.encode(reports);
+    assertTrue(batch.getDeflated().size() > ReportBatchCodec.MAX_RETAINED_BUFFER);
+    assertTrue(codec.bufferSize() <= ReportBatchCodec.MAX_RETAINED_BUFFER);
+    assertEquals(reports, codec.decode(batch));
+    assertTrue(codec.bufferSize() <= ReportBatchCodec.MAX_RETAINED_BUFFER);
+  }
+
+  @Test
+  public void testCorruptBatchRejected() {
+    ReportBatchCodec codec = new ReportBatchCodec();
+    XTraceCompressedBatch batch = codec.encode(reports(10));
+    byte[] deflated = batch.getDeflated().toByteArray();
+
+    XTraceCompressedBatch truncated = batch.toBuilder()
+        .setDeflated(ByteString.copyFrom(deflated, 0, deflated.length / 2)).build();
+    XTraceCompressedBatch wrongSize = batch.toBuilder().setSize(batch.getSize() + 1).build();
+    XTraceCompressedBatch hugeSize = batch.toBuilder().setSize(Integer.MAX_VALUE).build();
+    XTraceCompressedBatch garbage = batch.toBuilder().setDeflated(ByteString.copyFromUtf8("not deflated")).build();
+    for (XTraceCompressedBatch corrupt : new XTraceCompressedBatch[] { truncated, wrongSize, hugeSize, garbage }) {
+      try {
+        codec.decode(corrupt);
+        fail("Expected corrupt batch to be rejected");
+      } catch (InvalidProtocolBufferException e) {
+        // expected
+      }
+    }
+  }
+
+}
@@ -0,0 +1,60 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class ReportRateLimiterTest extends TestCase {
+
+  @Test
+  public void testBurstThenSustainedRate() {
+    ReportRateLimiter limiter = new ReportRateLimiter("test", 10, 1000, TimeUnit.MILLISECONDS);
+    long now = System.nanoTime();
+
+    // A full bucket lets a second's worth of reports through at once
+    for (int i = 0; i < 10; i++)
+      assertTrue(limiter.tryAcquire(now));
+    assertFalse(limiter.tryAcquire(now));
+    assertFalse(limiter.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(50)));
+
+    // Then one report per 100ms
+    assertTrue(limiter.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(100)));
+    assertFalse(limiter.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(150)));
+    assertTrue(limiter.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(200)));
+
+    assertEquals(12, limiter.getAccepted());
+    assertEquals(3, limiter.getSuppressed());
+  }
+
+  @Test
+  public void testRefillIsCapped() {
+    ReportRateLimiter limiter = new ReportRateLimiter("test", 10, 500, TimeUnit.MILLISECONDS);
+    long later = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+    int accepted = 0;
+    for (int i = 0; i < 100; i++)
+      if (limiter.tryAcquire(later))
+        accepted++;
+    assertEquals(5, accepted);
+  }
+
+  @Test
+  public void testSlowRateAcceptsOne() {
+    ReportRateLimiter limiter = new ReportRateLimiter("test", 0.5, 1000, TimeUnit.MILLISECONDS);
+    long now = System.nanoTime();
+    assertTrue(limiter.tryAcquire(now));
+    assertFalse(limiter.tryAcquire(now + TimeUnit.SECONDS.toNanos(1)));
+    assertTrue(limiter.tryAcquire(now + TimeUnit.SECONDS.toNanos(2)));
+  }
+
+  @Test
+  public void testNoLimitByDefault() {
+    if (XTraceSettings.RATE_LIMIT_DEFAULT <= 0) {
+      assertNull(ReportRateLimiter.forAgent("randomUnlimitedAgentName"));
+      assertTrue(XTrace.getLogger("randomUnlimitedAgentName") instanceof XTrace.LoggerImpl);
+      assertFalse(XTrace.getLogger("randomUnlimitedAgentName") instanceof XTrace.RateLimitedLogger);
+    }
+  }
+
+}
@@ -0,0 +1,125 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests of the disk spool that holds reports while the server is unreachable
+ */
+public class ReportSpoolTest extends TestCase {
+
+  private File dir;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("xtrace-spool", "");
+    dir.delete();
+  }
+
+  @Override
+  protected void tearDown() {
+    File[] files = dir.listFiles();
+    if (files != null)
+      for (File file : files)
+        file.delete();
+    dir.delete();
+  }
+
+  private static byte[] record(int i) {
+    byte[] record = new byte[100];
+    record[0] = (byte) i;
+    return record;
+  }
+
+  @Test
+  public void testOrderAcrossSegments() throws IOException {
+    ReportSpool spool = new ReportSpool(dir, 256, 1024 * 1024);
+    assertTrue(spool.isEmpty());
+    for (int i = 0; i < 10; i++)
+      assertTrue(spool.append(record(i), 1));
+    assertTrue(dir.list().length > 2);
+    for (int i = 0; i < 10; i++) {
+      assertFalse(spool.isEmpty());
+      assertEquals(i, spool.peek()[0]);
+      spool.remove();
+    }
+    assertTrue(spool.isEmpty());
+    assertNull(spool.peek());
+    assertEquals(0, spool.dropped());
+    spool.close();
+  }
+
+  @Test
+  public void testFullSpoolDropsOldest() throws IOException {
+    // Two records per segment, at most two segments
+    ReportSpool spool = new ReportSpool(dir, 256, 512);
+    for (int i = 0; i < 6; i++)
+      assertTrue(spool.append(record(i), 3));
+    assertEquals(6, spool.dropped());
+    assertEquals(2, spool.peek()[0]);
+    spool.close();
+  }
+
+  @Test
+  public void testOversizedRecordDropped() throws IOException {
+    ReportSpool spool = new ReportSpool(dir, 64, 1024);
+    assertFalse(spool.append(record(0), 5));
+    assertEquals(5, spool.dropped());
+    assertTrue(spool.isEmpty());
+    spool.close();
+  }
+
+  @Test
+  public void testRecoveredAfterReopen() throws IOException {
+    ReportSpool spool = new ReportSpool(dir, 256, 1024 * 1024);
+    for (int i = 0; i < 5; i++)
+      spool.append(record(i), 1);
+    spool.remove();
+    spool.close();
+
+    spool = new ReportSpool(dir, 256, 1024 * 1024);
+    for (int i = 1; i < 5; i++) {
+      assertEquals(i, spool.peek()[0]);
+      spool.remove();
+    }
+    assertTrue(spool.isEmpty());
+    spool.append(record(5), 1);
+    assertEquals(5, spool.peek()[0]);
+    spool.close();
+  }
+
+  @Test
+  public void testDirectoryInUse() throws IOException {
+    ReportSpool spool = new ReportSpool(dir, 256, 1024);
+    try {
+      new ReportSpool(dir, 256, 1024);
+      fail("Spool directory should be locked");
+    } catch (IOException e) {
+      // expected
+    }
+    spool.close();
+  }
+
+  @Test
+  public void testFailedRecoveryReleasesDirectory() throws IOException {
+    // A segment that cannot be mapped fails recovery
+    File unreadable = new File(dir, String.format("%020d.spool", 0));
+    dir.mkdirs();
+    unreadable.mkdir();
+    try {
+      new ReportSpool(dir, 256, 1024);
+      fail("Recovery should fail");
+    } catch (IOException e) {
+      // expected
+    }
+
+    // The directory is not left locked
+    unreadable.delete();
+    new ReportSpool(dir, 256, 1024).close();
+  }
+
+}
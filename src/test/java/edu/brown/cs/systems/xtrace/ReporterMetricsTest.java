@@ -0,0 +1,54 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests of the counters and histogram behind the reporter's own metrics
+ */
+public class ReporterMetricsTest extends TestCase {
+
+  @Test
+  public void testCountersSumAllThreads() throws InterruptedException {
+    final LongAdder counter = new ReporterMetrics(null).created;
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++)
+            counter.increment();
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    counter.add(5);
+    assertEquals(80005, counter.sum());
+  }
+
+  @Test
+  public void testHistogramPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.percentile(0.5));
+    for (int i = 0; i < 99; i++)
+      histogram.record(1000);
+    histogram.record(1000000);
+
+    assertEquals(100, histogram.count());
+    assertEquals(1000000, histogram.max());
+    assertEquals((99 * 1000 + 1000000) / 100, histogram.mean());
+
+    // Within a factor of two
+    long median = histogram.percentile(0.5);
+    assertTrue(median + "", median >= 1000 && median < 2000);
+    long p99 = histogram.percentile(0.99);
+    assertTrue(p99 + "", p99 >= 1000 && p99 < 2000);
+    assertEquals(1000000, histogram.percentile(1.0));
+  }
+
+}
@@ -0,0 +1,222 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.RingBuffer.OverflowPolicy;
+
+/**
+ * Tests of the bounded buffer used for outgoing reports and its overflow
+ * policies
+ */
+public class RingBufferTest extends TestCase {
+
+  private static RingBuffer<Integer> fill(OverflowPolicy policy, int capacity) {
+    RingBuffer<Integer> buffer = new RingBuffer<Integer>(capacity, policy, 10, TimeUnit.MILLISECONDS);
+    for (int i = 0; i < buffer.capacity(); i++)
+      assertTrue(buffer.offer(i));
+    return buffer;
+  }
+
+  @Test
+  public void testCapacityRoundedToPowerOfTwo() {
+    assertEquals(2, new RingBuffer<Integer>(1, OverflowPolicy.DROP_NEWEST, 0, TimeUnit.MILLISECONDS).capacity());
+    assertEquals(8, new RingBuffer<Integer>(8, OverflowPolicy.DROP_NEWEST, 0, TimeUnit.MILLISECONDS).capacity());
+    assertEquals(16, new RingBuffer<Integer>(9, OverflowPolicy.DROP_NEWEST, 0, TimeUnit.MILLISECONDS).capacity());
+  }
+
+  @Test
+  public void testParsePolicy() {
+    assertEquals(OverflowPolicy.DROP_NEWEST, OverflowPolicy.parse("drop-newest"));
+    assertEquals(OverflowPolicy.DROP_OLDEST, OverflowPolicy.parse("drop-oldest"));
+    assertEquals(OverflowPolicy.BLOCK, OverflowPolicy.parse("block"));
+    assertEquals(OverflowPolicy.SAMPLE, OverflowPolicy.parse(" Sample "));
+  }
+
+  @Test
+  public void testFIFOAcrossLaps() {
+    RingBuffer<Integer> buffer = new RingBuffer<Integer>(4, OverflowPolicy.DROP_NEWEST, 0, TimeUnit.MILLISECONDS);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(buffer.offer(i));
+      assertTrue(buffer.offer(-i));
+      assertEquals(2, buffer.size());
+      assertEquals(Integer.valueOf(i), buffer.poll());
+      assertEquals(Integer.valueOf(-i), buffer.poll());
+      assertTrue(buffer.isEmpty());
+      assertNull(buffer.poll());
+    }
+    assertEquals(0, buffer.dropped());
+  }
+
+  @Test
+  public void testDropNewest() {
+    RingBuffer<Integer> buffer = fill(OverflowPolicy.DROP_NEWEST, 4);
+    assertFalse(buffer.offer(100));
+    assertFalse(buffer.offer(101));
+    assertEquals(2, buffer.dropped());
+    for (int i = 0; i < 4; i++)
+      assertEquals(Integer.valueOf(i), buffer.poll());
+    assertNull(buffer.poll());
+  }
+
+  @Test
+  public void testDropOldest() {
+    RingBuffer<Integer> buffer = fill(OverflowPolicy.DROP_OLDEST, 4);
+    assertTrue(buffer.offer(100));
+    assertTrue(buffer.offer(101));
+    assertEquals(2, buffer.dropped());
+    assertEquals(Integer.valueOf(2), buffer.poll());
+    assertEquals(Integer.valueOf(3), buffer.poll());
+    assertEquals(Integer.valueOf(100), buffer.poll());
+    assertEquals(Integer.valueOf(101), buffer.poll());
+    assertNull(buffer.poll());
+  }
+
+  /** Preallocates StringBuilders, remembering each one created */
+  private static RingBuffer<StringBuilder> preallocated(final List<StringBuilder> created) {
+    return new RingBuffer<StringBuilder>(4, OverflowPolicy.DROP_OLDEST, 0, TimeUnit.MILLISECONDS,
+        new RingBuffer.Factory<StringBuilder>() {
+          public StringBuilder create() {
+            StringBuilder slot = new StringBuilder();
+            created.add(slot);
+            return slot;
+          }
+
+          public void reset(StringBuilder slot) {
+            slot.setLength(0);
+          }
+        });
+  }
+
+  private static void put(RingBuffer<StringBuilder> buffer, String value) {
+    long position = buffer.claim();
+    buffer.get(position).append(value);
+    buffer.publish(position);
+  }
+
+  @Test
+  public void testPreallocatedSlotsReused() {
+    List<StringBuilder> created = new ArrayList<StringBuilder>();
+    RingBuffer<StringBuilder> buffer = preallocated(created);
+    for (int i = 0; i < 4; i++)
+      put(buffer, "report " + i);
+
+    // The dropped oldest element is reset in place, and its slot reused
+    StringBuilder oldest = created.get(0);
+    long position = buffer.claim();
+    assertEquals(1, buffer.dropped());
+    assertSame(oldest, buffer.get(position));
+    assertEquals(0, oldest.length());
+    buffer.get(position).append("report 4");
+    buffer.publish(position);
+
+    // Draining the buffer leaves every slot in place
+    for (int lap = 0; lap < 2; lap++) {
+      for (int i = 0; i < 4; i++) {
+        position = buffer.acquire();
+        assertTrue(created.contains(buffer.get(position)));
+        buffer.get(position).setLength(0);
+        buffer.release(position);
+      }
+      assertEquals(-1, buffer.acquire());
+      for (int i = 0; i < 4; i++)
+        put(buffer, "lap " + lap);
+    }
+    assertEquals(4, created.size());
+
+    try {
+      buffer.poll();
+      fail("Preallocated elements cannot be removed");
+    } catch (IllegalStateException e) {
+    }
+  }
+
+  @Test
+  public void testBlockTimesOut() {
+    RingBuffer<Integer> buffer = fill(OverflowPolicy.BLOCK, 4);
+    long begin = System.nanoTime();
+    assertFalse(buffer.offer(100));
+    assertTrue(System.nanoTime() - begin >= TimeUnit.MILLISECONDS.toNanos(10));
+    assertEquals(1, buffer.dropped());
+  }
+
+  @Test
+  public void testBlockWaitsForRoom() throws InterruptedException {
+    final RingBuffer<Integer> buffer = new RingBuffer<Integer>(4, OverflowPolicy.BLOCK, 10, TimeUnit.SECONDS);
+    for (int i = 0; i < 4; i++)
+      buffer.offer(i);
+    Thread consumer = new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException e) {
+        }
+        buffer.poll();
+      }
+    };
+    consumer.start();
+    assertTrue(buffer.offer(100));
+    consumer.join();
+    assertEquals(0, buffer.dropped());
+  }
+
+  @Test
+  public void testSample() {
+    RingBuffer<Integer> buffer = new RingBuffer<Integer>(1024, OverflowPolicy.SAMPLE, 0, TimeUnit.MILLISECONDS);
+    // Everything is accepted until the buffer is half full
+    for (int i = 0; i < 512; i++)
+      assertTrue(buffer.offer(i));
+    assertEquals(0, buffer.dropped());
+
+    // After that, some are accepted and some are dropped
+    int accepted = 0;
+    for (int i = 0; i < 10000; i++)
+      if (buffer.offer(i))
+        accepted++;
+    assertTrue(accepted > 0);
+    assertTrue(accepted <= 512);
+    assertEquals(10000 - accepted, buffer.dropped());
+    assertEquals(512 + accepted, buffer.size());
+  }
+
+  @Test
+  public void testConcurrentProducers() throws InterruptedException {
+    final int producers = 4, perProducer = 50000;
+    final RingBuffer<Integer> buffer = new RingBuffer<Integer>(64, OverflowPolicy.BLOCK, 10, TimeUnit.SECONDS);
+    final CountDownLatch start = new CountDownLatch(1);
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      new Thread() {
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+          }
+          for (int i = 0; i < perProducer; i++)
+            buffer.offer(producer * perProducer + i);
+        }
+      }.start();
+    }
+    start.countDown();
+
+    // Each producer's elements arrive in the order it offered them
+    int[] last = new int[producers];
+    for (int p = 0; p < producers; p++)
+      last[p] = -1;
+    for (int i = 0; i < producers * perProducer; i++) {
+      int next = buffer.take();
+      int producer = next / perProducer;
+      assertTrue(next % perProducer > last[producer]);
+      last[producer] = next % perProducer;
+    }
+    assertTrue(buffer.isEmpty());
+    assertEquals(0, buffer.dropped());
+  }
+
+}
@@ -0,0 +1,114 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+
+/**
+ * Tests that the spooling reporter keeps published batches until a probe
+ * confirms them, and spools them again if the server turns out to be down
+ */
+public class SpoolingPubSubReporterTest extends TestCase {
+
+  /** A reporter whose probes are answered by the test, one at a time */
+  static final class ProbedReporter extends SpoolingPubSubReporter {
+    final Semaphore permits = new Semaphore(0);
+    volatile boolean up = true;
+    volatile int probes = 0;
+
+    ProbedReporter(ReportSpool spool) {
+      super(new Trace(), "localhost", 9999, spool, 1);
+    }
+
+    @Override
+    boolean probe() {
+      // Probes made before construction finishes fail
+      if (permits == null)
+        return false;
+      try {
+        permits.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      probes++;
+      return up;
+    }
+
+    /** Answers one probe and waits until the replayer is waiting in the next */
+    void answer(boolean up) throws InterruptedException {
+      awaitProbe();
+      int made = probes;
+      this.up = up;
+      permits.release();
+      while (probes == made)
+        Thread.sleep(1);
+      awaitProbe();
+    }
+
+    private void awaitProbe() throws InterruptedException {
+      for (int i = 0; i < 5000 && !permits.hasQueuedThreads(); i++)
+        Thread.sleep(1);
+      assertTrue(permits.hasQueuedThreads());
+    }
+  }
+
+  private File dir;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("xtrace-spool", "");
+    dir.delete();
+  }
+
+  @Override
+  protected void tearDown() {
+    File[] files = dir.listFiles();
+    if (files != null)
+      for (File file : files)
+        file.delete();
+    dir.delete();
+  }
+
+  private static void awaitPublished(Reporter reporter, long count) throws InterruptedException {
+    for (int i = 0; i < 500 && reporter.getMetrics().getReportsPublished() < count; i++)
+      Thread.sleep(10);
+    assertEquals(count, reporter.getMetrics().getReportsPublished());
+  }
+
+  @Test
+  public void testUnconfirmedBatchesSpooled() throws Exception {
+    ProbedReporter reporter = new ProbedReporter(new ReportSpool(dir, 4096, 1024 * 1024));
+    try {
+      reporter.answer(true);
+      assertTrue(reporter.isReachable());
+      reporter.doSend(XTraceReport3.newBuilder().setTaskID(1));
+      awaitPublished(reporter, 1);
+      assertTrue(reporter.spoolIsEmpty());
+      assertEquals(1, reporter.unconfirmedBatches());
+
+      // The server goes down before a probe confirms the batch, so it is spooled
+      reporter.answer(false);
+      assertFalse(reporter.isReachable());
+      assertEquals(0, reporter.unconfirmedBatches());
+      assertFalse(reporter.spoolIsEmpty());
+
+      // Once the server is back, the batch is published again, then confirmed by the next probe
+      reporter.answer(true);
+      assertTrue(reporter.spoolIsEmpty());
+      awaitPublished(reporter, 2);
+      assertEquals(1, reporter.unconfirmedBatches());
+      reporter.answer(true);
+      assertEquals(0, reporter.unconfirmedBatches());
+    } finally {
+      reporter.close();
+    }
+  }
+
+}
@@ -0,0 +1,119 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceTcpAck;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceTcpMessage;
+
+/**
+ * Tests that the TCP reporter resends unacknowledged messages after losing its
+ * connection, and waits for acknowledgements once too many are outstanding
+ */
+public class TcpReporterTest extends TestCase {
+
+  private ServerSocket server;
+  private TcpReporter reporter;
+
+  @Override
+  protected void setUp() throws IOException {
+    server = new ServerSocket(0);
+    server.setSoTimeout(5000);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (reporter != null)
+      reporter.close();
+    server.close();
+  }
+
+  private static XTraceReport3.Builder report(int i) {
+    return XTraceReport3.newBuilder().setTaskID(i).setLabel("report " + i);
+  }
+
+  /** Reads messages until one contains the report with the task ID, returning the task IDs of their reports */
+  private static List<Long> readUntil(InputStream in, List<XTraceTcpMessage> messages, long last) throws IOException {
+    List<Long> tasks = new ArrayList<Long>();
+    while (!tasks.contains(last)) {
+      XTraceTcpMessage message = XTraceTcpMessage.parseDelimitedFrom(in);
+      assertNotNull(message);
+      messages.add(message);
+      if (message.hasReport())
+        tasks.add(message.getReport().getTaskID());
+      for (XTraceReport3 report : message.getBatch().getReportsList())
+        tasks.add(report.getTaskID());
+      if (message.hasCompressedBatch())
+        for (XTraceReport3 report : new ReportBatchCodec().decode(message.getCompressedBatch()))
+          tasks.add(report.getTaskID());
+    }
+    return tasks;
+  }
+
+  private static void ack(Socket socket, long sequence) throws IOException {
+    XTraceTcpAck.newBuilder().setSequence(sequence).build().writeDelimitedTo(socket.getOutputStream());
+    socket.getOutputStream().flush();
+  }
+
+  @Test
+  public void testResendsUnacked() throws Exception {
+    reporter = new TcpReporter(new Trace(), "localhost", server.getLocalPort(), true, 100, 10);
+    reporter.doSend(report(0));
+    reporter.doSend(report(1));
+
+    // The first connection sees the reports but is lost before acknowledging them
+    Socket first = server.accept();
+    List<XTraceTcpMessage> messages = new ArrayList<XTraceTcpMessage>();
+    readUntil(first.getInputStream(), messages, 1);
+    first.close();
+
+    // The second connection is sent every report again
+    Socket second = server.accept();
+    List<XTraceTcpMessage> resent = new ArrayList<XTraceTcpMessage>();
+    List<Long> tasks = readUntil(second.getInputStream(), resent, 1);
+    assertEquals(0L, (long) tasks.get(0));
+    assertEquals(1L, (long) tasks.get(tasks.size() - 1));
+    assertEquals(messages.get(messages.size() - 1).getSequence(), resent.get(resent.size() - 1).getSequence());
+
+    ack(second, resent.get(resent.size() - 1).getSequence());
+    for (int i = 0; i < 500 && reporter.getMetrics().getReportsPublished() < 2; i++)
+      Thread.sleep(10);
+    assertEquals(2, reporter.getMetrics().getReportsPublished());
+    second.close();
+  }
+
+  @Test
+  public void testWaitsForAcks() throws Exception {
+    reporter = new TcpReporter(new Trace(), "localhost", server.getLocalPort(), true, 2, 10);
+
+    // Each report waits out the linger time, so is sent as a message of its own
+    reporter.doSend(report(0));
+    Socket socket = server.accept();
+    InputStream in = socket.getInputStream();
+    List<XTraceTcpMessage> messages = new ArrayList<XTraceTcpMessage>();
+    readUntil(in, messages, 0);
+    reporter.doSend(report(1));
+    readUntil(in, messages, 1);
+
+    // With two messages unacknowledged, the next report stays queued
+    reporter.doSend(report(2));
+    Thread.sleep(100);
+    assertEquals(0, in.available());
+    assertEquals(1, reporter.getQueueDepth());
+
+    ack(socket, messages.get(0).getSequence());
+    readUntil(in, messages, 2);
+    assertEquals(0, reporter.getQueueDepth());
+    socket.close();
+  }
+
+}
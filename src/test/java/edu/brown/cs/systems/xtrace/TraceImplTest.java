@@ -1,6 +1,7 @@
 package edu.brown.cs.systems.xtrace;
 
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 import junit.framework.TestCase;
@@ -10,7 +11,6 @@ import org.junit.Test;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import edu.brown.cs.systems.xtrace.Metadata.XTraceMetadata;
-import edu.brown.cs.systems.xtrace.Metadata.XTraceMetadataOrBuilder;
 import edu.brown.cs.systems.xtrace.Metadata.XTraceMetadata.Builder;
 
 public class TraceImplTest extends TestCase {
@@ -170,7 +170,7 @@ public class TraceImplTest extends TestCase {
     // If parents exist but ctx is not yet immutable, it should be updated
     xtrace = new Trace();
     xtrace.set(xmd1);
-    XTraceMetadataOrBuilder builder = xtrace.observe();
+    Context builder = xtrace.observe();
     assertEquals(builder, xtrace.observe());
     assertEquals(builder, xtrace.get().observe());
     assertEquals(builder, xtrace.observe());
@@ -228,7 +228,7 @@ public class TraceImplTest extends TestCase {
     Trace xtrace = new Trace();
     byte[] xmd = randomTaskIDAndTenantAndParents(1);
     xtrace.set(xmd);
-    XTraceMetadataOrBuilder builder = xtrace.observe();
+    Context builder = xtrace.observe();
     
     long prevParentEventID = builder.getParentEventID(0);
     long nextParentEventID = random.nextLong();
@@ -246,7 +246,7 @@ public class TraceImplTest extends TestCase {
     byte[] xmd = randomTaskIDAndTenantAndParents(1);
     xtrace.set(xmd);
     xtrace.get();
-    XTraceMetadataOrBuilder builder = xtrace.observe();
+    Context builder = xtrace.observe();
     
     long prevParentEventID = builder.getParentEventID(0);
     long nextParentEventID = random.nextLong();
@@ -281,6 +281,156 @@ public class TraceImplTest extends TestCase {
     assertFalse(ctx.observe().hasTenantClass());
     assertEquals(0, ctx.observe().getParentEventIDCount());
   }
-  
+
+  @Test
+  public void testJoinIntoContextWithoutParents() {
+    Trace xtrace = new Trace();
+    xtrace.set(randomTaskID());
+    Context other = Context.parse(randomTaskIDAndTenantAndParents(2));
+    xtrace.join(other);
+    assertEquals(2, xtrace.observe().getParentEventIDCount());
+    assertEquals(2, other.getParentEventIDCount());
+  }
+
+  @Test
+  public void testJoinDeduplicatesParents() throws InvalidProtocolBufferException {
+    Trace xtrace = new Trace(new ContextStorage.Local(), 0);
+    long[] parents = new long[200];
+    for (int i = 0; i < parents.length; i++)
+      parents[i] = i;
+    xtrace.set(newBytes(1L, null, Arrays.copyOfRange(parents, 0, 120)));
+
+    // Overlapping, with a duplicate and the zero ID, large enough to be hashed
+    long[] others = Arrays.copyOfRange(parents, 80, 201);
+    others[others.length - 1] = 100;
+    xtrace.join(newBytes(1L, null, others));
+    List<Long> joined = build(xtrace.bytes()).getParentEventIDList();
+    assertEquals(200, joined.size());
+    for (int i = 0; i < parents.length; i++)
+      assertEquals(Long.valueOf(i), joined.get(i));
+
+    // Joining again changes nothing
+    Context ctx = xtrace.get();
+    xtrace.join(newBytes(1L, null, others));
+    assertSame(ctx, xtrace.get());
+  }
+
+  @Test
+  public void testJoinCollapsesParentsBeyondMax() throws InvalidProtocolBufferException {
+    Trace xtrace = new Trace(new ContextStorage.Local(), 4);
+    LoggerTest.NullLogger reporter = new LoggerTest.NullLogger(xtrace);
+    xtrace.setReporter(reporter);
+
+    xtrace.set(newBytes(7L, null, 1, 2));
+    xtrace.join(newBytes(7L, null, 2, 3, 4));
+    assertEquals(4, xtrace.observe().getParentEventIDCount());
+    assertNull(reporter.report);
+
+    Context joined = Context.parse(newBytes(7L, null, 5));
+    xtrace.join(joined);
+    assertEquals(1, xtrace.observe().getParentEventIDCount());
+    assertEquals(1, joined.getParentEventIDCount());
+    assertNotNull(reporter.report);
+    assertEquals(Trace.JOIN_AGENT, reporter.report.getAgent());
+    assertEquals(7, reporter.report.getTaskID());
+    assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), reporter.report.getParentEventIDList());
+    assertEquals(reporter.report.getEventID(), xtrace.observe().getParentEventID(0));
+
+    // A context that arrives with too many parents is collapsed too
+    xtrace.clear();
+    Context wide = Context.parse(newBytes(7L, null, 1, 2, 3, 4, 5, 6));
+    xtrace.join(wide);
+    assertEquals(1, xtrace.observe().getParentEventIDCount());
+    assertEquals(6, wide.getParentEventIDCount());
+  }
+
+  @Test
+  public void testBytesBoundedWithJoin() throws InvalidProtocolBufferException {
+    Trace xtrace = new Trace(new ContextStorage.Local(), 0);
+    LoggerTest.NullLogger reporter = new LoggerTest.NullLogger(xtrace);
+    xtrace.setReporter(reporter);
+    assertNull(xtrace.bytesBoundedWithJoin());
+
+    xtrace.set(newBytes(7L, null, 1, 2, 3));
+    Context saved = xtrace.get();
+    XTraceMetadata bounded = build(xtrace.bytesBoundedWithJoin());
+    assertEquals(Arrays.asList(1L, 2L, 3L), reporter.report.getParentEventIDList());
+    assertEquals(Arrays.asList(reporter.report.getEventID()), bounded.getParentEventIDList());
+    assertEquals(3, saved.getParentEventIDCount());
+
+    // Nothing to join with a single parent
+    reporter.report = null;
+    assertTrue(Arrays.equals(xtrace.bytes(), xtrace.bytesBoundedWithJoin()));
+    assertNull(reporter.report);
+  }
+
+  @Test
+  public void testCollapseWithoutReport() {
+    // Without a task ID, no join report can be sent, so the parents are kept
+    Trace xtrace = new Trace(new ContextStorage.Local(), 2);
+    LoggerTest.NullLogger reporter = new LoggerTest.NullLogger(xtrace);
+    xtrace.setReporter(reporter);
+    xtrace.set(newBytes(null, null, 1, 2));
+    xtrace.join(newBytes(null, null, 3));
+    assertEquals(3, xtrace.observe().getParentEventIDCount());
+    assertNull(reporter.report);
+
+    // Without a reporter, parents are never collapsed
+    xtrace = new Trace(new ContextStorage.Local(), 2);
+    xtrace.set(newBytes(null, null, 1, 2));
+    xtrace.join(newBytes(null, null, 3));
+    assertEquals(3, xtrace.observe().getParentEventIDCount());
+  }
+
+  @Test
+  public void testCollapseWithReportDiscarded() throws InvalidProtocolBufferException {
+    // A reporter whose queue discards the join report leaves the parents in place
+    Trace xtrace = new Trace(new ContextStorage.Local(), 2);
+    LoggerTest.NullLogger reporter = new LoggerTest.NullLogger(xtrace);
+    reporter.accepting = false;
+    xtrace.setReporter(reporter);
+    xtrace.set(newBytes(7L, null, 1, 2));
+    xtrace.join(newBytes(7L, null, 3));
+    assertNull(reporter.report);
+    assertEquals(Arrays.asList(1L, 2L, 3L), build(xtrace.bytes()).getParentEventIDList());
+
+    reporter.accepting = true;
+    xtrace.join(newBytes(7L, null, 4));
+    assertEquals(Arrays.asList(1L, 2L, 3L, 4L), reporter.report.getParentEventIDList());
+    assertEquals(Arrays.asList(reporter.report.getEventID()), build(xtrace.bytes()).getParentEventIDList());
+  }
+
+  @Test
+  public void testCollapseWithReportingOff() throws InvalidProtocolBufferException {
+    Trace xtrace = new Trace(new ContextStorage.Local(), 2);
+    LoggerTest.NullLogger reporter = new LoggerTest.NullLogger(xtrace);
+    xtrace.setReporter(reporter);
+    boolean on = LoggingControl.INSTANCE.isReportingOn();
+    LoggingControl.INSTANCE.setReportingOn(false);
+    try {
+      xtrace.set(newBytes(7L, null, 1, 2));
+      xtrace.join(newBytes(7L, null, 3));
+      assertEquals(Arrays.asList(1L, 2L, 3L), build(xtrace.bytes()).getParentEventIDList());
+      assertEquals(Arrays.asList(1L), build(xtrace.bytesBoundedWithJoin()).getParentEventIDList());
+      assertEquals(3, xtrace.observe().getParentEventIDCount());
+      assertNull(reporter.report);
+    } finally {
+      LoggingControl.INSTANCE.setReportingOn(on);
+    }
+
+    // The same happens when only the join agent is disabled
+    LoggingControl.INSTANCE.disableAgent(Trace.JOIN_AGENT);
+    try {
+      xtrace.join(newBytes(7L, null, 4));
+      assertEquals(4, xtrace.observe().getParentEventIDCount());
+      assertNull(reporter.report);
+    } finally {
+      LoggingControl.INSTANCE.enableAgent(Trace.JOIN_AGENT);
+    }
+
+    xtrace.join(newBytes(7L, null, 5));
+    assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), reporter.report.getParentEventIDList());
+    assertEquals(1, xtrace.observe().getParentEventIDCount());
+  }
 
 }
@@ -0,0 +1,191 @@
+package edu.brown.cs.systems.xtrace.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.XTrace;
+import edu.brown.cs.systems.xtrace.extensions.XTracked;
+
+/**
+ * Tests that the agent's transformer weaves XTracked into configured classes
+ * and inserts save and join calls into configured methods
+ */
+public class XTrackedTransformerTest extends TestCase {
+
+  /** A class of tasks to be made XTracked */
+  public static class Task {
+  }
+
+  /** A class to be made XTracked that already has a method XTracked would add */
+  public static class TenantTask {
+    public int getTenantClass() {
+      return 3;
+    }
+  }
+
+  /** A queue whose put saves the context into tasks, and take joins it */
+  public static class WorkQueue {
+    private final LinkedList<Object> queue = new LinkedList<Object>();
+
+    public void put(Object task) {
+      queue.add(task);
+    }
+
+    public Object take() {
+      return queue.poll();
+    }
+  }
+
+  private static final String TASK = Task.class.getName();
+  private static final String QUEUE = WorkQueue.class.getName();
+  private static final List<String> NONE = Collections.emptyList();
+
+  private static Map<String, WeavingPlan> plans() {
+    return WeavingPlan.create(Arrays.asList(TASK), Arrays.asList(QUEUE + "#put(0)"), NONE,
+        Arrays.asList(QUEUE + "#take"));
+  }
+
+  private static byte[] classfile(String className) throws IOException {
+    InputStream in = XTrackedTransformerTest.class.getResourceAsStream("/" + className.replace('.', '/') + ".class");
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      for (int n; (n = in.read(buf)) != -1;)
+        out.write(buf, 0, n);
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Loads the test classes woven by the transformer, and everything else from the parent */
+  private static class WovenClassLoader extends ClassLoader {
+    private final XTrackedTransformer transformer;
+
+    WovenClassLoader(XTrackedTransformer transformer) {
+      super(XTrackedTransformerTest.class.getClassLoader());
+      this.transformer = transformer;
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      if (!name.equals(TASK) && !name.equals(QUEUE))
+        return super.loadClass(name, resolve);
+      synchronized (getClassLoadingLock(name)) {
+        Class<?> c = findLoadedClass(name);
+        if (c == null) {
+          try {
+            byte[] original = classfile(name);
+            byte[] woven = transformer.transform(this, name.replace('.', '/'), null, null, original);
+            byte[] bytes = woven == null ? original : woven;
+            c = defineClass(name, bytes, 0, bytes.length);
+          } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+          }
+        }
+        return c;
+      }
+    }
+  }
+
+  @Override
+  protected void tearDown() {
+    XTrace.stop();
+  }
+
+  @Test
+  public void testQueuedTaskCarriesContext() throws Exception {
+    XTrackedTransformer transformer = new XTrackedTransformer(plans(), 1, TimeUnit.MINUTES);
+    ClassLoader loader = new WovenClassLoader(transformer);
+    Object task = loader.loadClass(TASK).newInstance();
+    Class<?> queueClass = loader.loadClass(QUEUE);
+    Object queue = queueClass.newInstance();
+    assertEquals(2, transformer.getWovenClasses());
+    assertTrue(task instanceof XTracked);
+    assertFalse(queue instanceof XTracked);
+
+    XTrace.setTask(17, false);
+    queueClass.getMethod("put", Object.class).invoke(queue, task);
+    assertNotNull(((XTracked) task).getXTrace());
+
+    XTrace.stop();
+    assertSame(task, queueClass.getMethod("take").invoke(queue));
+    assertEquals(Long.valueOf(17), XTrace.getTaskID());
+
+    // Objects that are not XTracked pass through untouched
+    XTrace.stop();
+    queueClass.getMethod("put", Object.class).invoke(queue, "not tracked");
+    assertEquals("not tracked", queueClass.getMethod("take").invoke(queue));
+    assertFalse(XTrace.active());
+  }
+
+  @Test
+  public void testUnconfiguredClassesSkipped() throws IOException {
+    XTrackedTransformer transformer = new XTrackedTransformer(plans(), 1, TimeUnit.MINUTES);
+    String name = XTrackedTransformerTest.class.getName();
+    assertNull(transformer.transform(null, name.replace('.', '/'), null, null, classfile(name)));
+    assertNull(transformer.transform(null, null, null, null, new byte[0]));
+    assertEquals(0, transformer.getWovenClasses());
+  }
+
+  @Test
+  public void testBudgetExhausted() throws IOException {
+    XTrackedTransformer transformer = new XTrackedTransformer(plans(), 0, TimeUnit.MILLISECONDS);
+    assertNotNull(transformer.transform(null, TASK.replace('.', '/'), null, null, classfile(TASK)));
+    assertTrue(transformer.isExhausted());
+    assertNull(transformer.transform(null, QUEUE.replace('.', '/'), null, null, classfile(QUEUE)));
+    assertEquals(1, transformer.getWovenClasses());
+    assertEquals(Arrays.asList(QUEUE.replace('.', '/')), transformer.getSkippedClasses());
+
+    // Unconfigured classes are not recorded as skipped
+    String name = XTrackedTransformerTest.class.getName();
+    assertNull(transformer.transform(null, name.replace('.', '/'), null, null, classfile(name)));
+    assertEquals(1, transformer.getSkippedClasses().size());
+  }
+
+  @Test
+  public void testClashingClassSkipped() throws Exception {
+    String name = TenantTask.class.getName();
+    XTrackedTransformer transformer = new XTrackedTransformer(WeavingPlan.create(Arrays.asList(name), NONE, NONE,
+        NONE), 1, TimeUnit.MINUTES);
+    assertNull(transformer.transform(null, name.replace('.', '/'), null, null, classfile(name)));
+    assertEquals(0, transformer.getWovenClasses());
+    try {
+      XTrackedTransformer.weave(classfile(name), WeavingPlan.create(Arrays.asList(name), NONE, NONE, NONE).get(
+          name.replace('.', '/')));
+      fail("Expected the clash with getTenantClass()I to be detected");
+    } catch (XTrackedTransformer.MemberClash e) {
+      assertEquals("getTenantClass()I", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testInvalidSpecs() {
+    for (String spec : new String[] { "Queue", "#put(0)", "Queue#", "Queue#put", "Queue#put(x)", "Queue#put(0" }) {
+      try {
+        WeavingPlan.create(NONE, Arrays.asList(spec), NONE, NONE);
+        fail("Expected " + spec + " to be rejected");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+    try {
+      WeavingPlan.create(NONE, NONE, NONE, Arrays.asList("Queue#take(0)"));
+      fail("Expected an index on a join-returned method to be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+}
@@ -0,0 +1,124 @@
+package edu.brown.cs.systems.xtrace.extensions;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.Context;
+import edu.brown.cs.systems.xtrace.XTrace;
+
+/**
+ * Tests that the executor and future wrappers run tasks in the context they
+ * were submitted in
+ */
+public class XTraceExecutorServiceTest extends TestCase {
+
+  /** Returns the current task ID, or null if there is none */
+  private static final Callable<Long> CURRENT_TASK = new Callable<Long>() {
+    public Long call() {
+      return XTrace.active() ? XTrace.getTaskID() : null;
+    }
+  };
+
+  private ExecutorService pool;
+
+  @Override
+  protected void setUp() {
+    pool = Executors.newSingleThreadExecutor();
+  }
+
+  @Override
+  protected void tearDown() {
+    pool.shutdownNow();
+    XTrace.stop();
+  }
+
+  @Test
+  public void testSubmittedTaskRunsInSubmittersContext() throws Exception {
+    ExecutorService wrapped = XTraceExecutorService.wrap(pool);
+    XTrace.setTask(7, false);
+    assertEquals(Long.valueOf(7), wrapped.submit(CURRENT_TASK).get());
+
+    // The worker's own context is restored afterwards
+    XTrace.stop();
+    assertNull(pool.submit(CURRENT_TASK).get());
+    assertNull(wrapped.submit(CURRENT_TASK).get());
+  }
+
+  @Test
+  public void testInvokeAll() throws Exception {
+    ExecutorService wrapped = XTraceExecutorService.wrap(pool);
+    XTrace.setTask(8, false);
+    List<Callable<Long>> tasks = Arrays.asList(CURRENT_TASK, CURRENT_TASK);
+    for (Future<Long> result : wrapped.invokeAll(tasks))
+      assertEquals(Long.valueOf(8), result.get());
+    assertEquals(Long.valueOf(8), wrapped.invokeAny(tasks));
+  }
+
+  @Test
+  public void testNotWrappedWithoutContext() {
+    Runnable runnable = new Runnable() {
+      public void run() {
+      }
+    };
+    XTrace.stop();
+    assertSame(runnable, XTraceRunnable.wrap(runnable));
+    assertSame(CURRENT_TASK, XTraceCallable.wrap(CURRENT_TASK));
+    XTrace.setTask(9, false);
+    assertNotSame(runnable, XTraceRunnable.wrap(runnable));
+  }
+
+  @Test
+  public void testCallerContextRestored() throws Exception {
+    XTrace.setTask(10, false);
+    Callable<Long> task = XTraceCallable.wrap(CURRENT_TASK);
+    XTrace.stop();
+    XTrace.setTask(11, false);
+    Context current = XTrace.get();
+    assertEquals(Long.valueOf(10), task.call());
+    assertSame(current, XTrace.get());
+  }
+
+  @Test
+  public void testScheduledTaskRunsInSchedulersContext() throws Exception {
+    ScheduledExecutorService scheduler = XTraceScheduledExecutorService.wrap(Executors
+        .newSingleThreadScheduledExecutor());
+    try {
+      XTrace.setTask(12, false);
+      assertEquals(Long.valueOf(12), scheduler.schedule(CURRENT_TASK, 1, TimeUnit.MILLISECONDS).get());
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testCompletableFutureStages() throws InterruptedException, ExecutionException {
+    XTrace.setTask(13, false);
+    Supplier<Long> supplier = new Supplier<Long>() {
+      public Long get() {
+        return XTrace.getTaskID();
+      }
+    };
+    Function<Long, Long> function = new Function<Long, Long>() {
+      public Long apply(Long previous) {
+        return previous * 100 + XTrace.getTaskID();
+      }
+    };
+    long result = XTraceCompletableFuture.supplyAsync(supplier, pool)
+        .thenApplyAsync(XTraceCompletableFuture.function(function), pool).get();
+    assertEquals(1313, result);
+  }
+
+}
@@ -0,0 +1,86 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+
+/**
+ * Tests that FileTreeDataStore does not lose reports when writers are closed
+ * by one worker while others are writing
+ */
+public class FileTreeDataStoreTest extends TestCase {
+
+  private static final int WORKERS = 4;
+  private static final int TASKS = 8;
+  private static final int REPORTS = 2000;
+
+  private File directory;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("xtrace-datastore").toFile();
+  }
+
+  @Override
+  protected void tearDown() {
+    delete(directory);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null)
+      for (File child : children)
+        delete(child);
+    file.delete();
+  }
+
+  @Test
+  public void testConcurrentEviction() throws Exception {
+    final FileTreeDataStore store = new FileTreeDataStore(directory.getAbsolutePath());
+    final AtomicBoolean done = new AtomicBoolean(false);
+
+    // Closes every open writer over and over, as eviction by another worker would
+    Thread evictor = new Thread() {
+      public void run() {
+        while (!done.get())
+          store.shutdown();
+      }
+    };
+    Thread[] workers = new Thread[WORKERS];
+    for (int i = 0; i < WORKERS; i++) {
+      final int worker = i;
+      workers[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < REPORTS; j++)
+            store.reportReceived(new Report3(XTraceReport3.newBuilder().setTaskID(1000000 + j % TASKS)
+                .setEventID(worker * REPORTS + j).build()));
+        }
+      };
+    }
+    evictor.start();
+    for (Thread worker : workers)
+      worker.start();
+    for (Thread worker : workers)
+      worker.join();
+    done.set(true);
+    evictor.join();
+    store.shutdown();
+
+    int read = 0;
+    for (int task = 0; task < TASKS; task++) {
+      String taskID = new Report3(XTraceReport3.newBuilder().setTaskID(1000000 + task).build()).getTaskID();
+      for (Iterator<?> it = store.getReports(taskID); it.hasNext(); it.next())
+        read++;
+    }
+    assertEquals(WORKERS * REPORTS, read);
+  }
+
+}
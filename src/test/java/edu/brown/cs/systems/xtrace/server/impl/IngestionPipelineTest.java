@@ -0,0 +1,210 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+import edu.brown.cs.systems.xtrace.server.api.DataStore;
+import edu.brown.cs.systems.xtrace.server.api.MetadataStore;
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.api.TaskRecord;
+import edu.brown.cs.systems.xtrace.server.impl.deprecated.Report2;
+
+/**
+ * Tests that the ingestion pipeline writes each task's reports in order, and
+ * sheds or drops reports rather than blocking when a worker falls behind
+ */
+public class IngestionPipelineTest extends TestCase {
+
+  /** Records each task's reports in the order they were written */
+  static class RecordingStore implements DataStore, MetadataStore {
+    final Map<String, List<Report>> written = new ConcurrentHashMap<String, List<Report>>();
+    volatile CountDownLatch blocked = null;
+
+    public void reportReceived(Report r) {
+      CountDownLatch latch = blocked;
+      if (latch != null) {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      List<Report> reports = written.get(r.getTaskID());
+      if (reports == null)
+        written.put(r.getTaskID(), reports = new ArrayList<Report>());
+      reports.add(r);
+    }
+
+    public Iterator<Report> getReports(String taskId) {
+      return null;
+    }
+
+    public List<TaskRecord> getTasksSince(long startTime, int offset, int limit) {
+      return null;
+    }
+
+    public List<TaskRecord> getLatestTasks(int offset, int limit) {
+      return null;
+    }
+
+    public List<TaskRecord> getTasksByTag(String tag, int offset, int limit) {
+      return null;
+    }
+
+    public List<TaskRecord> getTasksByTitle(String title, int offset, int limit) {
+      return null;
+    }
+
+    public List<TaskRecord> getTasksByTitleSubstring(String title, int offset, int limit) {
+      return null;
+    }
+
+    public Collection<String> getConcurrentTasks(String taskId) {
+      return null;
+    }
+
+    public Collection<String> getTags(String taskId) {
+      return null;
+    }
+
+    public int numTasks() {
+      return 0;
+    }
+
+    public int numReports() {
+      return 0;
+    }
+
+    public void shutdown() {
+    }
+  }
+
+  private static Report3 report(long taskID, long eventID) {
+    return new Report3(XTraceReport3.newBuilder().setTaskID(taskID).setEventID(eventID).build());
+  }
+
+  private static Report3 report(long taskID, long eventID, int tenantClass) {
+    return new Report3(XTraceReport3.newBuilder().setTaskID(taskID).setEventID(eventID).setTenantClass(tenantClass)
+        .build());
+  }
+
+  @Test
+  public void testTaskOrderPreserved() {
+    RecordingStore store = new RecordingStore();
+    IngestionPipeline pipeline = new IngestionPipeline(store, new RecordingStore(), 4, 10000);
+    for (long event = 0; event < 1000; event++)
+      for (long task = 0; task < 20; task++)
+        assertTrue(pipeline.submit(report(task, event)));
+    pipeline.shutdown();
+
+    assertEquals(20000, pipeline.getReportsReceived());
+    assertEquals(20000, pipeline.getReportsIngested());
+    assertEquals(0, pipeline.getQueueDepth());
+    assertEquals(20, store.written.size());
+    for (List<Report> reports : store.written.values()) {
+      assertEquals(1000, reports.size());
+      for (int i = 0; i < reports.size(); i++)
+        assertEquals(i, reports.get(i).diskRepr().getV3Report().getEventID());
+    }
+  }
+
+  @Test
+  public void testDropsWhenQueueFull() {
+    RecordingStore store = new RecordingStore();
+    CountDownLatch release = new CountDownLatch(1);
+    store.blocked = release;
+    IngestionPipeline pipeline = new IngestionPipeline(store, new RecordingStore(), 1, 2);
+
+    // The worker takes at most one batch and blocks on it; the queue then fills
+    int accepted = 0;
+    for (int i = 0; i < 1000; i++)
+      if (pipeline.submit(report(1, i)))
+        accepted++;
+    assertTrue(pipeline.getReportsDropped() > 0);
+    assertEquals(1000, accepted + pipeline.getReportsDropped());
+    assertEquals(pipeline.getQueueDepth(), pipeline.getMaxQueueDepth());
+
+    release.countDown();
+    pipeline.shutdown();
+    assertEquals(accepted, pipeline.getReportsIngested());
+    assertFalse(pipeline.submit(report(1, 0)));
+  }
+
+  @Test
+  public void testShedsLowPriorityFirst() throws InterruptedException {
+    RecordingStore store = new RecordingStore();
+    CountDownLatch release = new CountDownLatch(1);
+    store.blocked = release;
+    Map<Integer, Integer> priorities = new HashMap<Integer, Integer>();
+    priorities.put(1, 0);
+    priorities.put(2, 2);
+    LoadShedder shedder = new LoadShedder(priorities, 1, new double[] { 0.25, 0.5, 1.0 }, 0, 0);
+    IngestionPipeline pipeline = new IngestionPipeline(store, new RecordingStore(), 1, 100, shedder);
+
+    // Wait for the worker to block on the first report, leaving its queue empty
+    assertTrue(pipeline.submit(report(0, 0)));
+    while (pipeline.getQueueDepth() > 0)
+      Thread.sleep(1);
+
+    // Tenant class 1 may fill a quarter of the queue, reports of no listed class half, and class 2 all of it
+    for (int i = 0; i < 100; i++)
+      pipeline.submit(report(1, i, 1));
+    for (int i = 0; i < 100; i++)
+      pipeline.submit(report(2, i));
+    for (int i = 0; i < 100; i++)
+      pipeline.submit(report(3, i, 2));
+    assertEquals(150, pipeline.getReportsShedByPriority());
+    assertEquals(50, pipeline.getReportsDropped());
+    assertEquals(150, pipeline.getReportsShed());
+
+    release.countDown();
+    pipeline.shutdown();
+    assertEquals(101, pipeline.getReportsIngested());
+    assertEquals(25, store.written.get(report(1, 0).getTaskID()).size());
+    assertEquals(25, store.written.get(report(2, 0).getTaskID()).size());
+    assertEquals(50, store.written.get(report(3, 0).getTaskID()).size());
+  }
+
+  @Test
+  public void testConfiguredShedsNothing() {
+    // Without configured tenant class priorities, reports may fill the whole queue
+    LoadShedder shedder = LoadShedder.configured();
+    assertTrue(shedder.admits(report(1, 0), 99, 100));
+    assertTrue(shedder.admits(report(1, 0, 5), 99, 100));
+    assertTrue(shedder.admits(Report2.parse(TcpReportSourceTest.report("1000", 0, 0)), 99, 100));
+    assertFalse(shedder.overTaskCap(report(1, 0)));
+  }
+
+  @Test
+  public void testTaskCap() {
+    RecordingStore store = new RecordingStore();
+    LoadShedder shedder = new LoadShedder(new HashMap<Integer, Integer>(), 0, new double[] { 1.0 }, 10, 60000);
+    IngestionPipeline pipeline = new IngestionPipeline(store, new RecordingStore(), 4, 10000, shedder);
+    for (int i = 0; i < 20; i++)
+      pipeline.submit(report(1, i));
+    for (int i = 0; i < 5; i++)
+      pipeline.submit(report(2, i));
+
+    // A task's offered reports count against the same limit, and are shed rather than retried
+    assertTrue(pipeline.offer(report(2, 5)));
+    assertTrue(pipeline.offer(report(1, 20)));
+    pipeline.shutdown();
+
+    assertEquals(11, pipeline.getReportsShedByTaskCap());
+    assertEquals(0, pipeline.getReportsDropped());
+    assertEquals(10, store.written.get(report(1, 0).getTaskID()).size());
+    assertEquals(6, store.written.get(report(2, 0).getTaskID()).size());
+  }
+
+}
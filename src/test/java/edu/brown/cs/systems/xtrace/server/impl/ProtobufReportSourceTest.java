@@ -0,0 +1,169 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.ReportBatchCodec;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReportBatch;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceTcpAck;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceTcpMessage;
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.impl.IngestionPipelineTest.RecordingStore;
+
+/**
+ * Tests that the protobuf report source ingests reports, batches and
+ * compressed batches, acknowledges them, and pauses connections rather than
+ * dropping reports when the pipeline is full
+ */
+public class ProtobufReportSourceTest extends SelectorReportSourceTest {
+
+  private RecordingStore store;
+  private IngestionPipeline pipeline;
+  private ProtobufReportSource source;
+
+  private void start(int queueCapacity) throws IOException {
+    store = new RecordingStore();
+    pipeline = new IngestionPipeline(store, new RecordingStore(), 1, queueCapacity);
+    source = new ProtobufReportSource(0, pipeline);
+    source.start();
+  }
+
+  @Override
+  protected void tearDown() throws InterruptedException {
+    source.shutdown();
+    source.join();
+    pipeline.shutdown();
+  }
+
+  private static List<XTraceReport3> reports(int from, int count) {
+    List<XTraceReport3> reports = new ArrayList<XTraceReport3>();
+    for (int i = from; i < from + count; i++)
+      reports.add(XTraceReport3.newBuilder().setTaskID(7).setEventID(i).setAgent("agent").build());
+    return reports;
+  }
+
+  private static void assertInOrder(List<Report> written, int count) {
+    assertEquals(count, written.size());
+    for (int i = 0; i < count; i++)
+      assertEquals(i, written.get(i).diskRepr().getV3Report().getEventID());
+  }
+
+  @Test
+  public void testBatchesAndAcks() throws Exception {
+    start(1000);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(frame(XTraceTcpMessage.newBuilder().setSequence(1).setReport(reports(0, 1).get(0))));
+    bytes.write(frame(XTraceTcpMessage.newBuilder().setSequence(2)
+        .setBatch(XTraceReportBatch.newBuilder().addAllReports(reports(1, 5)))));
+    bytes.write(frame(XTraceTcpMessage.newBuilder().setSequence(3)
+        .setCompressedBatch(new ReportBatchCodec().encode(reports(6, 5)))));
+    bytes.write(frame(XTraceTcpMessage.newBuilder().setReport(reports(11, 1).get(0))));
+
+    // Messages are split across writes
+    Socket client = new Socket("localhost", source.getPort());
+    OutputStream out = client.getOutputStream();
+    byte[] all = bytes.toByteArray();
+    for (int offset = 0; offset < all.length; offset += 3) {
+      out.write(all, offset, Math.min(3, all.length - offset));
+      out.flush();
+    }
+
+    // Acks are cumulative, so some may be skipped, but the last is for the last sequenced message
+    InputStream in = client.getInputStream();
+    long acked = 0;
+    while (acked < 3) {
+      long sequence = XTraceTcpAck.parseDelimitedFrom(in).getSequence();
+      assertTrue(sequence > acked);
+      acked = sequence;
+    }
+    awaitIngested(pipeline, 12);
+    assertEquals(4, source.getMessagesReceived());
+    assertEquals(12, source.getReportsReceived());
+    assertInOrder(store.written.get(new Report3(reports(0, 1).get(0)).getTaskID()), 12);
+    client.close();
+  }
+
+  @Test
+  public void testAckedOnceStored() throws Exception {
+    start(1000);
+    CountDownLatch release = new CountDownLatch(1);
+    store.blocked = release;
+
+    Socket client = new Socket("localhost", source.getPort());
+    client.setSoTimeout(200);
+    client.getOutputStream().write(frame(XTraceTcpMessage.newBuilder().setSequence(1)
+        .setBatch(XTraceReportBatch.newBuilder().addAllReports(reports(0, 5)))));
+
+    // The reports fit in the pipeline, but are not acknowledged until the stores have them
+    try {
+      client.getInputStream().read();
+      fail("Acknowledged a message before its reports were stored");
+    } catch (SocketTimeoutException e) {
+      // Expected
+    }
+    assertEquals(0, source.getPauses());
+
+    release.countDown();
+    client.setSoTimeout(5000);
+    assertEquals(1, XTraceTcpAck.parseDelimitedFrom(client.getInputStream()).getSequence());
+    assertEquals(5, pipeline.getReportsIngested());
+    client.close();
+  }
+
+  @Test
+  public void testPausesInsteadOfDropping() throws Exception {
+    start(2);
+    CountDownLatch release = new CountDownLatch(1);
+    store.blocked = release;
+
+    Socket client = new Socket("localhost", source.getPort());
+    client.setSoTimeout(200);
+    client.getOutputStream().write(frame(XTraceTcpMessage.newBuilder().setSequence(1)
+        .setBatch(XTraceReportBatch.newBuilder().addAllReports(reports(0, 20)))));
+
+    // The reports do not fit, so the message is not acknowledged and nothing is dropped
+    try {
+      client.getInputStream().read();
+      fail("Acknowledged a message before its reports were queued");
+    } catch (SocketTimeoutException e) {
+      // Expected
+    }
+    assertTrue(source.getPauses() > 0);
+    assertEquals(0, pipeline.getReportsDropped());
+
+    release.countDown();
+    client.setSoTimeout(5000);
+    assertEquals(1, XTraceTcpAck.parseDelimitedFrom(client.getInputStream()).getSequence());
+    awaitIngested(pipeline, 20);
+    assertEquals(0, pipeline.getReportsDropped());
+    assertInOrder(store.written.get(new Report3(reports(0, 1).get(0)).getTaskID()), 20);
+    client.close();
+  }
+
+  @Test
+  public void testBadMessageClosesConnection() throws Exception {
+    start(1000);
+    Socket good = new Socket("localhost", source.getPort());
+    Socket bad = new Socket("localhost", source.getPort());
+    bad.getOutputStream().write(new byte[] { 3, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF });
+    assertEquals(-1, bad.getInputStream().read());
+    assertEquals(1, source.getInvalidMessages());
+    bad.close();
+
+    // Other connections are unaffected
+    good.getOutputStream().write(frame(XTraceTcpMessage.newBuilder().setReport(reports(0, 1).get(0))));
+    awaitIngested(pipeline, 1);
+    good.close();
+  }
+
+}
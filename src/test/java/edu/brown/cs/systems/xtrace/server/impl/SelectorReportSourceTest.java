@@ -0,0 +1,40 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.MessageLite;
+
+/**
+ * Helpers shared by the tests of the TCP report sources
+ */
+public abstract class SelectorReportSourceTest extends TestCase {
+
+  /** Frames a v2 report as TcpReportSource expects: a 4-byte length then UTF-8 text */
+  static byte[] frame(String report) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    byte[] utf8 = report.getBytes("UTF-8");
+    out.writeInt(utf8.length);
+    out.write(utf8);
+    return bytes.toByteArray();
+  }
+
+  /** Frames a message as ProtobufReportSource expects: a varint length then the message */
+  static byte[] frame(MessageLite.Builder message) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    message.build().writeDelimitedTo(bytes);
+    return bytes.toByteArray();
+  }
+
+  /** Waits up to 5 seconds for the pipeline to have ingested the given number of reports */
+  static void awaitIngested(IngestionPipeline pipeline, long count) throws InterruptedException {
+    for (int i = 0; i < 500 && pipeline.getReportsIngested() < count; i++)
+      Thread.sleep(10);
+    assertEquals("dropped " + pipeline.getReportsDropped(), count, pipeline.getReportsIngested());
+  }
+
+}
@@ -0,0 +1,103 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.text.DecimalFormat;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.impl.IngestionPipelineTest.RecordingStore;
+
+/**
+ * Load test of the TCP report source: many legacy clients hold connections
+ * open while a few of them at a time send reports. Prints the number of
+ * connections held and the reports per second ingested
+ */
+public class TcpReportSourcePerf extends TestCase {
+
+  private static final DecimalFormat format = new DecimalFormat("#.##");
+
+  /** Discards reports */
+  private static class NullStore extends RecordingStore {
+    @Override
+    public void reportReceived(Report r) {
+    }
+  }
+
+  private void run(int connections, int senders, final int reportsPerConnection) throws Exception {
+    System.out.println("TCP\t " + connections + " connections, " + senders + " sending threads");
+    IngestionPipeline pipeline = new IngestionPipeline(new NullStore(), new NullStore(), 4, 65536);
+    TcpReportSource source = new TcpReportSource(0, pipeline);
+    source.start();
+
+    final Socket[] sockets = new Socket[connections];
+    for (int i = 0; i < connections; i++)
+      sockets[i] = new Socket("localhost", source.getPort());
+    while (source.getConnections() < connections)
+      Thread.sleep(10);
+
+    // Each connection sends its reports in one write, as a legacy client flushing its buffer would
+    final byte[][] payloads = new byte[connections][];
+    for (int i = 0; i < connections; i++) {
+      byte[] frame = SelectorReportSourceTest.frame(TcpReportSourceTest.report(Integer.toHexString(0x1000 + i), 0, 200));
+      payloads[i] = new byte[frame.length * reportsPerConnection];
+      for (int j = 0; j < reportsPerConnection; j++)
+        System.arraycopy(frame, 0, payloads[i], j * frame.length, frame.length);
+    }
+
+    final AtomicInteger next = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(senders);
+    long start = System.nanoTime();
+    for (int t = 0; t < senders; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i; (i = next.getAndIncrement()) < sockets.length;) {
+              OutputStream out = sockets[i].getOutputStream();
+              out.write(payloads[i]);
+              out.flush();
+            }
+          } catch (Exception e) {
+            e.printStackTrace();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    done.await();
+    long expected = (long) connections * reportsPerConnection;
+    while (pipeline.getReportsIngested() + pipeline.getReportsDropped() < expected)
+      Thread.sleep(1);
+    long duration = System.nanoTime() - start;
+
+    System.out.println("  Time:     " + format.format(duration / 1000000000.0) + " seconds");
+    System.out.println("  Held:     " + source.getConnections() + " connections");
+    System.out.println("  Reports:  " + pipeline.getReportsIngested() + " ingested, " + pipeline.getReportsDropped()
+        + " dropped");
+    System.out.println("  Rate:     " + format.format(expected / (duration / 1000000000.0)) + " reports/s");
+
+    for (Socket socket : sockets)
+      socket.close();
+    source.shutdown();
+    source.join();
+    pipeline.shutdown();
+  }
+
+  @Test
+  public void testFewConnections() throws Exception {
+    run(10, 4, 20000);
+  }
+
+  @Test
+  public void testManyConnections() throws Exception {
+    run(5000, 8, 40);
+  }
+
+}
@@ -0,0 +1,129 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.impl.IngestionPipelineTest.RecordingStore;
+
+/**
+ * Tests that the TCP report source frames, parses and ingests reports from
+ * many connections, however the bytes are split
+ */
+public class TcpReportSourceTest extends SelectorReportSourceTest {
+
+  private RecordingStore store;
+  private IngestionPipeline pipeline;
+  private TcpReportSource source;
+
+  @Override
+  protected void setUp() throws IOException {
+    store = new RecordingStore();
+    pipeline = new IngestionPipeline(store, new RecordingStore(), 2, 10000);
+    source = new TcpReportSource(0, pipeline);
+    source.start();
+  }
+
+  @Override
+  protected void tearDown() throws InterruptedException {
+    source.shutdown();
+    source.join();
+    pipeline.shutdown();
+  }
+
+  static String report(String task, int sequence, int padding) {
+    char[] pad = new char[padding];
+    Arrays.fill(pad, 'x');
+    return "X-Trace Report ver 1.0\nX-Trace: " + task + "\nSequence: " + sequence + "\nPadding: " + new String(pad);
+  }
+
+  @Test
+  public void testSplitAndLargeReports() throws Exception {
+    Socket[] clients = new Socket[5];
+    for (int c = 0; c < clients.length; c++)
+      clients[c] = new Socket("localhost", source.getPort());
+
+    // Each client writes its frames in small pieces, interleaved with the others
+    int perClient = 20;
+    for (int i = 0; i < perClient; i++) {
+      for (int c = 0; c < clients.length; c++) {
+        // Every fifth report is larger than a pooled buffer
+        byte[] frame = frame(report("task" + c, i, i % 5 == 0 ? 3 * TcpReportSource.BUFFER_SIZE : 10));
+        OutputStream out = clients[c].getOutputStream();
+        for (int offset = 0; offset < frame.length; offset += 7) {
+          out.write(frame, offset, Math.min(7, frame.length - offset));
+          if (offset < 21)
+            out.flush();
+        }
+        out.flush();
+      }
+    }
+    awaitIngested(pipeline, clients.length * perClient);
+    assertEquals(clients.length, source.getConnections());
+
+    for (int c = 0; c < clients.length; c++) {
+      List<Report> reports = store.written.get("task" + c);
+      assertEquals(perClient, reports.size());
+      for (int i = 0; i < perClient; i++)
+        assertTrue(reports.get(i).toString().contains("Sequence: " + i + "\n"));
+      clients[c].close();
+    }
+  }
+
+  @Test
+  public void testBadLengthClosesConnection() throws Exception {
+    Socket good = new Socket("localhost", source.getPort());
+    Socket bad = new Socket("localhost", source.getPort());
+    bad.getOutputStream().write(frame(report("bad", 0, 0)));
+    new DataOutputStream(bad.getOutputStream()).writeInt(TcpReportSource.MAX_REPORT_LENGTH + 1);
+    InputStream in = bad.getInputStream();
+    assertEquals(-1, in.read());
+    bad.close();
+
+    // Other connections are unaffected, and invalid reports are skipped
+    good.getOutputStream().write(frame("not a report"));
+    good.getOutputStream().write(frame(report("task5", 0, 0)));
+    awaitIngested(pipeline, 2);
+    assertEquals(1, source.getInvalidReports());
+    assertEquals(2, source.getReportsReceived());
+    assertEquals(1, store.written.get("task5").size());
+    good.close();
+  }
+
+  @Test
+  public void testFailedSetupClosesOnlyThatClient() throws Exception {
+    source.shutdown();
+    source.join();
+    final AtomicBoolean failed = new AtomicBoolean(false);
+    source = new TcpReportSource(0, pipeline) {
+      @Override
+      Connection newConnection(SocketChannel channel) throws IOException {
+        if (failed.compareAndSet(false, true))
+          throw new IOException("Simulated setup failure");
+        return super.newConnection(channel);
+      }
+    };
+    source.start();
+
+    Socket rejected = new Socket("localhost", source.getPort());
+    assertEquals(-1, rejected.getInputStream().read());
+    rejected.close();
+
+    // The selector carries on accepting and reading other clients
+    Socket good = new Socket("localhost", source.getPort());
+    good.getOutputStream().write(frame(report("task6", 0, 0)));
+    awaitIngested(pipeline, 1);
+    assertEquals(1, source.getConnections());
+    good.close();
+  }
+
+}